@@ -18,6 +18,7 @@ import android.database.Cursor;
 import android.graphics.Color;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Process;
 import android.text.Editable;
 import android.text.Html;
 import android.text.Spannable;
@@ -34,6 +35,7 @@ import android.view.Window;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.AdapterView.OnItemLongClickListener;
+import android.widget.ArrayAdapter;
 import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.ListView;
@@ -42,8 +44,12 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.misgod.pdbreader.provider.BookColumn;
+import com.misgod.pdbreader.provider.FullTextColumn;
+import com.misgod.pdbreader.util.CancelToken;
+import com.misgod.pdbreader.util.CancelledException;
 import com.misgod.pdbreader.util.Constatnts;
 import com.misgod.pdbreader.util.DBUtil;
+import com.misgod.pdbreader.util.FullTextIndexer;
 import com.misgod.pdbreader.util.SDCardUtil;
 import com.misgod.pdbreader.util.SyncAgent;
 
@@ -58,6 +64,7 @@ public class BookListActivity extends ListActivity {
 	private static final int EDIT_DIALOG = 5;
 	private static final int ABOUT_DIALOG = 6;
 	private static final int SYNC_DIALOG = 7;
+	private static final int FULLTEXT_DIALOG = 8;
 	private int selectedIndex;
 
 	private static final int SORT_NAME = 0;
@@ -68,6 +75,14 @@ public class BookListActivity extends ListActivity {
 	private int sortMode;
 	private BooksListAdapter mAdapter;
 	private EditText mFilterText;
+	private CancelToken mIndexToken;
+	private Thread mIndexThread;
+	private CancelToken mSearchToken;
+	private final ArrayList<Long> mHitBooks = new ArrayList<Long>();
+	private final ArrayList<String> mHitLocators = new ArrayList<String>();
+	private ArrayAdapter<CharSequence> mHitAdapter;
+	private TextView mSearchStatus;
+	private ProgressDialog mSyncDialog;
 	private static final String[] BookField = new String[] { BookColumn._ID,
 			BookColumn.NAME, BookColumn.AUTHOR, BookColumn.ENDCODE,
 			BookColumn.PATH, BookColumn.RATING };
@@ -120,11 +135,99 @@ public class BookListActivity extends ListActivity {
 	protected void onResume() {
 		super.onResume();
 		SDCardUtil.addListener(this);
+		startFullTextIndex();
 	}
 
 	protected void onPause() {
 		super.onResume();
 		SDCardUtil.removeListener(this);
+		if (mIndexToken != null) {
+			mIndexToken.cancel(); // goes on from the saved page next time
+			mIndexToken = null;
+		}
+	}
+
+	/**
+	 * Index the text of new and changed books in the background, if the
+	 * setting is on. Stopped on pause, resumed where it was on the next run.
+	 */
+	private void startFullTextIndex() {
+		SharedPreferences pref = getSharedPreferences(Constatnts.PREF_TAG,
+				Context.MODE_PRIVATE);
+		if (!pref.getBoolean("pref_fulltext", false)) {
+			return;
+		}
+		if (mIndexToken != null) {
+			mIndexToken.cancel();
+		}
+		final CancelToken token = new CancelToken();
+		mIndexToken = token;
+		final Thread previous = mIndexThread;
+		mIndexThread = new Thread("fulltext") {
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				try {
+					// the cancelled run may still be writing a book's chunks
+					if (previous != null) {
+						previous.join();
+					}
+					new FullTextIndexer(BookListActivity.this).run(token);
+				} catch (InterruptedException e) {
+					// gave up waiting, nothing written yet
+				} catch (CancelledException e) {
+					// paused
+				}
+			}
+		};
+		mIndexThread.start();
+	}
+
+	/** Search the full-text index of the library, off the UI thread. */
+	private void searchBooks(final String text) {
+		if (mSearchToken != null) {
+			mSearchToken.cancel();
+		}
+		final CancelToken token = new CancelToken();
+		mSearchToken = token;
+		mHitBooks.clear();
+		mHitLocators.clear();
+		mHitAdapter.clear();
+		mSearchStatus.setText("");
+		new Thread("fulltext-search") {
+			public void run() {
+				final ArrayList<Long> books = new ArrayList<Long>();
+				final ArrayList<String> locators = new ArrayList<String>();
+				final ArrayList<CharSequence> labels = new ArrayList<CharSequence>();
+				Cursor c = getContentResolver().query(FullTextColumn.CONTENT_URI
+						.buildUpon().appendQueryParameter("limit",
+								String.valueOf(FULLTEXT_LIMIT)).build(),
+						null, null, new String[] { text }, null);
+				try {
+					while (c.moveToNext()) {
+						books.add(c.getLong(c.getColumnIndexOrThrow(FullTextColumn.BOOK_ID)));
+						locators.add(c.getString(c.getColumnIndexOrThrow(FullTextColumn.LOCATOR)));
+						labels.add(c.getString(c.getColumnIndexOrThrow(FullTextColumn.NAME))
+								+ "\n" + c.getString(c.getColumnIndexOrThrow(FullTextColumn.SNIPPET)));
+					}
+				} finally {
+					c.close();
+				}
+				runOnUiThread(new Runnable() {
+					public void run() {
+						if (token.isCancelled()) {
+							return;
+						}
+						mHitBooks.addAll(books);
+						mHitLocators.addAll(locators);
+						for (CharSequence label : labels) {
+							mHitAdapter.add(label);
+						}
+						mSearchStatus.setText(getString(books.size() < FULLTEXT_LIMIT
+								? R.string.search_done : R.string.search_more, books.size()));
+					}
+				});
+			}
+		}.start();
 	}
 
 	@Override
@@ -281,6 +384,8 @@ public class BookListActivity extends ListActivity {
 	private final int MENU_CHARSET = 1;
 	private final int MENU_SORT = 2;
 	private final int MENU_ABOUT = 3;
+	private final int MENU_SEARCH = 4;
+	private static final int FULLTEXT_LIMIT = 100;
 
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
@@ -288,6 +393,7 @@ public class BookListActivity extends ListActivity {
 		menu.add(0, MENU_CHARSET, MENU_CHARSET, R.string.menu_charset);
 		menu.add(0, MENU_SORT, MENU_SORT, R.string.menu_sort);
 		menu.add(0, MENU_ABOUT, MENU_ABOUT, R.string.menu_about);
+		menu.add(0, MENU_SEARCH, MENU_SEARCH, R.string.menu_search_books);
 
 		return true;
 	}
@@ -308,6 +414,8 @@ public class BookListActivity extends ListActivity {
 			showDialog(SORT_DIALOG);
 		} else if (item.getItemId() == MENU_ABOUT) {
 			showDialog(ABOUT_DIALOG);
+		} else if (item.getItemId() == MENU_SEARCH) {
+			showDialog(FULLTEXT_DIALOG);
 		}
 
 		return true;
@@ -346,6 +454,7 @@ public class BookListActivity extends ListActivity {
 			dialog.setMessage(getString(R.string.msg_sync_sd));
 			dialog.setIndeterminate(true);
 			dialog.setCancelable(true);
+			mSyncDialog = dialog;
 			return dialog;
 
 		case EXPIRED_DIALOG:
@@ -501,8 +610,29 @@ public class BookListActivity extends ListActivity {
 											SyncAgent syncAgent = new SyncAgent();
 											syncAgent.syncSD(
 													BookListActivity.this, f,
-													otherType);
+													otherType,
+													new SyncAgent.Listener() {
+														public void onProgress(
+																final int probed,
+																final int found,
+																final String name) {
+															runOnUiThread(new Runnable() {
+																public void run() {
+																	if (mSyncDialog != null) {
+																		mSyncDialog.setMessage(getString(
+																				R.string.msg_sync_progress,
+																				probed, found, name));
+																	}
+																}
+															});
+														}
+													});
 											dismissDialog(PROGRESS_DIALOG);
+											runOnUiThread(new Runnable() {
+												public void run() {
+													startFullTextIndex();
+												}
+											});
 										}
 									}.start();
 								} else {
@@ -580,6 +710,40 @@ public class BookListActivity extends ListActivity {
 						}
 					}).create();
 
+		case FULLTEXT_DIALOG:
+			View searchView = getLayoutInflater().inflate(
+					R.layout.search_dialog, null);
+			final EditText query = (EditText) searchView
+					.findViewById(R.id.search_query);
+			mSearchStatus = (TextView) searchView
+					.findViewById(R.id.search_status);
+			ListView hitList = (ListView) searchView
+					.findViewById(R.id.search_list);
+			mHitAdapter = new ArrayAdapter<CharSequence>(this,
+					android.R.layout.simple_list_item_1);
+			hitList.setAdapter(mHitAdapter);
+			searchView.findViewById(R.id.search_go).setOnClickListener(
+					new View.OnClickListener() {
+						public void onClick(View v) {
+							searchBooks(query.getText().toString());
+						}
+					});
+			final AlertDialog searchDialog = new AlertDialog.Builder(this)
+					.setTitle(R.string.menu_search_books)
+					.setView(searchView).create();
+			hitList.setOnItemClickListener(new OnItemClickListener() {
+				public void onItemClick(AdapterView<?> parent, View view,
+						int position, long id) {
+					searchDialog.dismiss();
+					Intent intent = new Intent();
+					intent.putExtra("ID", mHitBooks.get(position).longValue());
+					intent.putExtra("LOCATOR", mHitLocators.get(position));
+					intent.setClassName(BookListActivity.this,
+							PalmBookReaderActivity.class.getName());
+					startActivity(intent);
+				}
+			});
+			return searchDialog;
 		}
 		return null;
 	}
@@ -629,18 +793,16 @@ public class BookListActivity extends ListActivity {
 					File f = new File("/sdcard/ebooks/PalmBookReaderHelp.txt");
 					if (!f.exists()) {
 						if (SDCardUtil.copyFile(BookListActivity.this, getString(R.string.file_name), f)) {
-							if (!DBUtil.isExits(BookListActivity.this, f)) {
-
-								ContentValues values = new ContentValues();
-								values.put(BookColumn.NAME, getString(R.string.help_title));
-								values.put(BookColumn.PATH, f.getAbsolutePath());
-								values.put(BookColumn.ENDCODE, "UTF-8");
-								values.put(BookColumn.FORMAT, 0);
-								
-								values.put(BookColumn.AUTHOR, "PalmBookReader");
-								values.put(BookColumn.RATING, 1);
-								getContentResolver().insert(BookColumn.CONTENT_URI, values);
-							}
+							// a row left from a help file deleted before is updated
+							ContentValues values = new ContentValues();
+							values.put(BookColumn.NAME, getString(R.string.help_title));
+							values.put(BookColumn.PATH, f.getAbsolutePath());
+							values.put(BookColumn.ENDCODE, "UTF-8");
+							values.put(BookColumn.FORMAT, 0);
+							
+							values.put(BookColumn.AUTHOR, "PalmBookReader");
+							values.put(BookColumn.RATING, 1);
+							getContentResolver().insert(BookColumn.CONTENT_URI, values);
 						}
 					}
 				}
@@ -0,0 +1,226 @@
+package com.misgod.pdbreader;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.app.Activity;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import com.misgod.pdbreader.pdb.AbstractBookInfo;
+import com.misgod.pdbreader.util.BookExecutor;
+import com.misgod.pdbreader.util.CancelToken;
+import com.misgod.pdbreader.util.CancelledException;
+
+/**
+ * Pages of a book as the rows of a ListView, for reading without page turns.
+ * Only a small window of decoded pages is held around the visible one; rows
+ * are recycled by the list, pages ahead in the scroll direction are decoded
+ * on the book executor, and pages far from the reader are dropped. A page not
+ * decoded yet shows as an empty row one screen high.
+ */
+class ContinuousAdapter extends BaseAdapter implements AbsListView.OnScrollListener {
+    private static final String TAG = "ContinuousAdapter";
+    /** decoded pages kept alive, the visible ones included */
+    private static final int WINDOW = 6;
+    /** pages decoded ahead of the scroll direction */
+    private static final int AHEAD = 2;
+
+    private final Activity mActivity;
+    private final BookExecutor mExecutor;
+    private final AbstractBookInfo mBook;
+    private int mCount;
+    private final LinkedHashMap<Integer, CharSequence> mWindow = new LinkedHashMap<Integer, CharSequence>();
+    /** pages being decoded, a dropped or superseded job has its token cancelled */
+    private final HashMap<Integer, CancelToken> mPending = new HashMap<Integer, CancelToken>();
+
+    private float mTextSize;
+    private int mTextColor;
+    private int mBackgroundColor;
+    private int mPlaceholderHeight;
+
+    private int mFirst = -1;
+    private boolean mForward = true;
+    private OnPageListener mListener;
+
+    interface OnPageListener {
+        void onPageChanged(int page);
+    }
+
+    ContinuousAdapter(Activity activity, BookExecutor executor,
+            AbstractBookInfo book) {
+        mActivity = activity;
+        mExecutor = executor;
+        mBook = book;
+    }
+
+    void setOnPageListener(OnPageListener listener) {
+        mListener = listener;
+    }
+
+    /** @param size in scaled pixels, as TextView.setTextSize(float) takes */
+    void setTextSize(float size) {
+        mTextSize = size;
+        notifyDataSetChanged();
+    }
+
+    void setColors(int text, int background) {
+        mTextColor = text;
+        mBackgroundColor = background;
+        notifyDataSetChanged();
+    }
+
+    void setPlaceholderHeight(int height) {
+        mPlaceholderHeight = height;
+    }
+
+    /**
+     * Forget every decoded page and take the page count again, once the book
+     * is (re)opened. The count is only read here, so the list never sees it
+     * change under it while a worker re-reads the book.
+     */
+    void reset() {
+        release();
+        mCount = mBook.getPageCount();
+        mFirst = -1;
+        notifyDataSetChanged();
+    }
+
+    /** Show nothing while the book is being re-read. */
+    void clear() {
+        release();
+        mCount = 0;
+        notifyDataSetChanged();
+    }
+
+    /** Stop decoding, the list is going away. */
+    void release() {
+        for (CancelToken token : mPending.values()) {
+            token.cancel();
+        }
+        mPending.clear();
+        mWindow.clear();
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public Object getItem(int position) {
+        return mWindow.get(position);
+    }
+
+    public long getItemId(int position) {
+        return position;
+    }
+
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView row = (TextView) convertView;
+        if (row == null) {
+            row = new TextView(mActivity);
+            row.setLineSpacing(0, 1.15f);
+            row.setFocusable(false);
+        }
+        row.setTextSize(mTextSize);
+        row.setTextColor(mTextColor);
+        row.setBackgroundColor(mBackgroundColor);
+
+        CharSequence text = mWindow.get(position);
+        if (text == null) {
+            text = mBook.getCachedText(position);
+            if (text != null) {
+                keep(position, text);
+            }
+        }
+        if (text == null) {
+            row.setText("");
+            row.setMinHeight(mPlaceholderHeight);
+            load(position, BookExecutor.PRIORITY_VISIBLE);
+        } else {
+            row.setText(text);
+            row.setMinHeight(0);
+        }
+        return row;
+    }
+
+    public void onScroll(AbsListView view, int first, int visible, int total) {
+        if (first == mFirst || total == 0) {
+            return;
+        }
+        mForward = first >= mFirst;
+        mFirst = first;
+        if (mListener != null) {
+            mListener.onPageChanged(first);
+        }
+        for (int i = 1; i <= AHEAD; i++) {
+            int page = mForward ? first + visible - 1 + i : first - i;
+            if (page >= 0 && page < getCount()) {
+                load(page, BookExecutor.PRIORITY_PREFETCH);
+            }
+        }
+    }
+
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+    }
+
+    private void load(final int page, int priority) {
+        CancelToken running = mPending.get(page);
+        if (mWindow.containsKey(page)
+                || running != null && !running.isCancelled()) {
+            return;
+        }
+        final CancelToken token = new CancelToken();
+        mPending.put(page, token);
+        mExecutor.submit(priority, "chunk" + page, token, new Runnable() {
+            public void run() {
+                try {
+                    final CharSequence text = mBook.loadText(page, token);
+                    mActivity.runOnUiThread(new Runnable() {
+                        public void run() {
+                            if (mPending.get(page) != token) {
+                                return; // reset meanwhile
+                            }
+                            mPending.remove(page);
+                            keep(page, text);
+                            notifyDataSetChanged();
+                        }
+                    });
+                } catch (CancelledException e) {
+                    // reset or released
+                } catch (Exception e) {
+                    Log.d(TAG, e.getMessage(), e);
+                    mActivity.runOnUiThread(new Runnable() {
+                        public void run() {
+                            if (mPending.get(page) == token) {
+                                mPending.remove(page);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /** Hold a decoded page, dropping the one farthest from the reader. */
+    private void keep(int page, CharSequence text) {
+        mWindow.put(page, text);
+        while (mWindow.size() > WINDOW) {
+            int here = Math.max(mFirst, 0);
+            Integer farthest = null;
+            Iterator<Integer> it = mWindow.keySet().iterator();
+            while (it.hasNext()) {
+                Integer p = it.next();
+                if (farthest == null
+                        || Math.abs(p - here) > Math.abs(farthest - here)) {
+                    farthest = p;
+                }
+            }
+            mWindow.remove(farthest);
+        }
+    }
+}
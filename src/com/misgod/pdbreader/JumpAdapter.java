@@ -0,0 +1,90 @@
+package com.misgod.pdbreader;
+
+import java.util.List;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import com.misgod.pdbreader.pdb.AbstractBookInfo;
+import com.misgod.pdbreader.pdb.Chapter;
+import com.misgod.pdbreader.pdb.Locator;
+
+/**
+ * The rows of the jump dialog: the chapters of the book if it has any, else
+ * its pages. Labels are made only for the rows on screen, so the dialog
+ * opens as fast for ten thousand pages as for ten.
+ */
+class JumpAdapter extends BaseAdapter {
+    private final AbstractBookInfo mBook;
+    private final LayoutInflater mInflater;
+    private final String mPageLabel;
+    private List<Chapter> mChapters;
+
+    JumpAdapter(Context context, AbstractBookInfo book) {
+        mBook = book;
+        mInflater = LayoutInflater.from(context);
+        mPageLabel = context.getString(R.string.page);
+        mChapters = book.getChapters();
+    }
+
+    /** Take the chapters and page count again, they may have grown. */
+    void refresh() {
+        mChapters = mBook.getChapters();
+        notifyDataSetChanged();
+    }
+
+    public int getCount() {
+        return mChapters.isEmpty() ? mBook.getPageCount() : mChapters.size();
+    }
+
+    public Object getItem(int position) {
+        return mChapters.isEmpty() ? String.format(mPageLabel, position + 1)
+                : mChapters.get(position).mTitle;
+    }
+
+    public long getItemId(int position) {
+        return position;
+    }
+
+    /** The page a row jumps to. */
+    int getPage(int position) {
+        return mChapters.isEmpty() ? position : mChapters.get(position).mPage;
+    }
+
+    /** Where in its page a chapter row starts, null for a page row. */
+    Locator getLocator(int position) {
+        return mChapters.isEmpty() ? null : mChapters.get(position).mLocator;
+    }
+
+    /** The row of a page: itself, or the last chapter starting at or before it. */
+    int getPosition(int page) {
+        if (mChapters.isEmpty()) {
+            return page;
+        }
+        int low = 0;
+        int high = mChapters.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (mChapters.get(mid).mPage <= page) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView row = (TextView) convertView;
+        if (row == null) {
+            row = (TextView) mInflater.inflate(android.R.layout.simple_list_item_1,
+                    parent, false);
+        }
+        row.setText((CharSequence) getItem(position));
+        return row;
+    }
+}
@@ -0,0 +1,72 @@
+package com.misgod.pdbreader;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Typeface;
+import android.text.Layout;
+import android.text.TextPaint;
+
+/**
+ * Page layouts built ahead on a worker thread, keyed by page, width, text
+ * size and typeface. A layout is only handed out for the very text it was
+ * built from, so a re-decoded page (another charset, say) is laid out again.
+ */
+class PageLayouts {
+    private static final int MAX_LAYOUTS = 3;
+
+    private static class Entry {
+        final String key;
+        final CharSequence text;
+        final Layout layout;
+
+        Entry(String key, CharSequence text, Layout layout) {
+            this.key = key;
+            this.text = text;
+            this.layout = layout;
+        }
+    }
+
+    private final LinkedHashMap<Integer, Entry> mLayouts = new LinkedHashMap<Integer, Entry>(
+            MAX_LAYOUTS + 1, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+            return size() > MAX_LAYOUTS;
+        }
+    };
+
+    private static String keyOf(TextPaint paint, int width) {
+        Typeface typeface = paint.getTypeface();
+        return width + "/" + paint.getTextSize() + "/"
+                + (typeface == null ? 0 : typeface.getStyle())
+                + "/" + (typeface == null ? 0 : typeface.hashCode());
+    }
+
+    /** Lay out a page for later, on the calling (worker) thread. */
+    void prepare(int page, CharSequence text, TextPaint paint, int width) {
+        String key = keyOf(paint, width);
+        synchronized (this) {
+            Entry entry = mLayouts.get(page);
+            if (entry != null && entry.text == text && entry.key.equals(key)) {
+                return;
+            }
+        }
+        Layout layout = PageView.build(text, paint, width);
+        synchronized (this) {
+            mLayouts.put(page, new Entry(key, text, layout));
+        }
+    }
+
+    /** The prepared layout of this text for this paint and width, or null. */
+    synchronized Layout get(int page, CharSequence text, TextPaint paint, int width) {
+        Entry entry = mLayouts.get(page);
+        if (entry == null || entry.text != text || !entry.key.equals(keyOf(paint, width))) {
+            return null;
+        }
+        return entry.layout;
+    }
+
+    synchronized void clear() {
+        mLayouts.clear();
+    }
+}
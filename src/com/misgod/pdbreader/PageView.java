@@ -0,0 +1,152 @@
+package com.misgod.pdbreader;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.util.TypedValue;
+import android.view.View;
+
+/**
+ * Shows one page of text from a StaticLayout. Unlike a TextView it takes a
+ * layout built beforehand on a worker thread (see {@link PageLayouts}), so
+ * turning to a pre-laid-out page does no line breaking on the UI thread. A
+ * page without one is laid out in onMeasure, and the time spent is counted.
+ */
+public class PageView extends View {
+    private static final String TAG = "PageView";
+    private static final float SPACING_MULT = 1.15f;
+    private static final float DEFAULT_TEXT_SIZE = 14;
+
+    private final TextPaint mPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+    private CharSequence mText = "";
+    private Layout mLayout;
+
+    private int mTurns;
+    private int mPrebuilt;
+    private long mLayoutNanos;
+
+    public PageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mPaint.density = getResources().getDisplayMetrics().density;
+        setTextSize(DEFAULT_TEXT_SIZE);
+    }
+
+    /** Build the layout of a page, on any thread, with a paint of its own. */
+    static Layout build(CharSequence text, TextPaint paint, int width) {
+        return new StaticLayout(text, paint, Math.max(width, 0),
+                Layout.Alignment.ALIGN_NORMAL, SPACING_MULT, 0, true);
+    }
+
+    public void setText(CharSequence text) {
+        setText(text, null);
+    }
+
+    /** @param layout built for this text, width and paint, or null */
+    public void setText(CharSequence text, Layout layout) {
+        mText = text;
+        mLayout = layout;
+        if (text.length() > 0) {
+            mTurns++;
+            if (layout != null) {
+                mPrebuilt++;
+            }
+        }
+        requestLayout();
+        invalidate();
+    }
+
+    public CharSequence getText() {
+        return mText;
+    }
+
+    public int length() {
+        return mText.length();
+    }
+
+    /** Null until the view was measured. */
+    public Layout getLayout() {
+        return mLayout;
+    }
+
+    /** The paint pages are laid out with here, not to be changed. */
+    public TextPaint getPaint() {
+        return mPaint;
+    }
+
+    /** A snapshot of the paint, to lay out pages elsewhere with. */
+    public TextPaint copyPaint() {
+        return new TextPaint(mPaint);
+    }
+
+    /** The width a page is laid out to, 0 before the first measure. */
+    public int getTextWidth() {
+        return Math.max(0, getWidth() - getPaddingLeft() - getPaddingRight());
+    }
+
+    /** @param size in scaled pixels, like TextView.setTextSize(float) */
+    public void setTextSize(float size) {
+        mPaint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP,
+                size, getResources().getDisplayMetrics()));
+        mLayout = null;
+        requestLayout();
+        invalidate();
+    }
+
+    /** In pixels. */
+    public float getTextSize() {
+        return mPaint.getTextSize();
+    }
+
+    public void setTextColor(int color) {
+        mPaint.setColor(color);
+        invalidate();
+    }
+
+    public int getLineHeight() {
+        return Math.round(mPaint.getFontMetricsInt(null) * SPACING_MULT);
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = MeasureSpec.getSize(widthMeasureSpec);
+        int textWidth = Math.max(0, width - getPaddingLeft() - getPaddingRight());
+        if (mLayout == null || mLayout.getWidth() != textWidth) {
+            long start = System.nanoTime();
+            mLayout = build(mText, mPaint, textWidth);
+            long spent = System.nanoTime() - start;
+            mLayoutNanos += spent;
+            if (mText.length() > 0) {
+                Log.d(TAG, "laid out " + mText.length() + " chars on the UI thread in "
+                        + spent / 1000000 + "ms");
+            }
+        }
+        int height = mLayout.getHeight() + getPaddingTop() + getPaddingBottom();
+        setMeasuredDimension(width, resolveSize(Math.max(height,
+                getSuggestedMinimumHeight()), heightMeasureSpec));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mLayout == null) {
+            return;
+        }
+        // a prebuilt layout has its own paint, keep it in the current color
+        mLayout.getPaint().setColor(mPaint.getColor());
+        canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        mLayout.draw(canvas);
+        canvas.restore();
+    }
+
+    /** Page turns, how many came pre-laid-out, and UI thread layout time. */
+    public String getLayoutStats() {
+        return "PageView " + mTurns + " turns, " + mPrebuilt + " pre-laid-out, "
+                + mLayoutNanos / 1000000 + "ms layout on the UI thread"
+                + (mTurns == 0 ? "" : " (" + mLayoutNanos / 1000000 / mTurns + "ms a turn)");
+    }
+}
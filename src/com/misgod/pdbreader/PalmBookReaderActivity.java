@@ -2,6 +2,8 @@ package com.misgod.pdbreader;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -16,10 +18,16 @@ import android.content.pm.ActivityInfo;
 import android.content.res.Configuration;
 import android.database.Cursor;
 import android.graphics.Rect;
+import android.graphics.Typeface;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.Process;
+import android.text.Layout;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.TextPaint;
+import android.text.style.StyleSpan;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.KeyEvent;
@@ -32,14 +40,28 @@ import android.view.View.OnClickListener;
 import android.view.View.OnTouchListener;
 import android.view.Window;
 import android.view.WindowManager;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.ListView;
 import android.widget.ScrollView;
+import android.widget.SeekBar;
 import android.widget.TextView;
 import android.widget.ZoomControls;
 
 import com.misgod.pdbreader.pdb.AbstractBookInfo;
+import com.misgod.pdbreader.pdb.BookSearcher;
+import com.misgod.pdbreader.pdb.Chapter;
+import com.misgod.pdbreader.pdb.ChapterIndexer;
+import com.misgod.pdbreader.pdb.Locator;
+import com.misgod.pdbreader.pdb.PageFilters;
 import com.misgod.pdbreader.provider.BookColumn;
+import com.misgod.pdbreader.util.BookExecutor;
+import com.misgod.pdbreader.util.CancelToken;
+import com.misgod.pdbreader.util.CancelledException;
 import com.misgod.pdbreader.util.ColorUtil;
 import com.misgod.pdbreader.util.Constatnts;
+import com.misgod.pdbreader.util.IndexUtil;
 
 public class PalmBookReaderActivity extends Activity implements
         View.OnClickListener {
@@ -52,12 +74,28 @@ public class PalmBookReaderActivity extends Activity implements
     private AbstractBookInfo mBook;
 
     private View mBottomNext;
-    private TextView mBody;
+    private PageView mBody;
+    private final PageLayouts mLayouts = new PageLayouts();
     private View topPanel;
     private ScrollView scrollview;
+    private ListView mList;
+    private TextView mListIndex;
+    private ContinuousAdapter mAdapter;
+    private JumpAdapter mJumpAdapter;
+    private boolean isContinuous;
 
     private float density;
-    private Handler pHandler;
+    private BookExecutor mExecutor;
+    private CancelToken mPrefetchToken;
+    private CancelToken mIndexToken;
+    private CancelToken mReindexToken;
+    private CancelToken mSearchToken;
+    private Thread mSearchThread;
+    private final List<BookSearcher.Hit> mHits = new ArrayList<BookSearcher.Hit>();
+    private ArrayAdapter<CharSequence> mHitAdapter;
+    private TextView mSearchStatus;
+    /** where to scroll once the page being loaded is shown */
+    private Locator mPendingLocator;
 
     private boolean isTapScroll;
     private boolean isVolumeScroll;
@@ -86,7 +124,7 @@ public class PalmBookReaderActivity extends Activity implements
                         BookColumn._ID, BookColumn.NAME, BookColumn.AUTHOR,
                         BookColumn.ENDCODE, BookColumn.PATH,
                         BookColumn.LAST_PAGE, BookColumn.FORMAT,
-                        BookColumn.LAST_OFFSET}, null, null, null);
+                        BookColumn.LAST_OFFSET, BookColumn.LOCATOR}, null, null, null);
 
 
         String path = "";
@@ -95,6 +133,7 @@ public class PalmBookReaderActivity extends Activity implements
         int format = 0;
         int lastPage = 0;
         int lastOffset = 0;
+        Locator locator = null;
         if (cursor.moveToNext()) {
             int pathIdx = cursor.getColumnIndexOrThrow(BookColumn.PATH);
             int encodeIdx = cursor.getColumnIndexOrThrow(BookColumn.ENDCODE);
@@ -111,21 +150,22 @@ public class PalmBookReaderActivity extends Activity implements
             format = cursor.getInt(formatIdx);
             lastOffset = cursor.getInt(offsetIdx);
             name = cursor.getString(nameIdx);
+            locator = Locator.parse(cursor.getString(
+                    cursor.getColumnIndexOrThrow(BookColumn.LOCATOR)));
         }
         cursor.close();
+        // opened from a search of the library: go to the hit, not the saved place
+        String hitLocator = getIntent().getExtras().getString("LOCATOR");
+        if (hitLocator != null) {
+            locator = Locator.parse(hitLocator);
+            lastOffset = 0;
+        }
 
-        File f = new File(path);
+        IndexUtil.init(this);
+        final File f = new File(path);
         mBook = AbstractBookInfo.newBookInfo(f, id);
-        try {
-            mBook.setEncode(encode);
-            mBook.setFile(f,false);
-            mBook.setFormat(format);
-            
-            mBook.setPage(lastPage);
-            mBook.setName(name);
-        } catch (IOException e) {
-            Log.e(TAG, e.getMessage(), e);
-        }
+        mBook.setEncode(encode);
+        mBook.setName(name);
 
 
 
@@ -142,7 +182,7 @@ public class PalmBookReaderActivity extends Activity implements
 		});
         
 
-        mBody = (TextView) findViewById(R.id.text);
+        mBody = (PageView) findViewById(R.id.text);
         mBody.setFocusable(false);
         mBody.setOnClickListener(new OnClickListener(){
 			public void onClick(View v) {
@@ -187,7 +227,10 @@ public class PalmBookReaderActivity extends Activity implements
                 float size = mBody.getTextSize() / density + 1;
 
                 if (MAX_TEXT_SIZE >= size) {
+                    int offset = visibleOffset();
                     mBody.setTextSize(size);
+                    scrollToOffset(offset);
+                    mAdapter.setTextSize(size);
                     zoomControl.setIsZoomOutEnabled(true);
                     zoomControl.setIsZoomInEnabled(size != MAX_TEXT_SIZE);
                 }
@@ -199,7 +242,10 @@ public class PalmBookReaderActivity extends Activity implements
 
                 float size = mBody.getTextSize() / density - 1;
                 if (MIN_TEXT_SIZE <= size) {
+                    int offset = visibleOffset();
                     mBody.setTextSize(size);
+                    scrollToOffset(offset);
+                    mAdapter.setTextSize(size);
                     zoomControl.setIsZoomInEnabled(true);
                     zoomControl.setIsZoomOutEnabled(size != MIN_TEXT_SIZE);
                 }
@@ -207,7 +253,7 @@ public class PalmBookReaderActivity extends Activity implements
             }
         });
 
-        mBody.setOnTouchListener(new OnTouchListener() {
+        OnTouchListener hideZoom = new OnTouchListener() {
             public boolean onTouch(View view, MotionEvent motionevent) {
                 switch (motionevent.getAction()) {
                 case MotionEvent.ACTION_DOWN:
@@ -233,18 +279,73 @@ public class PalmBookReaderActivity extends Activity implements
                 }
                 return false;
             }
-        });
+        };
+        mBody.setOnTouchListener(hideZoom);
 
-        HandlerThread thread = new HandlerThread("reader");
-        thread.start();
-        pHandler = new Handler(thread.getLooper());
+        mExecutor = new BookExecutor("reader", 3);
 
+        mListIndex = (TextView) findViewById(R.id.continuous_index);
+        mListIndex.setOnClickListener(new OnClickListener() {
+            public void onClick(View v) {
+                showDialog(INDEX_DIALOG);
+            }
+        });
+        mList = (ListView) findViewById(R.id.continuous);
+        mAdapter = new ContinuousAdapter(this, mExecutor, mBook);
+        mAdapter.setPlaceholderHeight(getWindowManager().getDefaultDisplay().getHeight());
+        mAdapter.setOnPageListener(new ContinuousAdapter.OnPageListener() {
+            public void onPageChanged(int page) {
+                mBook.setPage(page);
+                setPageTitle();
+            }
+        });
+        mList.setAdapter(mAdapter);
+        mList.setOnScrollListener(mAdapter);
+        mList.setOnTouchListener(hideZoom);
+        mList.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                if (isTapScroll) {
+                    mList.smoothScrollBy(mList.getHeight() - mBody.getLineHeight(), 300);
+                }
+            }
+        });
+        isContinuous = getSharedPreferences(Constatnts.PREF_TAG, Context.MODE_PRIVATE)
+                .getBoolean("pref_continuous", false);
+        setContinuous(isContinuous);
 
-        doShow(lastOffset);
+        // opening may build the page index of a big book, keep it off the UI thread
+        showProgressBarVisibility(true);
+        final String bookName = name;
+        final int bookFormat = format;
+        final int bookPage = lastPage;
+        final int bookOffset = lastOffset;
+        final Locator bookLocator = locator;
+        final CancelToken openToken = mBook.newLoadToken();
+        mExecutor.submit(BookExecutor.PRIORITY_VISIBLE, "page", openToken, new Runnable() {
+            public void run() {
+                try {
+                    mBook.setFile(f,false);
+                    mBook.setFormat(bookFormat);
+                    // the locator outlives re-pagination, the saved page may not
+                    mBook.setPage(bookLocator != null ? mBook.resolvePage(bookLocator) : bookPage);
+                    mBook.setName(bookName);
+                } catch (IOException e) {
+                    Log.e(TAG, e.getMessage(), e);
+                }
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        mPendingLocator = bookLocator;
+                        doShow(bookOffset);
+                        indexBook();
+                    }
+                });
+            }
+        });
         SharedPreferences pref = getSharedPreferences(Constatnts.PREF_TAG,
                 Context.MODE_PRIVATE);
         mBody.setTextSize(pref.getFloat(Constatnts.TEXT_SIZE, mBody
                 .getTextSize())/density);
+        mAdapter.setTextSize(mBody.getTextSize()/density);
 
 
 
@@ -253,7 +354,11 @@ public class PalmBookReaderActivity extends Activity implements
     }
 
     public boolean onKeyDown(int keyCode, KeyEvent event) {
-        if (keyCode == KeyEvent.KEYCODE_DPAD_DOWN) {
+        if (isContinuous && (keyCode == KeyEvent.KEYCODE_DPAD_DOWN
+                || keyCode == KeyEvent.KEYCODE_DPAD_UP
+                || keyCode == KeyEvent.KEYCODE_DPAD_CENTER)) {
+            return super.onKeyDown(keyCode, event); // the list scrolls itself
+        } else if (keyCode == KeyEvent.KEYCODE_DPAD_DOWN) {
             int oldX = scrollview.getScrollY();
             scrollview.scrollBy(0, (scrollview.getHeight() - mBody
                     .getLineHeight()));
@@ -282,6 +387,12 @@ public class PalmBookReaderActivity extends Activity implements
             }
             scrollview.fullScroll(View.FOCUS_UP);
             return true;
+        }else if(isContinuous && isVolumeScroll &&  keyCode == KeyEvent.KEYCODE_VOLUME_DOWN){
+            mList.smoothScrollBy(mList.getHeight() - mBody.getLineHeight(), 300);
+            return true;
+        }else if(isContinuous && isVolumeScroll &&  keyCode == KeyEvent.KEYCODE_VOLUME_UP){
+            mList.smoothScrollBy(-(mList.getHeight() - mBody.getLineHeight()), 300);
+            return true;
         }else if(isVolumeScroll &&  keyCode == KeyEvent.KEYCODE_VOLUME_DOWN){
 			 scrollview.smoothScrollBy(0, (scrollview.getHeight() - mBody
 		                    .getLineHeight()));
@@ -315,6 +426,7 @@ public class PalmBookReaderActivity extends Activity implements
     private static final int MENU_FORMAT = 3;
     private static final int MENU_CHARSET = 4;
     private static final int MENU_SETTING = 5;
+    private static final int MENU_SEARCH = 6;
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
@@ -325,6 +437,7 @@ public class PalmBookReaderActivity extends Activity implements
         menu.add(0, MENU_FORMAT, MENU_FORMAT, R.string.menu_format);
         menu.add(0, MENU_CHARSET, MENU_CHARSET, R.string.menu_charset);
    		menu.add(0, MENU_SETTING, MENU_SETTING, R.string.menu_setting);
+        menu.add(0, MENU_SEARCH, MENU_SEARCH, R.string.menu_search);
         
         return true;
 
@@ -376,6 +489,8 @@ public class PalmBookReaderActivity extends Activity implements
         } else if (item.getItemId() == MENU_SETTING) {
         	Intent intent = new Intent(this,SettingActivity.class);
         	startActivity(intent);
+        } else if (item.getItemId() == MENU_SEARCH) {
+            showDialog(SEARCH_DIALOG);
         }
 
 
@@ -389,44 +504,55 @@ public class PalmBookReaderActivity extends Activity implements
 
         pageview.setText((mBook.mPage + 1) + " of " + mBook.getPageCount());
         pageview1.setText(pageview.getText());
+        mListIndex.setText(mBook.mName + "  " + pageview.getText());
     }
 
 
     private void doShow(final int offset) {
+        if (isContinuous) {
+            showContinuous(offset);
+            return;
+        }
+        final int page = mBook.mPage;
+        final CancelToken token = mBook.newLoadToken();
+        if (mPrefetchToken != null) {
+            mPrefetchToken.cancel();
+        }
+        CharSequence cached = mBook.getCachedText(page);
+        if (cached != null) {
+            showText(cached, offset);
+            prefetchAround(page);
+            return;
+        }
+
         showProgressBarVisibility(true);
         mBody.setText("");
-        pHandler.post(new Runnable() {
+        mExecutor.submit(BookExecutor.PRIORITY_VISIBLE, "page", token, new Runnable() {
             public void run() {
-                
                 try {
-                    final CharSequence txt = mBook.getText();
+                    final CharSequence txt = mBook.loadText(page, token);
 
                     runOnUiThread(new Runnable() {
                         public void run() {
+                            if (token.isCancelled()) {
+                                return;
+                            }
                             try {
-                                mBody.setText(txt);
-                                if (offset > 0) {
-                                    new Handler().postDelayed(new Runnable() {
-                                        public void run() {
-                                            int line = mBody.getLayout()
-                                                    .getLineForOffset(offset);
-                                            int scollY = topPanel.getHeight()
-                                                    + line * mBody.getLineHeight();
-                                            scrollview.scrollTo(0, scollY);
-                                        }
-                                    }, 50);
-                                }
-                                setPageTitle();
+                                showText(txt, offset);
                             }finally{
                                 showProgressBarVisibility(false);
                             }
+                            prefetchAround(page);
                         }
                     });
 
+                } catch (CancelledException e) {
+                    // a newer page request took over
                 } catch (Exception e) {
                     Log.d(TAG, e.getMessage(), e);
                     runOnUiThread(new Runnable() {
                         public void run() {
+                            mPendingLocator = null;
                         	setPageTitle();
                             showProgressBarVisibility(false);
                         }
@@ -436,6 +562,342 @@ public class PalmBookReaderActivity extends Activity implements
         });
     }
 
+    /**
+     * Re-read the book with another charset and/or format, on a reader worker
+     * like any other book I/O, then show the same page again. The other jobs
+     * and the search read mBook, so they are cancelled and the change waits
+     * for them to stop.
+     */
+    private void reopen(final String encode, final int format) {
+        final int page = mBook.mPage;
+        final Locator here = visibleLocator();
+        mBook.newLoadToken();
+        if (mPrefetchToken != null) {
+            mPrefetchToken.cancel();
+        }
+        // the chapter and filter scans read mBook, which is about to change
+        if (mIndexToken != null) {
+            mIndexToken.cancel();
+            mIndexToken = null;
+        }
+        if (mReindexToken != null) {
+            mReindexToken.cancel();
+            mReindexToken = null;
+        }
+        resetSearch();
+        final Thread search = mSearchThread;
+        showProgressBarVisibility(true);
+        mBody.setText("");
+        mAdapter.clear();
+        mExecutor.submitExclusive("reopen", new CancelToken(), new Runnable() {
+            public void run() {
+                try {
+                    if (search != null) {
+                        search.join();
+                    }
+                    if (encode != null) {
+                        mBook.setEncode(encode);
+                    }
+                    mBook.setFile(mBook.mFile,false);
+                    if (format >= 0) {
+                        mBook.setFormat(format);
+                    }
+                    mBook.setPage(here != null ? mBook.resolvePage(here) : page);
+                } catch (InterruptedException e) {
+                    Log.e(TAG, e.getMessage(), e);
+                } catch (IOException e) {
+                    Log.e(TAG, e.getMessage(), e);
+                }
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        mPendingLocator = here;
+                        doShow(0);
+                        indexBook();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Show the page again in another charset. The raw page bytes are still
+     * cached, so this only runs the decoder; a page index that depends on
+     * the charset is rebuilt afterwards in the background and the page count
+     * catches up then. Chapters and filters wait for that index.
+     */
+    private void switchCharset(final String encode) {
+        if (!mBook.canRedecode(encode)) {
+            reopen(encode, -1); // UTF-16 moves the page cuts, read it all again
+            return;
+        }
+        // chapters and filters are built again on the pages of the new index
+        if (mIndexToken != null) {
+            mIndexToken.cancel();
+            mIndexToken = null;
+        }
+        if (mReindexToken != null) {
+            mReindexToken.cancel();
+        }
+        final CancelToken token = new CancelToken();
+        mReindexToken = token;
+        mPendingLocator = visibleLocator();
+        mBook.setEncode(encode);
+        resetSearch();
+        doShow(0);
+        mExecutor.submit(BookExecutor.PRIORITY_BACKGROUND, "reindex", token, new Runnable() {
+            public void run() {
+                final Runnable install;
+                try {
+                    install = mBook.reindex();
+                } catch (IOException e) {
+                    Log.e(TAG, e.getMessage(), e);
+                    return;
+                }
+                if (install == null) {
+                    // the pages stay where they are, only the titles read differently
+                    runOnUiThread(new Runnable() {
+                        public void run() {
+                            if (!token.isCancelled()) {
+                                indexBook();
+                            }
+                        }
+                    });
+                    return;
+                }
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        if (token.isCancelled()) {
+                            return; // switched again or reopened since
+                        }
+                        // same place, in the page numbering of the new index
+                        Locator here = visibleLocator();
+                        install.run();
+                        if (here != null) {
+                            mBook.setPage(mBook.resolvePage(here));
+                        }
+                        mPendingLocator = here;
+                        doShow(0);
+                        indexBook(); // on the pages as they are cut now
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Index the book in the background: its chapter headings, unless it
+     * lists them itself, then the page filters that let a search skip
+     * pages. Both are kept, a book opened again only reads them back.
+     */
+    private void indexBook() {
+        if (mIndexToken != null) {
+            mIndexToken.cancel();
+        }
+        final CancelToken token = new CancelToken();
+        mIndexToken = token;
+        if (mBook.getTableOfContents().isEmpty()) {
+            indexChapters(token);
+        }
+        mExecutor.submit(BookExecutor.PRIORITY_BACKGROUND, "filters", token, new Runnable() {
+            public void run() {
+                try {
+                    PageFilters.build(mBook, token);
+                } catch (CancelledException e) {
+                    // built by the next run
+                } catch (Exception e) {
+                    Log.e(TAG, e.getMessage(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Look for chapter headings, or read back the ones found before. What
+     * is found so far shows up in the jump dialog while the rest of the
+     * book is scanned.
+     */
+    private void indexChapters(final CancelToken token) {
+        String patterns = getSharedPreferences(Constatnts.PREF_TAG, Context.MODE_PRIVATE)
+                .getString("pref_chapter_patterns", null);
+        final ChapterIndexer indexer = new ChapterIndexer(mBook, patterns == null
+                ? ChapterIndexer.DEFAULT_PATTERNS : patterns.split("\\s*\n\\s*"));
+        final ChapterIndexer.Listener listener = new ChapterIndexer.Listener() {
+            public void onChapters(final List<Chapter> chapters, boolean done) {
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        if (token.isCancelled()) {
+                            return; // found in text that is not shown any more
+                        }
+                        mBook.setFoundChapters(chapters);
+                        if (mJumpAdapter != null) {
+                            mJumpAdapter.refresh();
+                        }
+                    }
+                });
+            }
+        };
+        mExecutor.submit(BookExecutor.PRIORITY_BACKGROUND, "chapters", token, new Runnable() {
+            public void run() {
+                try {
+                    indexer.run(token, listener);
+                } catch (CancelledException e) {
+                    // picked up again by the next run
+                } catch (Exception e) {
+                    Log.e(TAG, e.getMessage(), e);
+                }
+            }
+        });
+    }
+
+    private void showText(CharSequence txt, int offset) {
+        // attach the layout built ahead by prefetchAround, if it still fits
+        mBody.setText(txt, mLayouts.get(mBook.mPage, txt, mBody.getPaint(), mBody.getTextWidth()));
+        if (mPendingLocator != null) {
+            offset = mBook.resolveOffset(mPendingLocator, mBook.mPage, txt);
+            mPendingLocator = null;
+        }
+        scrollToOffset(offset);
+        setPageTitle();
+    }
+
+    private void scrollToOffset(final int offset) {
+        if (offset > 0) {
+            new Handler().postDelayed(new Runnable() {
+                public void run() {
+                    Layout layout = mBody.getLayout();
+                    if (layout == null) {
+                        return;
+                    }
+                    int line = layout.getLineForOffset(offset);
+                    int scollY = topPanel.getHeight() + mBody.getPaddingTop()
+                            + layout.getLineTop(line);
+                    scrollview.scrollTo(0, scollY);
+                }
+            }, 50);
+        }
+    }
+
+    /** The layout at the top of the screen: the page, or the first list row. */
+    private Layout visibleLayout() {
+        if (isContinuous) {
+            TextView row = (TextView) mList.getChildAt(0);
+            return row == null ? null : row.getLayout();
+        }
+        return mBody.getLayout();
+    }
+
+    private CharSequence visibleText() {
+        return isContinuous ? ((TextView) mList.getChildAt(0)).getText() : mBody.getText();
+    }
+
+    /** The char offset of the top line showing, 0 if nothing is laid out. */
+    private int visibleOffset() {
+        Layout layout = visibleLayout();
+        if (layout == null) {
+            return 0;
+        }
+        int y;
+        if (isContinuous) {
+            // the first row showing is the current page, measure from its top
+            y = -mList.getChildAt(0).getTop();
+        } else {
+            y = scrollview.getScrollY() - topPanel.getHeight() - mBody.getPaddingTop();
+        }
+        return layout.getLineStart(layout.getLineForVertical(Math.max(y, 0)));
+    }
+
+    /** The reading position as a locator, null before the page is shown. */
+    private Locator visibleLocator() {
+        Layout layout = visibleLayout();
+        if (layout == null || visibleText().length() == 0) {
+            return null;
+        }
+        return mBook.locate(mBook.mPage, visibleOffset(), visibleText());
+    }
+
+    /**
+     * Switch between page by page reading in the scroll view and continuous
+     * reading in the list. Only the visible view decodes anything.
+     */
+    private void setContinuous(boolean continuous) {
+        isContinuous = continuous;
+        scrollview.setVisibility(continuous ? View.GONE : View.VISIBLE);
+        mList.setVisibility(continuous ? View.VISIBLE : View.GONE);
+        mListIndex.setVisibility(continuous ? View.VISIBLE : View.GONE);
+        if (continuous) {
+            mBody.setText("");
+        } else {
+            mAdapter.clear();
+        }
+    }
+
+    /**
+     * Put the current page at the top of the list, then scroll to the line of
+     * the offset once that page is decoded and laid out.
+     */
+    private void showContinuous(final int offset) {
+        showProgressBarVisibility(false);
+        mAdapter.reset();
+        mList.setSelection(mBook.mPage);
+        setPageTitle();
+        final Locator locator = mPendingLocator;
+        mPendingLocator = null;
+        if (offset <= 0 && locator == null) {
+            return;
+        }
+        final int page = mBook.mPage;
+        final Handler handler = new Handler();
+        handler.postDelayed(new Runnable() {
+            int tries;
+            public void run() {
+                TextView row = (TextView) mList.getChildAt(0);
+                if (row == null || row.getLayout() == null || row.length() == 0) {
+                    if (++tries < 40) {
+                        handler.postDelayed(this, 50);
+                    }
+                    return;
+                }
+                int at = locator != null
+                        ? mBook.resolveOffset(locator, page, row.getText()) : offset;
+                int line = row.getLayout().getLineForOffset(at);
+                mList.setSelectionFromTop(page, -row.getLayout().getLineTop(line));
+            }
+        }, 50);
+    }
+
+    /**
+     * Decode the next and the previous page into the book's page cache while
+     * this one is being read, so turning the page is only a cache lookup.
+     */
+    private void prefetchAround(final int page) {
+        final CancelToken token = new CancelToken();
+        mPrefetchToken = token;
+        // paint and width as they are now, the worker lays pages out with them
+        final TextPaint paint = mBody.copyPaint();
+        final int width = mBody.getTextWidth();
+        mExecutor.submit(BookExecutor.PRIORITY_PREFETCH, "prefetch", token, new Runnable() {
+            public void run() {
+                int[] pages = { page + 1, page - 1 };
+                for (int p : pages) {
+                    if (token.isCancelled()) {
+                        return;
+                    }
+                    try {
+                        mBook.prefetch(p, token);
+                        CharSequence text = mBook.getPageCache().peek(p);
+                        if (text != null && width > 0 && !isContinuous) {
+                            mLayouts.prepare(p, text, paint, width);
+                        }
+                    } catch (CancelledException e) {
+                        return;
+                    } catch (Exception e) {
+                        Log.d(TAG, e.getMessage(), e);
+                    }
+                }
+            }
+        });
+    }
+
 //    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
 //        if (requestCode == REQUEST_COLOR && resultCode == Activity.RESULT_OK) {
 //            int index = data.getIntExtra("DATA", -1);
@@ -481,17 +943,22 @@ public class PalmBookReaderActivity extends Activity implements
         Integer[] color = new ColorUtil(this).getColor(colorIndex);
         mBody.setTextColor(color[0]);
         mBody.setBackgroundColor(color[1]);
+        mAdapter.setColors(color[0], color[1]);
+        mList.setBackgroundColor(color[1]);
+
+        boolean continuous = pref.getBoolean("pref_continuous", false);
+        if (continuous != isContinuous) {
+            setContinuous(continuous);
+            doShow(0);
+        }
         
     }
     
     @Override
     protected void onPause() {
     	super.onPause();
-    	  int y = Math.max(0, scrollview.getScrollY() - topPanel.getHeight());
-          int line = y / mBody.getLineHeight();
-      
-          if(mBody.getLayout() !=null){
-	       	   int offset = mBody.getLayout().getLineStart(line);
+          if(visibleLayout() !=null){
+	       	   int offset = visibleOffset();
 	          Uri pdbUri = Uri.parse(BookColumn.CONTENT_URI + "/" + mBook.mID);
 	          ContentValues values = new ContentValues();
 	          // values.put(BookColumn.NAME, mBook.mName);
@@ -499,6 +966,10 @@ public class PalmBookReaderActivity extends Activity implements
 	          values.put(BookColumn.ENDCODE, mBook.mEncode);
 	          values.put(BookColumn.FORMAT, mBook.mFormat);
 	          values.put(BookColumn.LAST_OFFSET, offset);
+	          Locator locator = visibleLocator();
+	          if (locator != null) {
+	              values.put(BookColumn.LOCATOR, locator.toString());
+	          }
 	
 	          Long now = Long.valueOf(System.currentTimeMillis());
 	          values.put(BookColumn.CREATE_DATE, now);
@@ -518,7 +989,16 @@ public class PalmBookReaderActivity extends Activity implements
         // }
 
     
-        pHandler.getLooper().quit();
+        Log.d(TAG, mBook.getPageCache().toString());
+        Log.d(TAG, mBody.getLayoutStats());
+        if (mIndexToken != null) {
+            mIndexToken.cancel();
+        }
+        if (mReindexToken != null) {
+            mReindexToken.cancel();
+        }
+        resetSearch();
+        mExecutor.shutdown();
         super.onDestroy();
 
     }
@@ -527,6 +1007,7 @@ public class PalmBookReaderActivity extends Activity implements
     private static final int FORMAT_DIALOG = 1;
     private static final int BRIGHTNESS_DIALOG = 2;
     private static final int INDEX_DIALOG=3;
+    private static final int SEARCH_DIALOG = 4;
     @Override
     protected Dialog onCreateDialog(int id) {
 
@@ -548,18 +1029,7 @@ public class PalmBookReaderActivity extends Activity implements
                             String encode = PalmBookReaderActivity.this
                                     .getResources().getStringArray(
                                             R.array.charset)[which];
-                            try {
-                                mBody.setText("");
-                                int page = mBook.mPage;
-                                mBook.setEncode(encode);
-                                mBook.setFile(mBook.mFile,false);
-
-                                mBook.setPage(page);
-                                mBody.setText(mBook.getText());
-                            } catch (Exception e) {
-                                Log.e(TAG, e.getMessage(), e);
-                            }
-
+                            switchCharset(encode);
                             dialog.dismiss();
                         }
                     }).create();
@@ -573,17 +1043,7 @@ public class PalmBookReaderActivity extends Activity implements
                             // String encode = PalmBookReaderActivity.this
                             // .getResources().getStringArray(
                             // R.array.charset)[which];
-                            try {
-                                mBody.setText("");
-                                int page = mBook.mPage;
-                                mBook.setFile(mBook.mFile,false);
-                                mBook.setFormat(which);
-                                mBook.setPage(page);                           
-                                mBody.setText(mBook.getText());
-                            } catch (Exception e) {
-                                Log.e(TAG, e.getMessage(), e);
-                            }
-
+                            reopen(null, which);
                             dialog.dismiss();
                         }
                     }).create();
@@ -594,39 +1054,195 @@ public class PalmBookReaderActivity extends Activity implements
           
             
         case INDEX_DIALOG:
-        	CharSequence[] pageList = new CharSequence[mBook.getPageCount()];
-        	String prefix = getString(R.string.page);
-        	for(int j=0;j<pageList.length;j++){
-        		pageList[j] = String.format(prefix, j+1);
-        	}
-        	
-        	
-            return new AlertDialog.Builder(this)
+            // labels are made by the adapter as rows scroll into view
+            View jumpView = getLayoutInflater().inflate(R.layout.jump_dialog, null);
+            final SeekBar seek = (SeekBar) jumpView.findViewById(R.id.jump_seek);
+            final TextView position = (TextView) jumpView.findViewById(R.id.jump_position);
+            ListView list = (ListView) jumpView.findViewById(R.id.jump_list);
+            mJumpAdapter = new JumpAdapter(this, mBook);
+            list.setAdapter(mJumpAdapter);
+            seek.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+                public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                    showJumpPosition(position, progress);
+                }
+
+                public void onStartTrackingTouch(SeekBar seekBar) {
+                }
+
+                public void onStopTrackingTouch(SeekBar seekBar) {
+                }
+            });
+
+            final AlertDialog jumpDialog = new AlertDialog.Builder(this)
                 .setTitle(R.string.jump_to)
-                .setItems(pageList, new DialogInterface.OnClickListener() {
+                .setView(jumpView)
+                .setPositiveButton(R.string.jump_go, new DialogInterface.OnClickListener() {
                     public void onClick(DialogInterface dialog, int which) {
-                          mBody.setText("");
-                          mBook.setPage(which);
-                          if (mBook.isProgressing()) {
-                                   mBook.stop();
-                          }
-                          doShow(0);
-                          if (mBottomNext.isFocusable()) {
-                              mBottomNext.setFocusable(false);
-                           }
-                          scrollview.scrollTo(0, 0);
+                        jumpTo(mBook.pageAt(seek.getProgress() / (float) seek.getMax()), null);
                     }
                 })
                 .create();
-            
-            
-
+            list.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+                public void onItemClick(AdapterView<?> parent, View view, int which, long id) {
+                    jumpDialog.dismiss();
+                    jumpTo(mJumpAdapter.getPage(which), mJumpAdapter.getLocator(which));
+                }
+            });
+            return jumpDialog;
+
+        case SEARCH_DIALOG:
+            View searchView = getLayoutInflater().inflate(R.layout.search_dialog, null);
+            final EditText query = (EditText) searchView.findViewById(R.id.search_query);
+            mSearchStatus = (TextView) searchView.findViewById(R.id.search_status);
+            ListView hitList = (ListView) searchView.findViewById(R.id.search_list);
+            mHitAdapter = new ArrayAdapter<CharSequence>(this,
+                    android.R.layout.simple_list_item_1);
+            hitList.setAdapter(mHitAdapter);
+            searchView.findViewById(R.id.search_go).setOnClickListener(new OnClickListener() {
+                public void onClick(View v) {
+                    search(query.getText().toString());
+                }
+            });
+            query.setOnEditorActionListener(new TextView.OnEditorActionListener() {
+                public boolean onEditorAction(TextView v, int actionId, KeyEvent event) {
+                    search(query.getText().toString());
+                    return true;
+                }
+            });
+            final AlertDialog searchDialog = new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_search)
+                .setView(searchView)
+                .create();
+            hitList.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+                public void onItemClick(AdapterView<?> parent, View view, int which, long id) {
+                    searchDialog.dismiss();
+                    BookSearcher.Hit hit = mHits.get(which);
+                    jumpTo(hit.mPage, hit.mLocator);
+                }
+            });
+            return searchDialog;
         }
         return null;
     }
 
 
 
+    @Override
+    protected void onPrepareDialog(int id, Dialog dialog) {
+        super.onPrepareDialog(id, dialog);
+        if (id == INDEX_DIALOG) {
+            // the page count and chapters may have changed since it was made
+            mJumpAdapter.refresh();
+            ListView list = (ListView) dialog.findViewById(R.id.jump_list);
+            list.setSelection(mJumpAdapter.getPosition(mBook.mPage));
+            SeekBar seek = (SeekBar) dialog.findViewById(R.id.jump_seek);
+            seek.setProgress(Math.round(mBook.fractionOf(mBook.mPage) * seek.getMax()));
+            showJumpPosition((TextView) dialog.findViewById(R.id.jump_position),
+                    seek.getProgress());
+        }
+    }
+
+    private void showJumpPosition(TextView position, int progress) {
+        float fraction = progress / 1000f;
+        position.setText(getString(R.string.jump_position, fraction * 100,
+                mBook.pageAt(fraction) + 1, mBook.getPageCount()));
+    }
+
+    /**
+     * Search the whole book on a thread of its own, so it neither waits for
+     * nor holds up the page and index jobs. Hits show up as they are found.
+     */
+    private void search(String text) {
+        resetSearch();
+        if (text.length() == 0) {
+            return;
+        }
+        final CancelToken token = new CancelToken();
+        mSearchToken = token;
+        final BookSearcher searcher = new BookSearcher(mBook, text);
+        final BookSearcher.Listener listener = new BookSearcher.Listener() {
+            public void onHit(final BookSearcher.Hit hit) {
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        if (!token.isCancelled()) {
+                            mHits.add(hit);
+                            mHitAdapter.add(hitLabel(hit));
+                        }
+                    }
+                });
+            }
+
+            public void onProgress(final int pages, final int pageCount) {
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        if (!token.isCancelled()) {
+                            mSearchStatus.setText(getString(R.string.search_progress,
+                                    pages * 100 / Math.max(1, pageCount), mHits.size()));
+                        }
+                    }
+                });
+            }
+        };
+        mSearchThread = new Thread("search") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    final boolean all = searcher.run(token, listener);
+                    runOnUiThread(new Runnable() {
+                        public void run() {
+                            if (!token.isCancelled()) {
+                                mSearchStatus.setText(getString(all ? R.string.search_done
+                                        : R.string.search_more, mHits.size()));
+                            }
+                        }
+                    });
+                } catch (CancelledException e) {
+                    // a new search, or the book changed
+                } catch (Exception e) {
+                    Log.e(TAG, e.getMessage(), e);
+                }
+            }
+        };
+        mSearchThread.start();
+    }
+
+    /** Stop the search and drop its hits, they point into other pages now. */
+    private void resetSearch() {
+        if (mSearchToken != null) {
+            mSearchToken.cancel();
+            mSearchToken = null;
+        }
+        mHits.clear();
+        if (mHitAdapter != null) {
+            mHitAdapter.clear();
+            mSearchStatus.setText("");
+        }
+    }
+
+    /** "p. 12  …snippet…" with the query in bold. */
+    private CharSequence hitLabel(BookSearcher.Hit hit) {
+        String prefix = (hit.mPage + 1) + "  ";
+        SpannableString label = new SpannableString(prefix + hit.mSnippet);
+        int start = prefix.length() + hit.mSnippetStart;
+        int end = Math.min(label.length(), start + hit.mLocator.mFingerprint.length());
+        label.setSpan(new StyleSpan(Typeface.BOLD), start, end,
+                Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        return label;
+    }
+
+    /** @param locator where in the page to scroll to, or null for its top */
+    private void jumpTo(int page, Locator locator) {
+        mBody.setText("");
+        mBook.setPage(page);
+        mPendingLocator = locator;
+        doShow(0);
+        if (mBottomNext.isFocusable()) {
+            mBottomNext.setFocusable(false);
+        }
+        scrollview.scrollTo(0, 0);
+    }
+
     @Override
     public void onClick(View view) {
         if (view.getId() == R.id.prev_button
@@ -634,9 +1250,6 @@ public class PalmBookReaderActivity extends Activity implements
             if (mBook.hasPrevPage()) {
                 mBody.setText("");
                 mBook.prevPage();
-                if (mBook.isProgressing()) {
-                    mBook.stop();
-                }
                 doShow(0);
                 if (mBottomNext.isFocusable()) {
                     mBottomNext.setFocusable(false);
@@ -4,6 +4,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.preference.CheckBoxPreference;
+import android.preference.EditTextPreference;
 import android.preference.Preference;
 import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.PreferenceActivity;
@@ -11,6 +12,7 @@ import android.preference.PreferenceCategory;
 import android.preference.PreferenceManager;
 import android.preference.PreferenceScreen;
 
+import com.misgod.pdbreader.pdb.ChapterIndexer;
 import com.misgod.pdbreader.util.Constatnts;
 
 public class SettingActivity extends PreferenceActivity {
@@ -88,7 +90,50 @@ public class SettingActivity extends PreferenceActivity {
         volumeScrollPref.setTitle(R.string.setting_volume);
         volumeScrollPref.setSummary(R.string.setting_volume_desc);
         scrollPrefCat.addPreference(volumeScrollPref);
+        
+        
+        // continuousPref preference
+        CheckBoxPreference continuousPref = new CheckBoxPreference(this);
+        continuousPref.setKey("pref_continuous");
+        continuousPref.setTitle(R.string.setting_continuous);
+        continuousPref.setSummary(R.string.setting_continuous_desc);
+        scrollPrefCat.addPreference(continuousPref);
+
+        PreferenceCategory chapterPrefCat = new PreferenceCategory(this);
+        chapterPrefCat.setTitle(R.string.setting_chapter);
+        root.addPreference(chapterPrefCat);
+
+        // chapterPatternsPref preference, one regular expression a line
+        EditTextPreference chapterPatternsPref = new EditTextPreference(this);
+        chapterPatternsPref.setKey("pref_chapter_patterns");
+        chapterPatternsPref.setTitle(R.string.setting_chapter_patterns);
+        chapterPatternsPref.setSummary(R.string.setting_chapter_patterns_desc);
+        chapterPatternsPref.setDialogTitle(R.string.setting_chapter_patterns);
+        chapterPatternsPref.setDefaultValue(join(ChapterIndexer.DEFAULT_PATTERNS));
+        chapterPrefCat.addPreference(chapterPatternsPref);
+
+        PreferenceCategory libraryPrefCat = new PreferenceCategory(this);
+        libraryPrefCat.setTitle(R.string.setting_library);
+        root.addPreference(libraryPrefCat);
+
+        // fulltextPref preference
+        CheckBoxPreference fulltextPref = new CheckBoxPreference(this);
+        fulltextPref.setKey("pref_fulltext");
+        fulltextPref.setTitle(R.string.setting_fulltext);
+        fulltextPref.setSummary(R.string.setting_fulltext_desc);
+        libraryPrefCat.addPreference(fulltextPref);
 
         return root;
     }
+
+    static String join(String[] lines) {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(line);
+        }
+        return text.toString();
+    }
 }
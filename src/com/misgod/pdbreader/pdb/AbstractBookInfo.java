@@ -2,7 +2,11 @@ package com.misgod.pdbreader.pdb;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
+import com.misgod.pdbreader.util.CancelToken;
+import com.misgod.pdbreader.util.CharsetDetector;
 
 public abstract class AbstractBookInfo {
     public long mID;
@@ -11,6 +15,20 @@ public abstract class AbstractBookInfo {
     public File mFile;
     public String mEncode;
     public int mFormat;
+    private CancelToken mLoadToken;
+    /** a few pages around the current one, see {@link #prefetch} */
+    private final PageCache mCache = new PageCache(PAGE_CACHE_CHARS);
+    private static final int PAGE_CACHE_CHARS = 96 * 1024;
+    /** the same pages undecoded, kept across charset switches */
+    private final RawPageCache mRaw = new RawPageCache(RAW_CACHE_BYTES);
+    private static final int RAW_CACHE_BYTES = 256 * 1024;
+    /** headings found in the text by a {@link ChapterIndexer} */
+    private volatile List<Chapter> mFoundChapters = Collections.emptyList();
+
+    /** Receives pages in order from {@link #scanPages}. */
+    public interface PageVisitor {
+        void visit(int page, CharSequence text) throws Exception;
+    }
     
     public AbstractBookInfo(long id){
         mID = id;
@@ -18,6 +36,8 @@ public abstract class AbstractBookInfo {
 
     public void setEncode( String encode){
         mEncode = encode;
+        mCache.clear();
+        mFoundChapters = Collections.emptyList(); // titles were decoded the old way
     }
     
     public abstract boolean supportFormat();
@@ -30,6 +50,17 @@ public abstract class AbstractBookInfo {
     
     public void setFormat(int format){
         mFormat = format;
+        pagesChanged();
+    }
+
+    /**
+     * Pages now map to other bytes: a new page index or format. Called once
+     * the new index is in place, so nothing read before it is kept.
+     */
+    protected void pagesChanged() {
+        mRaw.clear();
+        mCache.clear();
+        mFoundChapters = Collections.emptyList();
     }
     
     public void setPage(int page) {
@@ -54,11 +85,303 @@ public abstract class AbstractBookInfo {
         setPage(mPage - 1);
     }
 
-    public abstract CharSequence getText() throws Exception;
-    
-    public abstract boolean isProgressing();
-    
-    public abstract void stop();
+    /**
+     * Decode one page, from its raw bytes if they are still cached. Like
+     * everything below, it must not touch {@link #mPage}: it may run on a
+     * worker thread while the UI moves on.
+     */
+    public CharSequence getText(int page, CancelToken token) throws Exception {
+        int generation = mRaw.getGeneration();
+        byte[] data = mRaw.get(page);
+        if (data == null) {
+            data = readBytes(page, token);
+            mRaw.put(generation, page, data);
+        }
+        token.throwIfCancelled();
+        return decode(data, token);
+    }
+
+    /**
+     * The bytes of a page as stored, decompressed but not decoded. They must
+     * not depend on the charset. Poll the token between chunks of work.
+     */
+    protected abstract byte[] readBytes(int page, CancelToken token) throws Exception;
+
+    /** Turn page bytes into text with the current charset. */
+    protected abstract CharSequence decode(byte[] data, CancelToken token) throws Exception;
+
+    /**
+     * Whether the pages read with the current charset can be decoded with
+     * another one as they are, without rebuilding the page index first.
+     */
+    public boolean canRedecode(String encode) {
+        return true;
+    }
+
+    /**
+     * Build the page index again for the current charset, when it depends
+     * on it. Slow, run it off the UI thread; the returned task installs the
+     * new index and must run where pages are shown, so no page is located
+     * with the old text against the new index. Null if there is nothing to
+     * rebuild.
+     */
+    public Runnable reindex() throws IOException {
+        return null;
+    }
+
+    /**
+     * Chapters in page order, empty if the book has none the format can tell
+     * and none were found in its text (yet).
+     */
+    public List<Chapter> getChapters() {
+        List<Chapter> toc = getTableOfContents();
+        return toc.isEmpty() ? mFoundChapters : toc;
+    }
+
+    /**
+     * The chapters the book lists itself, known as soon as it is opened and
+     * needing no scan of the text; empty if the format has no such list.
+     */
+    public List<Chapter> getTableOfContents() {
+        return Collections.emptyList();
+    }
+
+    /** Publish headings found in the text, see {@link ChapterIndexer}. */
+    public void setFoundChapters(List<Chapter> chapters) {
+        mFoundChapters = chapters;
+    }
+
+    /**
+     * Reads the pages of a whole book scan in two steps: {@link #read} in
+     * page order on the scanning thread, then {@link #unpack} on any thread,
+     * several pages at once. By default each page is read whole in unpack.
+     */
+    public class PageSource {
+        public int getPageCount() {
+            return AbstractBookInfo.this.getPageCount();
+        }
+
+        /** The page as stored, for {@link #unpack}. */
+        public byte[] read(int page, CancelToken token) throws Exception {
+            return null;
+        }
+
+        /** The bytes of the page, ready to decode. Must be thread safe. */
+        public byte[] unpack(int page, byte[] stored, CancelToken token) throws Exception {
+            return readBytes(page, token);
+        }
+
+        /**
+         * Find the search pattern in a page, by default in the unpacked
+         * bytes. Must be thread safe.
+         */
+        PageScan scan(int page, byte[] stored, Horspool matcher, CancelToken token)
+                throws Exception {
+            return PageScan.of(stored, unpack(page, stored, token), matcher);
+        }
+
+        /**
+         * Where a byte of the unpacked page is in the uncompressed stream of
+         * the book, for a {@link Locator}; in the page if it has no offset.
+         * Called on the searching thread only.
+         */
+        long streamOffset(int page, int offset, CancelToken token) throws Exception {
+            long start = getPageStart(page);
+            return start >= 0 ? start + offset : offset;
+        }
+
+        /** False if every page has to be read, in order, to get to the next. */
+        public boolean canSkip() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    /** Open the pages for a scan of the whole book, see {@link BookSearcher}. */
+    public PageSource openPages() throws IOException {
+        return new PageSource();
+    }
+
+    /**
+     * Decode pages in order from {@code from} to the end for a background
+     * scan. The page caches are left alone, they hold what is being read.
+     * Formats with a cheaper way through the whole book override this.
+     */
+    public void scanPages(int from, PageVisitor visitor, CancelToken token) throws Exception {
+        for (int page = from; page < getPageCount(); page++) {
+            token.throwIfCancelled();
+            visitor.visit(page, decode(readBytes(page, token), token));
+        }
+    }
+
+    /**
+     * Sample the text to guess its charset, null when the format declares
+     * its own. Called once per book, after setFile(file, true).
+     */
+    public CharsetDetector.Result detectCharset() throws IOException {
+        return null;
+    }
+
+    public PageCache getPageCache() {
+        return mCache;
+    }
+
+    /** A decoded page if it is cached, counted as a hit or a miss. */
+    public CharSequence getCachedText(int page) {
+        return mCache.get(page);
+    }
+
+    /** Decode a page and keep it in the page cache. */
+    public CharSequence loadText(int page, CancelToken token) throws Exception {
+        int generation = mCache.getGeneration();
+        CharSequence text = getText(page, token);
+        mCache.put(generation, page, text);
+        return text;
+    }
+
+    /** Read ahead: decode a page into the cache unless it is there already. */
+    public void prefetch(int page, CancelToken token) throws Exception {
+        if (page >= 0 && page < getPageCount() && !mCache.contains(page)) {
+            loadText(page, token);
+        }
+    }
+
+    /**
+     * Where a page starts in the uncompressed byte stream of the book, -1
+     * when pages are whole records and offsets are kept per record.
+     */
+    protected long getPageStart(int page) {
+        return -1;
+    }
+
+    /**
+     * A hash of where the pages are cut, for sidecars that hold page
+     * numbers: it changes when a reindex moves the cuts, even if the page
+     * count stays the same. Books paged by record only hash the count.
+     */
+    long getPageCutsKey() {
+        int count = getPageCount();
+        long key = 0xcbf29ce484222325L ^ count;
+        if (getPageStart(0) >= 0) {
+            for (int page = 0; page <= count; page++) {
+                key = (key ^ getPageStart(page)) * 0x100000001b3L;
+            }
+        }
+        return key;
+    }
+
+    /** The page holding a byte of the uncompressed stream, -1 if not paged by bytes. */
+    protected int findPage(long offset) {
+        return -1;
+    }
+
+    /**
+     * The page a fraction of the way into the book: by byte offset where
+     * pages have one, so the fraction means the same for any page size,
+     * by page number otherwise.
+     */
+    public int pageAt(float fraction) {
+        int count = getPageCount();
+        if (count == 0) {
+            return 0;
+        }
+        fraction = Math.max(0, Math.min(fraction, 1));
+        long start = getPageStart(0);
+        if (start >= 0) {
+            long end = getPageStart(count);
+            return Math.min(findPage(start + (long) ((end - start) * fraction)), count - 1);
+        }
+        return Math.min((int) (count * fraction), count - 1);
+    }
+
+    /** How far into the book a page starts, the inverse of {@link #pageAt}. */
+    public float fractionOf(int page) {
+        int count = getPageCount();
+        if (count == 0) {
+            return 0;
+        }
+        long start = getPageStart(0);
+        if (start >= 0) {
+            long end = getPageStart(count);
+            return end > start ? (float) (getPageStart(page) - start) / (end - start) : 0;
+        }
+        return (float) page / count;
+    }
+
+    /** The charset the page bytes were decoded with. */
+    protected String getStreamCharset() {
+        return mEncode;
+    }
+
+    /** The locator of a char offset in a decoded page. */
+    public Locator locate(int page, int offset, CharSequence text) {
+        offset = Math.max(0, Math.min(offset, text.length()));
+        long bytes = byteOffset(page, text, offset);
+        return Locator.at(page, Math.max(getPageStart(page), 0) + bytes, text, offset);
+    }
+
+    /**
+     * Bytes from the start of a page to a char of its decoded text. By
+     * default the text is encoded back, which is off where decode changes
+     * more than the charset; such books map through the page bytes.
+     */
+    protected long byteOffset(int page, CharSequence text, int chars) {
+        return Locator.encodedLength(text, chars, getStreamCharset());
+    }
+
+    /** The char of a decoded page at about a byte offset from its start. */
+    protected int charOffset(int page, CharSequence text, long bytes) {
+        return Locator.charsWithin(text, bytes, getStreamCharset());
+    }
+
+    /**
+     * The bytes of a page for mapping offsets: cached if they are, read
+     * again otherwise. Null if they cannot be read.
+     */
+    protected byte[] pageBytes(int page) {
+        byte[] data = mRaw.get(page);
+        if (data == null) {
+            try {
+                data = readBytes(page, new CancelToken());
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        return data;
+    }
+
+    /** The page a locator points into, found by its byte offset if pages are. */
+    public int resolvePage(Locator locator) {
+        int page = findPage(locator.mOffset);
+        if (page < 0) {
+            page = locator.mRecord;
+        }
+        return Math.max(0, Math.min(page, getPageCount() - 1));
+    }
+
+    /** The char offset a locator points at, once its page is decoded. */
+    public int resolveOffset(Locator locator, int page, CharSequence text) {
+        long start = getPageStart(page);
+        int estimate = 0;
+        if (start >= 0 || page == locator.mRecord) {
+            estimate = charOffset(page, text, locator.mOffset - Math.max(start, 0));
+        }
+        return locator.match(text, estimate);
+    }
+
+    /**
+     * Start a new page load: the token of the previous load (if any) is
+     * cancelled, so only the newest request runs to completion.
+     */
+    public synchronized CancelToken newLoadToken() {
+        if (mLoadToken != null) {
+            mLoadToken.cancel();
+        }
+        mLoadToken = new CancelToken();
+        return mLoadToken;
+    }
     
     public static AbstractBookInfo newBookInfo(File f,long id){
        String name =  f.getName();
@@ -66,7 +389,8 @@ public abstract class AbstractBookInfo {
            return new PDBBookInfo(id);
        }else if(name.toLowerCase().endsWith("updb")){
            return new PDBBookInfo(id);
-       }else if(name.toLowerCase().endsWith("txt")){
+       }else if(name.toLowerCase().endsWith("txt") || name.toLowerCase().endsWith(".txt.gz")
+               || name.toLowerCase().endsWith(".zip")){
            return new TxtBookInfo(id);
        }else if(name.toLowerCase().endsWith("htm") || name.toLowerCase().endsWith("html")){
            return new HtmlBookInfo(id);
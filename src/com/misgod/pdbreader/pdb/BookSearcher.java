@@ -0,0 +1,311 @@
+package com.misgod.pdbreader.pdb;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.misgod.pdbreader.util.CancelToken;
+import com.misgod.pdbreader.util.ConvertUtil;
+
+/**
+ * Finds a text in the whole book. Pages are scanned on a few threads ahead
+ * of the reporting (see {@link AbstractBookInfo.PageSource}), for the query
+ * encoded in the book's charset: with Boyer-Moore-Horspool over the
+ * decompressed bytes, or right in the compressed records of a PalmDoc (see
+ * {@link PalmDocMatcher}). Only a page with a match is decoded, to check the
+ * match starts on a character and to cut the snippet. Pages the book's
+ * {@link PageFilters} rule out are not read at all.
+ */
+public class BookSearcher {
+    private static final String TAG = "BookSearcher";
+    /** stop there, the hit list is for reading, not for counting */
+    public static final int MAX_HITS = 500;
+    private static final int SNIPPET_BEFORE = 12;
+    private static final int SNIPPET_AFTER = 30;
+    private static final int PROGRESS_PAGES = 32;
+    private static final int THREADS = Math.max(1,
+            Math.min(3, Runtime.getRuntime().availableProcessors()));
+    /** pages being decompressed ahead of the matcher */
+    private static final int AHEAD = THREADS * 2;
+
+    public static class Hit {
+        public final int mPage;
+        /** in bytes, in the whole uncompressed text as searched */
+        public final long mOffset;
+        public final String mSnippet;
+        /** where the query starts in the snippet */
+        public final int mSnippetStart;
+        /** to show the hit, see {@link AbstractBookInfo#resolveOffset} */
+        public final Locator mLocator;
+
+        Hit(int page, long offset, String snippet, int snippetStart, Locator locator) {
+            mPage = page;
+            mOffset = offset;
+            mSnippet = snippet;
+            mSnippetStart = snippetStart;
+            mLocator = locator;
+        }
+    }
+
+    public interface Listener {
+        /** Called on the searching thread, in book order. */
+        void onHit(Hit hit);
+
+        /** Every few pages, and once at the end. */
+        void onProgress(int pages, int pageCount);
+    }
+
+    /** A scanned page, unpacked and decoded only once it has a match. */
+    private class Page {
+        final int page;
+        final long start;
+        final PageScan scan;
+        private final AbstractBookInfo.PageSource source;
+        private CharSequence text;
+        // how far the text was walked to turn byte offsets into chars
+        private int walkedChars;
+        private long walkedBytes;
+
+        Page(int page, long start, PageScan scan, AbstractBookInfo.PageSource source) {
+            this.page = page;
+            this.start = start;
+            this.scan = scan;
+            this.source = source;
+        }
+
+        CharSequence text(CancelToken token) throws Exception {
+            if (text == null) {
+                if (scan.mData == null) {
+                    scan.mData = source.unpack(page, scan.mStored, token);
+                }
+                text = ConvertUtil.decode(scan.mData, 0, scan.mData.length, mCharset, token);
+            }
+            return text;
+        }
+
+        /** The char at a byte offset, -1 if the offset is inside a char. */
+        int charAt(int offset, CancelToken token) throws Exception {
+            CharSequence text = text(token);
+            if (offset < walkedBytes) {
+                walkedChars = 0;
+                walkedBytes = 0;
+            }
+            CharSequence rest = text.subSequence(walkedChars, text.length());
+            int chars = Locator.charsWithin(rest, offset - walkedBytes, mCharset);
+            walkedBytes += Locator.encodedLength(rest, chars, mCharset);
+            walkedChars += chars;
+            return walkedBytes == offset ? walkedChars : -1;
+        }
+    }
+
+    private static final ThreadFactory UNPACK_THREADS = new ThreadFactory() {
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread("search-unpack") {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            };
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private final AbstractBookInfo mBook;
+    private final String mQuery;
+    private final String mCharset;
+    private final byte[] mPattern;
+    private final Horspool mMatcher;
+
+    private int mHits;
+    private int mSkipped;
+    private long mFirstHitMillis = -1;
+    private long mMillis;
+
+    public BookSearcher(AbstractBookInfo book, String query) {
+        mBook = book;
+        mQuery = query;
+        mCharset = book.getStreamCharset();
+        mPattern = Locator.toBytes(query, mCharset);
+        mMatcher = new Horspool(mPattern);
+    }
+
+    public int getHitCount() {
+        return mHits;
+    }
+
+    /** From the start of the search to the first hit, -1 if none. */
+    public long getFirstHitMillis() {
+        return mFirstHitMillis;
+    }
+
+    public long getMillis() {
+        return mMillis;
+    }
+
+    /** Pages the {@link PageFilters} ruled out, never decompressed. */
+    public int getSkippedPages() {
+        return mSkipped;
+    }
+
+    /**
+     * Search the book from the start. Throws CancelledException once the
+     * token is cancelled.
+     *
+     * @return false if it stopped at {@link #MAX_HITS}
+     */
+    public boolean run(final CancelToken token, Listener listener) throws Exception {
+        long begin = System.nanoTime();
+        final AbstractBookInfo.PageSource source = mBook.openPages();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS, UNPACK_THREADS);
+        try {
+            int count = source.getPageCount();
+            int m = mMatcher.length();
+            if (m == 0) {
+                listener.onProgress(count, count);
+                return true;
+            }
+            PageFilters.Plan plan = source.canSkip() ? PageFilters.plan(mBook, mPattern) : null;
+            if (plan != null && plan.mScan.length != count) {
+                plan = null;
+            }
+            mSkipped = plan == null ? 0 : plan.mSkipped;
+            LinkedList<Future<PageScan>> ahead = new LinkedList<Future<PageScan>>();
+            LinkedList<Integer> aheadPages = new LinkedList<Integer>();
+            int next = nextPage(plan, 0, count);
+            int reported = 0;
+            long start = 0;
+            Page prev = null;
+            byte[] edge = new byte[0];
+            while (!ahead.isEmpty() || next < count) {
+                while (next < count && ahead.size() < AHEAD) {
+                    token.throwIfCancelled();
+                    final int page = next;
+                    final byte[] stored = source.read(page, token);
+                    ahead.add(pool.submit(new Callable<PageScan>() {
+                        public PageScan call() throws Exception {
+                            return source.scan(page, stored, mMatcher, token);
+                        }
+                    }));
+                    aheadPages.add(page);
+                    next = nextPage(plan, next + 1, count);
+                }
+                int i = aheadPages.removeFirst();
+                if (plan != null) {
+                    start = plan.mStart[i];
+                }
+                Page cur = new Page(i, start, get(ahead.removeFirst()), source);
+                start += cur.scan.mLength;
+
+                // a match across the cut starts in the last m - 1 bytes of
+                // the previous page and ends in the first of this one. The
+                // plan reads both pages of such a cut.
+                if (prev != null && prev.page == i - 1 && m > 1) {
+                    byte[] tail = prev.scan.mTail;
+                    byte[] head = cur.scan.mHead;
+                    if (edge.length < tail.length + head.length) {
+                        edge = new byte[tail.length + head.length];
+                    }
+                    System.arraycopy(tail, 0, edge, 0, tail.length);
+                    System.arraycopy(head, 0, edge, tail.length, head.length);
+                    int end = tail.length + head.length;
+                    int at = mMatcher.indexOf(edge, 0, end);
+                    while (at >= 0 && at < tail.length) {
+                        if (!hit(prev, prev.scan.mLength - tail.length + at, cur, begin, token,
+                                listener)) {
+                            listener.onProgress(i, count);
+                            return false;
+                        }
+                        at = mMatcher.indexOf(edge, at + 1, end);
+                    }
+                }
+                for (int k = 0; k < cur.scan.mMatchCount; k++) {
+                    if (!hit(cur, cur.scan.mMatches[k], null, begin, token, listener)) {
+                        listener.onProgress(i + 1, count);
+                        return false;
+                    }
+                }
+                prev = cur;
+                if (i + 1 - reported >= PROGRESS_PAGES) {
+                    reported = i + 1;
+                    listener.onProgress(reported, count);
+                }
+            }
+            listener.onProgress(count, count);
+            return true;
+        } finally {
+            pool.shutdownNow();
+            source.close();
+            mMillis = (System.nanoTime() - begin) / 1000000;
+            Log.d(TAG, mHits + " hits of \"" + mQuery + "\" in " + mMillis
+                    + "ms, first after " + mFirstHitMillis + "ms, " + mSkipped
+                    + " pages skipped");
+        }
+    }
+
+    /** The first page from {@code page} on the plan says to read. */
+    private static int nextPage(PageFilters.Plan plan, int page, int count) {
+        while (plan != null && page < count && !plan.mScan[page]) {
+            page++;
+        }
+        return page;
+    }
+
+    private static PageScan get(Future<PageScan> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * Report a match at a byte offset in a page, unless it starts inside a
+     * character. {@code next} is the following page for a match across the
+     * cut, null otherwise.
+     *
+     * @return false once there are {@link #MAX_HITS}
+     */
+    private boolean hit(Page page, int offset, Page next, long begin, CancelToken token,
+            Listener listener) throws Exception {
+        token.throwIfCancelled();
+        int at = page.charAt(offset, token);
+        if (at < 0) {
+            return true; // the bytes of the query, straddling two chars
+        }
+        CharSequence text = page.text(token);
+        int from = Math.max(0, at - SNIPPET_BEFORE);
+        int to = Math.min(text.length(), at + mQuery.length() + SNIPPET_AFTER);
+        StringBuilder snippet = new StringBuilder(text.subSequence(from, to));
+        if (next != null) {
+            CharSequence more = next.text(token);
+            snippet.append(more, 0, Math.min(more.length(), mQuery.length() + SNIPPET_AFTER));
+        }
+        for (int i = 0; i < snippet.length(); i++) {
+            if (Character.isWhitespace(snippet.charAt(i))) {
+                snippet.setCharAt(i, ' ');
+            }
+        }
+        // the query is the fingerprint, it is what the reader should land on
+        Locator locator = new Locator(page.page,
+                page.source.streamOffset(page.page, offset, token), mQuery);
+        if (++mHits == 1) {
+            mFirstHitMillis = (System.nanoTime() - begin) / 1000000;
+        }
+        listener.onHit(new Hit(page.page, page.start + offset, snippet.toString(),
+                at - from, locator));
+        return mHits < MAX_HITS;
+    }
+}
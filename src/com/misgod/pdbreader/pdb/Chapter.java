@@ -0,0 +1,26 @@
+package com.misgod.pdbreader.pdb;
+
+/**
+ * A chapter title and the page it starts on.
+ */
+public class Chapter {
+    public final String mTitle;
+    public final int mPage;
+    /** where the heading is, null if only its page is known */
+    public final Locator mLocator;
+
+    public Chapter(String title, int page) {
+        this(title, page, null);
+    }
+
+    public Chapter(String title, int page, Locator locator) {
+        mTitle = title;
+        mPage = page;
+        mLocator = locator;
+    }
+
+    @Override
+    public String toString() {
+        return mTitle;
+    }
+}
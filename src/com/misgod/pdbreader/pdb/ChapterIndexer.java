@@ -0,0 +1,248 @@
+package com.misgod.pdbreader.pdb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import android.util.Log;
+
+import com.misgod.pdbreader.util.CancelToken;
+import com.misgod.pdbreader.util.IndexUtil;
+
+/**
+ * Finds chapter headings ("第十二章", "第3回", "Chapter IV"...) by matching
+ * each line of the decoded text against a set of patterns. Runs page by page
+ * in the background, hands out what it found so far every few pages, and
+ * keeps its progress as a sidecar: a finished index is read back at once, an
+ * unfinished one resumes where it stopped.
+ */
+public class ChapterIndexer {
+    private static final String TAG = "ChapterIndexer";
+    private static final String KIND = "chapters";
+    /** 2: keyed on the page cuts too */
+    private static final int VERSION = 2;
+    /** pages between partial results, and between saves of the progress */
+    private static final int PUBLISH_PAGES = 32;
+    private static final int SAVE_PAGES = 256;
+    /** longer lines are prose, not headings */
+    private static final int MAX_TITLE = 60;
+
+    public static final String[] DEFAULT_PATTERNS = {
+            "第\\s*[0-9０-９零〇一二三四五六七八九十百千万萬两兩]+\\s*[章回节節卷集部篇].*",
+            "(Chapter|CHAPTER)\\s+([0-9]+|[IVXLCDM]+|[A-Za-z]+)\\b.*",
+            "(序章|楔子|尾声|尾聲|后记|後記|番外).*" };
+
+    public interface Listener {
+        /** Called on the indexing thread, with the chapters found so far. */
+        void onChapters(List<Chapter> chapters, boolean done);
+    }
+
+    private final AbstractBookInfo mBook;
+    private final Pattern[] mPatterns;
+    private final String mSignature;
+
+    private final List<Chapter> mChapters = new ArrayList<Chapter>();
+    /** the page cuts the page numbers are of, see AbstractBookInfo.getPageCutsKey */
+    private long mCuts;
+    private int mNextPage;
+    private boolean mDone;
+
+    /** @param patterns regular expressions a whole heading line matches, bad ones are skipped */
+    public ChapterIndexer(AbstractBookInfo book, String[] patterns) {
+        mBook = book;
+        List<Pattern> compiled = new ArrayList<Pattern>();
+        StringBuilder signature = new StringBuilder();
+        for (String pattern : patterns) {
+            try {
+                compiled.add(Pattern.compile(pattern));
+                signature.append(pattern).append('\n');
+            } catch (PatternSyntaxException e) {
+                Log.w(TAG, "skipping chapter pattern " + pattern, e);
+            }
+        }
+        mPatterns = compiled.toArray(new Pattern[compiled.size()]);
+        mSignature = signature.toString();
+    }
+
+    /** The chapters found so far, kept or resumed from the last run. */
+    public synchronized List<Chapter> getChapters() {
+        return Collections.unmodifiableList(new ArrayList<Chapter>(mChapters));
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * Scan the pages not scanned yet. Returns early, with the progress saved,
+     * when the token is cancelled.
+     */
+    public void run(CancelToken token, final Listener listener) throws Exception {
+        load();
+        if (isDone() || mPatterns.length == 0) {
+            listener.onChapters(getChapters(), true);
+            return;
+        }
+        final int count = mBook.getPageCount();
+        // a heading may straddle a record boundary, carry the unfinished line
+        final StringBuilder carry = new StringBuilder();
+        final int[] carryStart = { -1, 0 };
+        final CharSequence[] carryText = { null };
+        try {
+            mBook.scanPages(mNextPage, new AbstractBookInfo.PageVisitor() {
+                public void visit(int page, CharSequence text) {
+                    int start = 0;
+                    for (int i = 0; i <= text.length(); i++) {
+                        if (i < text.length() && text.charAt(i) != '\n') {
+                            continue;
+                        }
+                        if (i == text.length() && page + 1 < count) {
+                            // the line goes on in the next page
+                            if (carry.length() == 0) {
+                                carryStart[0] = page;
+                                carryStart[1] = start;
+                                carryText[0] = text;
+                            }
+                            carry.append(text, start, i);
+                            break;
+                        }
+                        if (carry.length() > 0) {
+                            carry.append(text, start, i);
+                            line(carry, carryStart[0], carryStart[1], carryText[0]);
+                            carry.setLength(0);
+                        } else {
+                            line(text.subSequence(start, i), page, start, text);
+                        }
+                        start = i + 1;
+                    }
+                    synchronized (ChapterIndexer.this) {
+                        mNextPage = page + 1;
+                    }
+                    if (carry.length() > MAX_TITLE) {
+                        carry.setLength(0); // no heading is that long
+                    }
+                    if ((page + 1) % PUBLISH_PAGES == 0) {
+                        listener.onChapters(getChapters(), false);
+                    }
+                    if ((page + 1) % SAVE_PAGES == 0) {
+                        save();
+                    }
+                }
+            }, token);
+            synchronized (this) {
+                mDone = true;
+            }
+        } finally {
+            save();
+        }
+        listener.onChapters(getChapters(), true);
+    }
+
+    private void line(CharSequence line, int page, int offset, CharSequence pageText) {
+        if (line.length() == 0 || line.length() > MAX_TITLE) {
+            return;
+        }
+        String title = trim(line);
+        for (Pattern pattern : mPatterns) {
+            Matcher m = pattern.matcher(title);
+            if (title.length() > 0 && m.matches()) {
+                Locator locator = null;
+                if (offset < pageText.length()) {
+                    locator = mBook.locate(page, offset, pageText);
+                }
+                synchronized (this) {
+                    mChapters.add(new Chapter(title, page, locator));
+                }
+                return;
+            }
+        }
+    }
+
+    /** Trim white space, the full width one of CJK text too. */
+    private static String trim(CharSequence line) {
+        int start = 0;
+        int end = line.length();
+        while (start < end && isSpace(line.charAt(start))) {
+            start++;
+        }
+        while (end > start && isSpace(line.charAt(end - 1))) {
+            end--;
+        }
+        return line.subSequence(start, end).toString();
+    }
+
+    private static boolean isSpace(char c) {
+        return Character.isWhitespace(c) || c == '\u3000' || c == '\u00a0';
+    }
+
+    /**
+     * Read back a finished or partial index made with the same charset and
+     * patterns, on pages cut where they are now.
+     */
+    private synchronized void load() {
+        mChapters.clear();
+        mNextPage = 0;
+        mDone = false;
+        mCuts = mBook.getPageCutsKey();
+        DataInputStream in = IndexUtil.openForRead(mBook.mFile, KIND, VERSION);
+        if (in == null) {
+            return;
+        }
+        try {
+            if (!in.readUTF().equals(String.valueOf(mBook.mEncode))
+                    || in.readInt() != mBook.mFormat
+                    || in.readInt() != mBook.getPageCount()
+                    || in.readLong() != mCuts
+                    || !in.readUTF().equals(mSignature)) {
+                return;
+            }
+            int nextPage = in.readInt();
+            boolean done = in.readBoolean();
+            List<Chapter> chapters = new ArrayList<Chapter>();
+            for (int i = in.readInt(); i > 0; i--) {
+                String title = in.readUTF();
+                int page = in.readInt();
+                Locator locator = Locator.parse(in.readUTF());
+                chapters.add(new Chapter(title, page, locator));
+            }
+            mChapters.addAll(chapters);
+            mNextPage = nextPage;
+            mDone = done;
+        } catch (IOException e) {
+            Log.d(TAG, e.getMessage(), e);
+        } finally {
+            IndexUtil.close(in);
+        }
+    }
+
+    private synchronized void save() {
+        try {
+            DataOutputStream out = IndexUtil.beginWrite(mBook.mFile, KIND, VERSION);
+            if (out == null) {
+                return;
+            }
+            out.writeUTF(String.valueOf(mBook.mEncode));
+            out.writeInt(mBook.mFormat);
+            out.writeInt(mBook.getPageCount());
+            out.writeLong(mCuts);
+            out.writeUTF(mSignature);
+            out.writeInt(mNextPage);
+            out.writeBoolean(mDone);
+            out.writeInt(mChapters.size());
+            for (Chapter chapter : mChapters) {
+                out.writeUTF(chapter.mTitle);
+                out.writeInt(chapter.mPage);
+                out.writeUTF(chapter.mLocator == null ? "" : chapter.mLocator.toString());
+            }
+            IndexUtil.endWrite(mBook.mFile, KIND, out);
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e); // found again next time
+        }
+    }
+}
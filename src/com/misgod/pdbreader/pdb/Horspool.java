@@ -0,0 +1,52 @@
+package com.misgod.pdbreader.pdb;
+
+/**
+ * Boyer-Moore-Horspool search for a byte pattern. The text is never
+ * decoded: the pattern is the query already encoded in the book's charset.
+ */
+class Horspool {
+    private final byte[] mPattern;
+    private final int[] mShift = new int[256];
+
+    Horspool(byte[] pattern) {
+        mPattern = pattern;
+        int last = pattern.length - 1;
+        for (int i = 0; i < mShift.length; i++) {
+            mShift[i] = pattern.length;
+        }
+        for (int i = 0; i < last; i++) {
+            mShift[pattern[i] & 0xff] = last - i;
+        }
+    }
+
+    int length() {
+        return mPattern.length;
+    }
+
+    byte[] pattern() {
+        return mPattern;
+    }
+
+    /** The first match in text[from, to), or -1. */
+    int indexOf(byte[] text, int from, int to) {
+        int last = mPattern.length - 1;
+        if (last < 0) {
+            return -1;
+        }
+        int i = from;
+        while (i + last < to) {
+            byte end = text[i + last];
+            if (end == mPattern[last]) {
+                int j = last - 1;
+                while (j >= 0 && text[i + j] == mPattern[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return i;
+                }
+            }
+            i += mShift[end & 0xff];
+        }
+        return -1;
+    }
+}
@@ -1,26 +1,252 @@
 package com.misgod.pdbreader.pdb;
 
 import android.text.Html;
-import android.text.Spannable;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.util.zip.DataFormatException;
+import java.util.List;
+
+import com.misgod.pdbreader.util.CancelToken;
+import com.misgod.pdbreader.util.ConvertUtil;
 
 public class HtmlBookInfo extends TxtBookInfo {
+    /** bytes of text (tags not counted) per page */
+    private static final int PAGE_BYTES = 12 * 1024;
+    private HtmlPageIndex mIndex;
+
     public HtmlBookInfo(long id) {
         super(id);
     }
 
+    /**
+     * The tag index works on bytes, which needs an ASCII compatible charset;
+     * UTF-16 books keep the plain TXT pages.
+     */
+    private boolean isTagIndexed() {
+        return !isUtf16(mEncode);
+    }
 
+    @Override
+    public void setFile(File pdb, boolean headerOnly) throws IOException {
+        mIndex = null;
+        if (!isTagIndexed()) {
+            super.setFile(pdb, headerOnly);
+            return;
+        }
+        super.setFile(pdb, true);
+        if (!headerOnly) {
+            mIndex = HtmlPageIndex.open(mFile, PAGE_BYTES);
+            pagesChanged();
+        }
+    }
 
-    public CharSequence getText() throws IOException {
-        return Html.fromHtml(super.getText().toString());
-     
+    @Override
+    public int getPageCount() {
+        return mIndex == null ? super.getPageCount() : mIndex.getPageCount();
+    }
+
+    @Override
+    protected long getPageStart(int page) {
+        return mIndex == null ? super.getPageStart(page) : mIndex.getPageStart(page);
+    }
+
+    @Override
+    protected int findPage(long offset) {
+        return mIndex == null ? super.findPage(offset) : mIndex.findPage(offset);
+    }
+
+    @Override
+    protected String getStreamCharset() {
+        return mIndex == null ? super.getStreamCharset() : mEncode;
+    }
+
+    /** The headings marked up by tags, see {@link HtmlPageIndex}. */
+    @Override
+    public List<Chapter> getTableOfContents() {
+        HtmlPageIndex index = mIndex;
+        return index == null ? super.getTableOfContents() : index.getChapters(mEncode);
+    }
+
+    @Override
+    protected byte[] readBytes(int page, CancelToken token) throws IOException {
+        HtmlPageIndex index = mIndex;
+        return index == null ? super.readBytes(page, token) : index.readPage(mFile, page, token);
+    }
+
+    @Override
+    protected CharSequence decode(byte[] data, CancelToken token) {
+        String html;
+        if (mIndex == null) {
+            html = super.decode(data, token).toString();
+        } else {
+            html = ConvertUtil.decode(data, 0, data.length, mEncode, token);
+        }
+        token.throwIfCancelled();
+        return Html.fromHtml(html);
+    }
 
+    /**
+     * Pages for a search: only their own bytes, without the reopened tags,
+     * stripped to the text by {@link HtmlText}. The {@link PageFilters} are
+     * built from the same bytes.
+     */
+    @Override
+    public PageSource openPages() throws IOException {
+        final HtmlPageIndex index = mIndex;
+        if (index == null) {
+            return super.openPages();
+        }
+        return new PageSource() {
+            // the raw offsets of the last page a hit was placed in
+            private int mMapPage = -1;
+            private int[] mMap;
+            private int mMapLength;
+
+            @Override
+            public int getPageCount() {
+                return index.getPageCount();
+            }
+
+            @Override
+            public byte[] unpack(int page, byte[] stored, CancelToken token) throws IOException {
+                byte[] raw = index.readSource(mFile, page, token);
+                byte[] text = new byte[raw.length];
+                int length = HtmlText.strip(raw, 0, raw.length, text, null);
+                byte[] data = new byte[length];
+                System.arraycopy(text, 0, data, 0, length);
+                return data;
+            }
+
+            @Override
+            long streamOffset(int page, int offset, CancelToken token) throws IOException {
+                if (page != mMapPage) {
+                    byte[] raw = index.readSource(mFile, page, token);
+                    mMap = new int[raw.length + 1];
+                    mMapLength = HtmlText.strip(raw, 0, raw.length, new byte[raw.length], mMap);
+                    mMap[mMapLength] = raw.length;
+                    mMapPage = page;
+                }
+                return index.getPageStart(page) + mMap[Math.min(offset, mMapLength)];
+            }
+        };
+    }
+
+    /**
+     * Bytes to a char of the shown text: the text is lined up with the page
+     * as {@link HtmlText} strips it, whose bytes map back to the raw ones.
+     * The prefix of reopened tags shows no text and is left out.
+     */
+    @Override
+    protected long byteOffset(int page, CharSequence text, int chars) {
+        Stripped own = strip(page);
+        if (own == null) {
+            return Locator.encodedLength(text, chars, getStreamCharset());
+        }
+        int at = align(text, chars, own.mText, Integer.MAX_VALUE)[1];
+        int bytes = Locator.bytesBefore(own.mBytes, own.mLength, at, mEncode);
+        return bytes < own.mLength ? own.mMap[bytes] : own.mRawLength;
+    }
+
+    @Override
+    protected int charOffset(int page, CharSequence text, long bytes) {
+        Stripped own = strip(page);
+        if (own == null) {
+            return Locator.charsWithin(text, bytes, getStreamCharset());
+        }
+        int k = 0;
+        while (k < own.mLength && own.mMap[k] < bytes) {
+            k++;
+        }
+        int at = Locator.charsBefore(own.mBytes, own.mLength, k, mEncode);
+        return align(text, Integer.MAX_VALUE, own.mText, at)[0];
+    }
+
+    /** A page stripped to its text, with the raw offset of every byte. */
+    private static class Stripped {
+        byte[] mBytes;
+        int mLength;
+        int[] mMap;
+        int mRawLength;
+        String mText;
+    }
+
+    private Stripped strip(int page) {
+        HtmlPageIndex index = mIndex;
+        byte[] data = index == null ? null : pageBytes(page);
+        if (data == null) {
+            return null;
+        }
+        Stripped s = new Stripped();
+        s.mRawLength = (int) (index.getPageStart(page + 1) - index.getPageStart(page));
+        int from = data.length - s.mRawLength;
+        s.mBytes = new byte[s.mRawLength];
+        s.mMap = new int[s.mRawLength];
+        s.mLength = HtmlText.strip(data, from, data.length, s.mBytes, s.mMap);
+        s.mText = ConvertUtil.decode(s.mBytes, 0, s.mLength, mEncode, new CancelToken());
+        return s;
+    }
+
+    /**
+     * Walk the shown text and the stripped one side by side until either stop
+     * is reached. White space differs between the two and is skipped, an
+     * entity left in the stripped text stands for one shown char.
+     *
+     * @return where it stopped, in shown and in stripped chars
+     */
+    private static int[] align(CharSequence shown, int shownStop, String stripped,
+            int strippedStop) {
+        int i = 0;
+        int j = 0;
+        while (i < shownStop && j < strippedStop && i < shown.length()
+                && j < stripped.length()) {
+            char a = shown.charAt(i);
+            char b = stripped.charAt(j);
+            if (a == b) {
+                i++;
+                j++;
+            } else if (isBlank(a)) {
+                i++;
+            } else if (isBlank(b)) {
+                j++;
+            } else if (b == '&') {
+                int end = stripped.indexOf(';', j);
+                j = end > j && end - j <= 10 ? end + 1 : j + 1;
+                i++;
+            } else {
+                i++;
+                j++;
+            }
+        }
+        // land on the same char, past white space only one side has
+        if (i >= shownStop) {
+            while (j < stripped.length() && isBlank(stripped.charAt(j))
+                    && i < shown.length() && !isBlank(shown.charAt(i))) {
+                j++;
+            }
+        } else if (j >= strippedStop) {
+            while (i < shown.length() && isBlank(shown.charAt(i))
+                    && j < stripped.length() && !isBlank(stripped.charAt(j))) {
+                i++;
+            }
+        }
+        return new int[] { i, j };
+    }
+
+    /** White space, a no-break space, or an image placeholder. */
+    private static boolean isBlank(char c) {
+        return Character.isWhitespace(c) || c == '\u00a0' || c == '\ufffc';
+    }
+
+    /** The tag index does not depend on the charset, only titles are decoded again. */
+    @Override
+    public Runnable reindex() throws IOException {
+        return mIndex == null ? super.reindex() : null;
+    }
+
+    /** The tag index keeps its cuts for any ASCII compatible charset too. */
+    @Override
+    public boolean canRedecode(String encode) {
+        return mIndex != null ? !isUtf16(encode) : super.canRedecode(encode);
     }
 
     @Override
@@ -0,0 +1,293 @@
+package com.misgod.pdbreader.pdb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.util.Log;
+
+import com.misgod.pdbreader.util.CancelToken;
+import com.misgod.pdbreader.util.ConvertUtil;
+import com.misgod.pdbreader.util.IndexUtil;
+
+/**
+ * Block level page index of an HTML book, built once by
+ * {@link HtmlPaginator} and kept as a sidecar like {@link TxtPageIndex}. A
+ * page is read as the tags open at its start followed by its own bytes, so it
+ * parses on its own with the right styling.
+ * 
+ * Tags are ASCII, so the cuts hold for every ASCII compatible charset and the
+ * index is keyed on the page budget only. Chapter titles are kept as raw
+ * bytes and decoded for the charset asked for.
+ */
+class HtmlPageIndex {
+	private static final String TAG = "HtmlPageIndex";
+	private static final String KIND = "htmlpage";
+	/**
+	 * 2: p, li, dt, dd, tr, td and option close implicitly; 3: no charset,
+	 * raw titles
+	 */
+	private static final int VERSION = 3;
+	private static final int MAP_SIZE = 4 * 1024 * 1024;
+	private static final int FEED_SIZE = 64 * 1024;
+
+	/** page starts followed by the file length */
+	private final long[] mOffsets;
+	private final byte[][][] mStacks;
+	private final byte[][] mTitles;
+	private final int[] mTitlePages;
+	/** the titles decoded with mChaptersEncode */
+	private List<Chapter> mChapters;
+	private String mChaptersEncode;
+
+	private HtmlPageIndex(long[] offsets, byte[][][] stacks, byte[][] titles,
+			int[] titlePages) {
+		mOffsets = offsets;
+		mStacks = stacks;
+		mTitles = titles;
+		mTitlePages = titlePages;
+	}
+
+	public int getPageCount() {
+		return mOffsets.length - 1;
+	}
+
+	public long getPageStart(int page) {
+		return mOffsets[page];
+	}
+
+	/** The page holding a byte offset, by binary search over the page starts. */
+	public int findPage(long offset) {
+		int i = Arrays.binarySearch(mOffsets, 0, getPageCount(), offset);
+		return i >= 0 ? i : Math.max(0, -i - 2);
+	}
+
+	/** The headings, decoded with a charset; the last list is kept. */
+	public synchronized List<Chapter> getChapters(String encode) {
+		if (mChapters != null && encode.equalsIgnoreCase(mChaptersEncode)) {
+			return mChapters;
+		}
+		List<Chapter> chapters = new ArrayList<Chapter>();
+		for (int i = 0; i < mTitles.length; i++) {
+			String title = unescape(ConvertUtil.decode(mTitles[i], 0,
+					mTitles[i].length, encode, new CancelToken()));
+			if (title.length() > 0) {
+				chapters.add(new Chapter(title, mTitlePages[i]));
+			}
+		}
+		mChapters = chapters;
+		mChaptersEncode = encode;
+		return chapters;
+	}
+
+	/** The reopened tags of a page followed by its raw bytes. */
+	public byte[] readPage(File file, int page, CancelToken token)
+			throws IOException {
+		ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+		for (byte[] tag : mStacks[page]) {
+			prefix.write(tag);
+		}
+		int length = (int) (mOffsets[page + 1] - mOffsets[page]);
+		byte[] data = new byte[prefix.size() + length];
+		System.arraycopy(prefix.toByteArray(), 0, data, 0, prefix.size());
+		read(file, page, data, prefix.size(), token);
+		return data;
+	}
+
+	/** Only the raw bytes of a page, as they are in the file. */
+	public byte[] readSource(File file, int page, CancelToken token)
+			throws IOException {
+		byte[] data = new byte[(int) (mOffsets[page + 1] - mOffsets[page])];
+		read(file, page, data, 0, token);
+		return data;
+	}
+
+	private void read(File file, int page, byte[] data, int offset,
+			CancelToken token) throws IOException {
+		long start = mOffsets[page] - offset;
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(data, offset, data.length
+					- offset);
+			while (buffer.hasRemaining()
+					&& channel.read(buffer, start + buffer.position()) > 0) {
+				token.throwIfCancelled();
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	public static HtmlPageIndex open(File file, int budget)
+			throws IOException {
+		HtmlPageIndex index = load(file, budget);
+		if (index == null) {
+			index = paginate(file, budget);
+			index.save(file, budget);
+		}
+		return index;
+	}
+
+	private static HtmlPageIndex paginate(File file, int budget)
+			throws IOException {
+		HtmlPaginator paginator = new HtmlPaginator(budget);
+		long length;
+		FileInputStream input = new FileInputStream(file);
+		try {
+			FileChannel channel = input.getChannel();
+			length = channel.size();
+			byte[] feed = new byte[FEED_SIZE];
+			for (long pos = 0; pos < length; pos += MAP_SIZE) {
+				MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, pos,
+						Math.min(length - pos, MAP_SIZE));
+				while (buffer.hasRemaining()) {
+					int n = Math.min(feed.length, buffer.remaining());
+					buffer.get(feed, 0, n);
+					paginator.feed(feed, 0, n);
+				}
+			}
+		} finally {
+			input.close();
+		}
+
+		int[] titlePages = new int[paginator.mTitlePages.size()];
+		for (int i = 0; i < titlePages.length; i++) {
+			titlePages[i] = paginator.mTitlePages.get(i);
+		}
+		return new HtmlPageIndex(paginator.finish(length),
+				paginator.mStacks.toArray(new byte[0][][]),
+				paginator.mTitles.toArray(new byte[0][]), titlePages);
+	}
+
+	private static HtmlPageIndex load(File file, int budget) {
+		DataInputStream in = IndexUtil.openForRead(file, KIND, VERSION);
+		if (in == null) {
+			return null;
+		}
+		try {
+			if (in.readInt() != budget) {
+				return null;
+			}
+			int count = in.readInt();
+			long[] offsets = new long[count + 1];
+			byte[][][] stacks = new byte[count][][];
+			for (int i = 0; i < count; i++) {
+				offsets[i] = in.readLong();
+				stacks[i] = new byte[in.readInt()][];
+				for (int j = 0; j < stacks[i].length; j++) {
+					stacks[i][j] = new byte[in.readInt()];
+					in.readFully(stacks[i][j]);
+				}
+			}
+			offsets[count] = in.readLong();
+			byte[][] titles = new byte[in.readInt()][];
+			int[] titlePages = new int[titles.length];
+			for (int i = 0; i < titles.length; i++) {
+				titles[i] = new byte[in.readInt()];
+				in.readFully(titles[i]);
+				titlePages[i] = in.readInt();
+			}
+			return new HtmlPageIndex(offsets, stacks, titles, titlePages);
+		} catch (IOException e) {
+			Log.d(TAG, e.getMessage(), e);
+			return null;
+		} finally {
+			IndexUtil.close(in);
+		}
+	}
+
+	private void save(File file, int budget) {
+		try {
+			DataOutputStream out = IndexUtil.beginWrite(file, KIND, VERSION);
+			if (out == null) {
+				return;
+			}
+			out.writeInt(budget);
+			out.writeInt(getPageCount());
+			for (int i = 0; i < getPageCount(); i++) {
+				out.writeLong(mOffsets[i]);
+				out.writeInt(mStacks[i].length);
+				for (byte[] tag : mStacks[i]) {
+					out.writeInt(tag.length);
+					out.write(tag);
+				}
+			}
+			out.writeLong(mOffsets[getPageCount()]);
+			out.writeInt(mTitles.length);
+			for (int i = 0; i < mTitles.length; i++) {
+				out.writeInt(mTitles[i].length);
+				out.write(mTitles[i]);
+				out.writeInt(mTitlePages[i]);
+			}
+			IndexUtil.endWrite(file, KIND, out);
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage(), e); // still usable, just not cached
+		}
+	}
+
+	/** Collapse white space and resolve the entities common in titles. */
+	static String unescape(String s) {
+		StringBuilder out = new StringBuilder(s.length());
+		boolean space = false;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '&') {
+				int end = s.indexOf(';', i);
+				if (end > i && end - i <= 10) {
+					String entity = s.substring(i + 1, end);
+					int code = entity(entity);
+					if (code > 0) {
+						c = (char) code;
+						i = end;
+					}
+				}
+			}
+			if (Character.isWhitespace(c) || c == '\u00a0' || c == '\ufffd') {
+				space = out.length() > 0;
+				continue;
+			}
+			if (space) {
+				out.append(' ');
+				space = false;
+			}
+			out.append(c);
+		}
+		return out.toString();
+	}
+
+	private static int entity(String name) {
+		try {
+			if (name.startsWith("#x") || name.startsWith("#X")) {
+				return Integer.parseInt(name.substring(2), 16);
+			} else if (name.startsWith("#")) {
+				return Integer.parseInt(name.substring(1));
+			}
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+		if (name.equals("amp")) {
+			return '&';
+		} else if (name.equals("lt")) {
+			return '<';
+		} else if (name.equals("gt")) {
+			return '>';
+		} else if (name.equals("quot")) {
+			return '"';
+		} else if (name.equals("apos")) {
+			return '\'';
+		} else if (name.equals("nbsp")) {
+			return '\u00a0';
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,243 @@
+package com.misgod.pdbreader.pdb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming tokenizer that cuts raw HTML bytes into pages at block level tags
+ * (paragraphs, headings, list items...) once about {@code budget} bytes of
+ * text have gone by. Every cut remembers the tags still open there, so a page
+ * can be parsed on its own and still carry the styling of the page before.
+ *
+ * Works on the bytes of any ASCII compatible charset: '<' and '>' never show
+ * up as the trail byte of a DBCS character, so a cut before a tag is always a
+ * character boundary. Headings are collected on the way for the chapter list.
+ */
+class HtmlPaginator {
+	private static final int STATE_TEXT = 0;
+	private static final int STATE_TAG = 1;
+	private static final int STATE_COMMENT = 2;
+
+	private static final int MAX_TAG = 512;
+	private static final int MAX_DEPTH = 32;
+	private static final int MAX_TITLE = 256;
+
+	private static final String[] BLOCK_TAGS = { "p", "div", "br", "h1", "h2",
+			"h3", "h4", "h5", "h6", "li", "ul", "ol", "dl", "dt", "dd", "tr",
+			"table", "blockquote", "pre", "hr", "center", "section",
+			"article" };
+	private static final String[] VOID_TAGS = { "br", "hr", "img", "meta",
+			"link", "input", "base", "col", "area", "param", "wbr", "basefont" };
+	/** never reopened: they carry nothing Html.fromHtml would render */
+	private static final String[] SKIP_TAGS = { "html", "head", "body" };
+
+	private final int mBudget;
+	private int mState = STATE_TEXT;
+	private long mPos;
+	private long mText;
+
+	private final byte[] mTag = new byte[MAX_TAG];
+	private int mTagLength;
+	private long mTagStart;
+	private int mQuote;
+
+	private final ArrayList<byte[]> mOpen = new ArrayList<byte[]>();
+	private final ArrayList<String> mOpenNames = new ArrayList<String>();
+
+	final List<Long> mStarts = new ArrayList<Long>();
+	/** the tags open at each page start, outermost first */
+	final List<byte[][]> mStacks = new ArrayList<byte[][]>();
+	final List<byte[]> mTitles = new ArrayList<byte[]>();
+	final List<Integer> mTitlePages = new ArrayList<Integer>();
+
+	private byte[] mTitle;
+	private int mTitleLength = -1;
+	private String mHeading;
+
+	HtmlPaginator(int budget) {
+		mBudget = budget;
+		mStarts.add(0L);
+		mStacks.add(new byte[0][]);
+	}
+
+	void feed(byte[] data, int offset, int length) {
+		int end = offset + length;
+		for (int i = offset; i < end; i++, mPos++) {
+			byte b = data[i];
+			switch (mState) {
+			case STATE_TEXT:
+				if (b == '<') {
+					mState = STATE_TAG;
+					mTagStart = mPos;
+					mTagLength = 0;
+					mQuote = 0;
+				} else {
+					mText++;
+					if (mTitleLength >= 0 && mTitleLength < MAX_TITLE) {
+						mTitle[mTitleLength++] = b;
+					}
+					if (b == '\n' && mText >= 2 * mBudget) {
+						// no block tag for too long, a line end will do
+						cut(mPos + 1);
+					}
+				}
+				break;
+			case STATE_TAG:
+				if (mQuote != 0) {
+					if (b == mQuote) {
+						mQuote = 0;
+					}
+				} else if (b == '"' || b == '\'') {
+					if (mTagLength > 0 && mTag[0] != '!') {
+						mQuote = b;
+					}
+				} else if (b == '>') {
+					mState = STATE_TEXT;
+					tag();
+					break;
+				}
+				if (mTagLength < MAX_TAG) {
+					mTag[mTagLength++] = b;
+				}
+				if (mTagLength == 3 && mTag[0] == '!' && mTag[1] == '-'
+						&& mTag[2] == '-') {
+					mState = STATE_COMMENT;
+				}
+				break;
+			default:
+				// inside a comment, wait for its closing dashes
+				mTag[0] = mTag[1];
+				mTag[1] = mTag[2];
+				mTag[2] = b;
+				if (b == '>' && mTag[0] == '-' && mTag[1] == '-') {
+					mState = STATE_TEXT;
+				}
+				break;
+			}
+		}
+	}
+
+	/** @return page starts followed by {@code length} */
+	long[] finish(long length) {
+		long[] offsets = new long[mStarts.size() + 1];
+		for (int i = 0; i < mStarts.size(); i++) {
+			offsets[i] = mStarts.get(i);
+		}
+		offsets[mStarts.size()] = Math.max(length, offsets[mStarts.size() - 1]);
+		return offsets;
+	}
+
+	private void tag() {
+		boolean closing = mTagLength > 0 && mTag[0] == '/';
+		String name = name(closing ? 1 : 0);
+		if (name.length() == 0) {
+			return; // <!DOCTYPE>, <?xml?> and stray '<'
+		}
+		// before a cut, so the page does not reopen what the tag ends
+		while (!closing && !mOpenNames.isEmpty()
+				&& closesImplicitly(mOpenNames.get(mOpenNames.size() - 1), name)) {
+			mOpenNames.remove(mOpenNames.size() - 1);
+			mOpen.remove(mOpen.size() - 1);
+		}
+		if (contains(BLOCK_TAGS, name) && mText >= mBudget) {
+			cut(mTagStart);
+		} else if (mText >= 2 * mBudget) {
+			cut(mTagStart);
+		}
+
+		boolean heading = name.length() == 2 && name.charAt(0) == 'h'
+				&& name.charAt(1) >= '1' && name.charAt(1) <= '6';
+		if (closing) {
+			for (int i = mOpenNames.size() - 1; i >= 0; i--) {
+				if (mOpenNames.get(i).equals(name)) {
+					while (mOpenNames.size() > i) {
+						mOpenNames.remove(mOpenNames.size() - 1);
+						mOpen.remove(mOpen.size() - 1);
+					}
+					break;
+				}
+			}
+			if (heading && name.equals(mHeading)) {
+				byte[] title = new byte[mTitleLength];
+				System.arraycopy(mTitle, 0, title, 0, mTitleLength);
+				mTitles.add(title);
+				mTitlePages.add(mStarts.size() - 1);
+				mTitleLength = -1;
+				mHeading = null;
+			}
+			return;
+		}
+
+		if (heading && mHeading == null) {
+			mHeading = name;
+			mTitle = new byte[MAX_TITLE];
+			mTitleLength = 0;
+		}
+		boolean selfClosing = mTag[mTagLength - 1] == '/';
+		if (!selfClosing && mTagLength < MAX_TAG && mOpen.size() < MAX_DEPTH
+				&& !contains(VOID_TAGS, name) && !contains(SKIP_TAGS, name)) {
+			byte[] raw = new byte[mTagLength + 2];
+			raw[0] = '<';
+			System.arraycopy(mTag, 0, raw, 1, mTagLength);
+			raw[raw.length - 1] = '>';
+			mOpen.add(raw);
+			mOpenNames.add(name);
+		}
+	}
+
+	private void cut(long here) {
+		if (here <= mStarts.get(mStarts.size() - 1)) {
+			return;
+		}
+		mStarts.add(here);
+		mStacks.add(mOpen.toArray(new byte[mOpen.size()][]));
+		mText = 0;
+	}
+
+	private String name(int from) {
+		StringBuilder name = new StringBuilder(8);
+		for (int i = from; i < mTagLength; i++) {
+			int c = mTag[i];
+			if (c >= 'A' && c <= 'Z') {
+				c += 'a' - 'A';
+			}
+			if (c >= 'a' && c <= 'z' || c >= '0' && c <= '9' && i > from) {
+				name.append((char) c);
+			} else {
+				break;
+			}
+		}
+		return name.toString();
+	}
+
+	/**
+	 * Whether opening tag {@code name} ends the open tag {@code open}, as
+	 * the HTML parser does for the tags old pages never close. Otherwise
+	 * they would pile up and be reopened at every later page.
+	 */
+	private static boolean closesImplicitly(String open, String name) {
+		if (open.equals("p")) {
+			return !name.equals("br") && contains(BLOCK_TAGS, name);
+		} else if (open.equals("li")) {
+			return name.equals("li");
+		} else if (open.equals("dt") || open.equals("dd")) {
+			return name.equals("dt") || name.equals("dd");
+		} else if (open.equals("td") || open.equals("th")) {
+			return name.equals("td") || name.equals("th") || name.equals("tr");
+		} else if (open.equals("tr")) {
+			return name.equals("tr");
+		} else if (open.equals("option")) {
+			return name.equals("option") || name.equals("optgroup");
+		}
+		return false;
+	}
+
+	private static boolean contains(String[] names, String name) {
+		for (String n : names) {
+			if (n.equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,134 @@
+package com.misgod.pdbreader.pdb;
+
+/**
+ * The text of raw HTML bytes as a search sees it: tags and comments left out,
+ * white space runs as one space and the ASCII entities resolved, so a query
+ * matches across inline tags and line breaks the way the page reads.
+ *
+ * Works on the bytes of any ASCII compatible charset like
+ * {@link HtmlPaginator}, and likewise expects to start outside a tag, which
+ * holds at every page cut.
+ */
+class HtmlText {
+	private static final int STATE_TEXT = 0;
+	private static final int STATE_TAG = 1;
+	private static final int STATE_COMMENT = 2;
+	private static final int MAX_ENTITY = 10;
+	private static final String[] NAMES = { "amp", "lt", "gt", "quot", "apos",
+			"nbsp" };
+	private static final char[] CHARS = { '&', '<', '>', '"', '\'', ' ' };
+
+	private HtmlText() {
+	}
+
+	/**
+	 * Strip raw[from, to) into out, which must hold to - from bytes. If map is
+	 * not null it gets, for every byte written, the offset of the raw byte it
+	 * came from, relative to {@code from}.
+	 *
+	 * @return the number of bytes written
+	 */
+	static int strip(byte[] raw, int from, int to, byte[] out, int[] map) {
+		int state = STATE_TEXT;
+		int quote = 0;
+		int tagLength = 0;
+		boolean space = false;
+		int n = 0;
+		for (int i = from; i < to; i++) {
+			int b = raw[i];
+			if (state == STATE_TAG) {
+				if (quote != 0) {
+					if (b == quote) {
+						quote = 0;
+					}
+				} else if (b == '>') {
+					state = STATE_TEXT;
+				} else if ((b == '"' || b == '\'') && tagLength > 0
+						&& raw[i - tagLength] != '!') {
+					quote = b;
+				} else if (tagLength == 2 && b == '-' && raw[i - 1] == '-'
+						&& raw[i - 2] == '!') {
+					state = STATE_COMMENT;
+				}
+				tagLength++;
+				continue;
+			} else if (state == STATE_COMMENT) {
+				if (b == '>' && raw[i - 1] == '-' && raw[i - 2] == '-') {
+					state = STATE_TEXT;
+				}
+				continue;
+			}
+
+			int source = i;
+			if (b == '<') {
+				state = STATE_TAG;
+				tagLength = 0;
+				quote = 0;
+				continue;
+			} else if (b == '&') {
+				int end = i + 1;
+				while (end < to && end - i <= MAX_ENTITY && raw[end] != ';') {
+					end++;
+				}
+				int c = end < to && raw[end] == ';' ? entity(raw, i + 1, end) : -1;
+				if (c >= 0) {
+					b = c;
+					i = end;
+				}
+			}
+			if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+				if (space) {
+					continue;
+				}
+				space = true;
+				b = ' ';
+			} else {
+				space = false;
+			}
+			if (map != null) {
+				map[n] = source - from;
+			}
+			out[n++] = (byte) b;
+		}
+		return n;
+	}
+
+	/** An ASCII entity by name or number, a space for nbsp, -1 otherwise. */
+	private static int entity(byte[] raw, int from, int to) {
+		if (to - from > 1 && raw[from] == '#') {
+			int radix = 10;
+			from++;
+			if (raw[from] == 'x' || raw[from] == 'X') {
+				radix = 16;
+				from++;
+			}
+			int code = 0;
+			for (int i = from; i < to; i++) {
+				int digit = Character.digit(raw[i], radix);
+				if (digit < 0 || code > 0xff) {
+					return -1;
+				}
+				code = code * radix + digit;
+			}
+			return from == to ? -1 : code == 0xa0 ? ' ' : code < 0x80 ? code : -1;
+		}
+		for (int i = 0; i < NAMES.length; i++) {
+			if (is(raw, from, to, NAMES[i])) {
+				return CHARS[i];
+			}
+		}
+		return -1;
+	}
+
+	private static boolean is(byte[] raw, int from, int to, String name) {
+		if (to - from != name.length()) {
+			return false;
+		}
+		for (int i = from; i < to; i++) {
+			if (raw[i] != name.charAt(i - from)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
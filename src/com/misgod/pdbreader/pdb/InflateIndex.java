@@ -0,0 +1,579 @@
+package com.misgod.pdbreader.pdb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.util.Log;
+
+import com.misgod.pdbreader.util.CancelToken;
+import com.misgod.pdbreader.util.IndexUtil;
+
+/**
+ * Random access into a gzip or single entry zip TXT book, zran style. One
+ * streaming pass (the same one that paginates the book) records a checkpoint
+ * every span bytes of output: the input bit where a deflate block starts and
+ * the 32K of output before it. A read then inflates from the nearest
+ * checkpoint before it, so any page costs at most one span however deep in
+ * the book it is.
+ *
+ * The span grows with the book so there are never more than MAX_CHECKPOINTS:
+ * from the size the zip declares, or by dropping every other checkpoint when
+ * there are too many. Windows are kept deflated, which bounds the memory of a
+ * loaded index.
+ */
+class InflateIndex {
+	private static final String TAG = "InflateIndex";
+	private static final String KIND = "inflate";
+	private static final int VERSION = 1;
+	private static final int MIN_SPAN = 1024 * 1024;
+	private static final int MAX_CHECKPOINTS = 64;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final int TYPE_GZIP = 0;
+	private static final int TYPE_ZIP_DEFLATED = 1;
+	private static final int TYPE_ZIP_STORED = 2;
+
+	private final int mType;
+	/** offset of the first deflate (or stored) byte */
+	private final long mStart;
+	/** uncompressed length */
+	private final long mLength;
+	private final long[] mOut;
+	private final long[] mBits;
+	private final int[] mWindowLength;
+	private final byte[][] mWindow;
+
+	private InflateIndex(int type, long start, long length, long[] out,
+			long[] bits, int[] windowLength, byte[][] window) {
+		mType = type;
+		mStart = start;
+		mLength = length;
+		mOut = out;
+		mBits = bits;
+		mWindowLength = windowLength;
+		mWindow = window;
+	}
+
+	long getLength() {
+		return mLength;
+	}
+
+	/** Tell gzip and zip books apart from plain ones by their magic. */
+	static boolean isCompressed(File file) throws IOException {
+		FileInputStream input = new FileInputStream(file);
+		try {
+			byte[] magic = read(input.getChannel(), 0, 4);
+			return magic != null
+					&& ((magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b
+					|| readInt(magic, 0) == 0x04034b50);
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Inflate the start of the book into {@code head}.
+	 *
+	 * @return the number of bytes read, less than head.length for a shorter
+	 *         book
+	 */
+	static int readHead(File file, byte[] head) throws IOException {
+		FileInputStream input = new FileInputStream(file);
+		try {
+			FileChannel channel = input.getChannel();
+			Entry entry = locate(channel);
+			Stream stream = new Stream(channel, entry.type, entry.start,
+					entry.start * 8, entry.size);
+			int n = 0;
+			int c;
+			while (n < head.length
+					&& (c = stream.read(head, n, head.length - n)) >= 0) {
+				n += c;
+			}
+			return n;
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Read {@code data.length} uncompressed bytes from {@code pos}, inflating
+	 * from the last checkpoint at or before it.
+	 */
+	void read(File file, long pos, byte[] data, CancelToken token)
+			throws IOException {
+		int k = 0;
+		int high = mOut.length - 1;
+		while (k < high) {
+			int mid = (k + high + 1) >>> 1;
+			if (mOut[mid] <= pos) {
+				k = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+
+		long from = mOut[k];
+		long bit = mBits[k];
+		if (mType == TYPE_ZIP_STORED) {
+			from = pos; // nothing to inflate, seek right there
+			bit = (mStart + pos) * 8;
+		}
+
+		FileInputStream input = new FileInputStream(file);
+		try {
+			FileChannel channel = input.getChannel();
+			Stream stream = new Stream(channel, mType, mStart, bit, mLength);
+			if (mWindowLength[k] > 0) {
+				stream.setWindow(window(k), mWindowLength[k]);
+			}
+			long skip = pos - from;
+			byte[] scratch = new byte[(int) Math.min(skip, BUFFER_SIZE)];
+			while (skip > 0) {
+				token.throwIfCancelled();
+				int c = stream.read(scratch, 0, (int) Math.min(skip,
+						scratch.length));
+				if (c < 0) {
+					throw new EOFException();
+				}
+				skip -= c;
+			}
+			int n = 0;
+			while (n < data.length) {
+				int c = stream.read(data, n, data.length - n);
+				if (c < 0) {
+					throw new EOFException();
+				}
+				n += c;
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	static InflateIndex load(File file) {
+		DataInputStream in = IndexUtil.openForRead(file, KIND, VERSION);
+		if (in == null) {
+			return null;
+		}
+		try {
+			int type = in.readInt();
+			long start = in.readLong();
+			long length = in.readLong();
+			int count = in.readInt();
+			long[] out = new long[count];
+			long[] bits = new long[count];
+			int[] windowLength = new int[count];
+			byte[][] window = new byte[count][];
+			for (int i = 0; i < count; i++) {
+				out[i] = in.readLong();
+				bits[i] = in.readLong();
+				windowLength[i] = in.readInt();
+				window[i] = new byte[in.readInt()];
+				in.readFully(window[i]);
+			}
+			return new InflateIndex(type, start, length, out, bits,
+					windowLength, window);
+		} catch (IOException e) {
+			Log.d(TAG, e.getMessage(), e);
+			return null;
+		} finally {
+			IndexUtil.close(in);
+		}
+	}
+
+	/**
+	 * Inflate the whole book once, recording checkpoints, and save the index.
+	 *
+	 * @param paginator fed with everything past the first {@code skip} bytes,
+	 *            may be null when only the checkpoints are wanted
+	 */
+	static InflateIndex build(File file, TxtPaginator paginator, int skip)
+			throws IOException {
+		long time = System.currentTimeMillis();
+		FileInputStream input = new FileInputStream(file);
+		InflateIndex index;
+		try {
+			FileChannel channel = input.getChannel();
+			Entry entry = locate(channel);
+			long span = Math.max(MIN_SPAN, entry.size / MAX_CHECKPOINTS);
+			Stream stream = new Stream(channel, entry.type, entry.start,
+					entry.start * 8, entry.size);
+
+			List<long[]> points = new ArrayList<long[]>();
+			List<byte[]> windows = new ArrayList<byte[]>();
+			points.add(new long[] { 0, entry.start * 8, 0 });
+			windows.add(new byte[0]);
+
+			byte[] buffer = new byte[BUFFER_SIZE];
+			byte[] window = new byte[RawInflater.WINDOW_SIZE];
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			long out = 0;
+			long last = 0;
+			int n;
+			while ((n = stream.read(buffer, 0, buffer.length)) >= 0) {
+				if (paginator != null && out + n > skip) {
+					int from = (int) Math.max(0, skip - out);
+					paginator.feed(buffer, from, n - from);
+				}
+				out += n;
+				if (out - last >= span && stream.atBlockBoundary()) {
+					int length = stream.copyWindow(window);
+					points.add(new long[] { out, stream.getBitPosition(),
+							length });
+					windows.add(deflate(deflater, window, length));
+					last = out;
+					if (points.size() > MAX_CHECKPOINTS) {
+						// the size was unknown or short, keep every other one
+						for (int i = points.size() - 1; i > 0; i -= 2) {
+							points.remove(i);
+							windows.remove(i);
+						}
+						span *= 2;
+					}
+				}
+			}
+			deflater.end();
+
+			int count = points.size();
+			long[] outs = new long[count];
+			long[] bits = new long[count];
+			int[] windowLength = new int[count];
+			for (int i = 0; i < count; i++) {
+				long[] p = points.get(i);
+				outs[i] = p[0];
+				bits[i] = p[1];
+				windowLength[i] = (int) p[2];
+			}
+			index = new InflateIndex(entry.type, entry.start, out, outs,
+					bits, windowLength, windows.toArray(new byte[count][]));
+		} finally {
+			input.close();
+		}
+		index.save(file);
+		Log.d(TAG, file.getName() + ": " + index.mOut.length
+				+ " checkpoints in " + (System.currentTimeMillis() - time)
+				+ "ms");
+		return index;
+	}
+
+	private void save(File file) {
+		try {
+			DataOutputStream out = IndexUtil.beginWrite(file, KIND, VERSION);
+			if (out == null) {
+				return;
+			}
+			out.writeInt(mType);
+			out.writeLong(mStart);
+			out.writeLong(mLength);
+			out.writeInt(mOut.length);
+			for (int i = 0; i < mOut.length; i++) {
+				out.writeLong(mOut[i]);
+				out.writeLong(mBits[i]);
+				out.writeInt(mWindowLength[i]);
+				out.writeInt(mWindow[i].length);
+				out.write(mWindow[i]);
+			}
+			IndexUtil.endWrite(file, KIND, out);
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage(), e); // still usable, just not cached
+		}
+	}
+
+	private byte[] window(int k) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			byte[] window = new byte[mWindowLength[k]];
+			inflater.setInput(mWindow[k]);
+			int n = 0;
+			while (n < window.length && !inflater.finished()) {
+				n += inflater.inflate(window, n, window.length - n);
+			}
+			return window;
+		} catch (DataFormatException e) {
+			throw new IOException("bad checkpoint window");
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static byte[] deflate(Deflater deflater, byte[] data, int length) {
+		deflater.reset();
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2);
+		byte[] buffer = new byte[8192];
+		while (!deflater.finished()) {
+			int n = deflater.deflate(buffer);
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	/** Where the compressed text of a book is. */
+	private static class Entry {
+		int type;
+		long start;
+		/** uncompressed size, -1 if unknown */
+		long size;
+	}
+
+	private static Entry locate(FileChannel channel) throws IOException {
+		Entry entry = new Entry();
+		byte[] magic = read(channel, 0, 4);
+		if (magic == null) {
+			throw new EOFException();
+		}
+		if ((magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+			entry.type = TYPE_GZIP;
+			entry.start = gzipData(channel, 0);
+			// ISIZE is only that of the last member, and modulo 4 GB
+			entry.size = -1;
+			return entry;
+		}
+
+		// the first zip entry that is not a directory
+		long pos = 0;
+		while (true) {
+			byte[] header = read(channel, pos, 30);
+			if (header == null || readInt(header, 0) != 0x04034b50) {
+				throw new IOException("no text entry in zip");
+			}
+			int flags = readShort(header, 6);
+			int method = readShort(header, 8);
+			long compressed = readInt(header, 18) & 0xffffffffL;
+			long size = readInt(header, 22) & 0xffffffffL;
+			int nameLength = readShort(header, 26);
+			long data = pos + 30 + nameLength + readShort(header, 28);
+			if ((flags & 1) != 0) {
+				throw new IOException("encrypted zip");
+			}
+			byte[] name = read(channel, pos + 30, nameLength);
+			boolean described = (flags & 8) != 0;
+			if (name != null && nameLength > 0
+					&& name[nameLength - 1] == '/' && !described) {
+				pos = data + compressed;
+				continue;
+			}
+			if (name == null || !isText(name)) {
+				throw new IOException("zip entry is not text");
+			}
+			if (method == 8) {
+				entry.type = TYPE_ZIP_DEFLATED;
+				entry.size = described ? -1 : size;
+			} else if (method == 0 && !described) {
+				entry.type = TYPE_ZIP_STORED;
+				entry.size = size;
+			} else {
+				throw new IOException("unsupported zip method " + method);
+			}
+			entry.start = data;
+			return entry;
+		}
+	}
+
+	/**
+	 * Whether a zip holds a single file and it is a .txt, read from its
+	 * central directory. Any other zip is not a book.
+	 */
+	static boolean isTextZip(File file) throws IOException {
+		FileInputStream input = new FileInputStream(file);
+		try {
+			FileChannel channel = input.getChannel();
+			// the end record, behind a comment of up to 64K
+			long size = channel.size();
+			int tail = (int) Math.min(size, 22 + 0xffff);
+			byte[] end = read(channel, size - tail, tail);
+			if (end == null) {
+				return false;
+			}
+			int at = tail - 22;
+			while (at >= 0 && readInt(end, at) != 0x06054b50) {
+				at--;
+			}
+			if (at < 0) {
+				return false;
+			}
+			int entries = readShort(end, at + 10);
+			long pos = readInt(end, at + 16) & 0xffffffffL;
+			int files = 0;
+			boolean text = false;
+			for (int i = 0; i < entries; i++) {
+				byte[] header = read(channel, pos, 46);
+				if (header == null || readInt(header, 0) != 0x02014b50) {
+					return false;
+				}
+				int nameLength = readShort(header, 28);
+				byte[] name = read(channel, pos + 46, nameLength);
+				if (name == null) {
+					return false;
+				}
+				if (nameLength == 0 || name[nameLength - 1] != '/') {
+					files++;
+					text = isText(name);
+				}
+				pos += 46 + nameLength + readShort(header, 30)
+						+ readShort(header, 32);
+			}
+			return files == 1 && text;
+		} finally {
+			input.close();
+		}
+	}
+
+	private static boolean isText(byte[] name) throws IOException {
+		return new String(name, 0, name.length, "ISO-8859-1").toLowerCase()
+				.endsWith(".txt");
+	}
+
+	/**
+	 * @return the offset of the deflate data of the gzip member at pos, or -1
+	 *         if there is no member there
+	 */
+	private static long gzipData(FileChannel channel, long pos)
+			throws IOException {
+		byte[] header = read(channel, pos, 10);
+		if (header == null || (header[0] & 0xff) != 0x1f
+				|| (header[1] & 0xff) != 0x8b) {
+			return -1;
+		}
+		if (header[2] != 8) {
+			throw new IOException("unsupported gzip method " + header[2]);
+		}
+		int flags = header[3] & 0xff;
+		pos += 10;
+		if ((flags & 4) != 0) { // FEXTRA
+			byte[] extra = read(channel, pos, 2);
+			pos += 2 + (extra == null ? 0 : readShort(extra, 0));
+		}
+		if ((flags & 8) != 0) { // FNAME
+			pos = skipString(channel, pos);
+		}
+		if ((flags & 16) != 0) { // FCOMMENT
+			pos = skipString(channel, pos);
+		}
+		if ((flags & 2) != 0) { // FHCRC
+			pos += 2;
+		}
+		return pos;
+	}
+
+	private static long skipString(FileChannel channel, long pos)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(256);
+		while (true) {
+			buffer.clear();
+			int n = channel.read(buffer, pos);
+			if (n <= 0) {
+				throw new EOFException();
+			}
+			for (int i = 0; i < n; i++) {
+				if (buffer.get(i) == 0) {
+					return pos + i + 1;
+				}
+			}
+			pos += n;
+		}
+	}
+
+	private static byte[] read(FileChannel channel, long pos, int length)
+			throws IOException {
+		if (pos < 0) {
+			return null;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()
+				&& channel.read(buffer, pos + buffer.position()) > 0) {
+		}
+		return buffer.hasRemaining() ? null : buffer.array();
+	}
+
+	private static int readShort(byte[] b, int i) {
+		return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8;
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return readShort(b, i) | readShort(b, i + 2) << 16;
+	}
+
+	/**
+	 * The uncompressed bytes of an entry from a given input bit on. Moves on
+	 * to the next member of a multi-member gzip file (as written by pigz or
+	 * bgzip) by itself.
+	 */
+	private static class Stream {
+		private final FileChannel mChannel;
+		private final int mType;
+		private RawInflater mInflater;
+		/** read position and end of a stored zip entry */
+		private long mStoredPos;
+		private long mStoredEnd;
+
+		Stream(FileChannel channel, int type, long start, long bit, long size)
+				throws IOException {
+			mChannel = channel;
+			mType = type;
+			if (type == TYPE_ZIP_STORED) {
+				mStoredPos = bit / 8;
+				mStoredEnd = start + size;
+			} else {
+				mInflater = new RawInflater(channel, bit);
+			}
+		}
+
+		void setWindow(byte[] window, int length) {
+			mInflater.setWindow(window, length);
+		}
+
+		boolean atBlockBoundary() {
+			return mInflater != null && mInflater.atBlockBoundary();
+		}
+
+		long getBitPosition() {
+			return mInflater.getBitPosition();
+		}
+
+		int copyWindow(byte[] out) {
+			return mInflater.copyWindow(out);
+		}
+
+		int read(byte[] b, int offset, int length) throws IOException {
+			if (mType == TYPE_ZIP_STORED) {
+				int n = (int) Math.min(length, mStoredEnd - mStoredPos);
+				if (n <= 0) {
+					return -1;
+				}
+				ByteBuffer buffer = ByteBuffer.wrap(b, offset, n);
+				int c = mChannel.read(buffer, mStoredPos);
+				if (c <= 0) {
+					throw new EOFException();
+				}
+				mStoredPos += c;
+				return c;
+			}
+			int n = mInflater.read(b, offset, length);
+			if (n < 0 && mType == TYPE_GZIP) {
+				// skip the CRC32 and ISIZE trailer
+				long next = (mInflater.getBitPosition() + 7) / 8 + 8;
+				long data = gzipData(mChannel, next);
+				if (data >= 0) {
+					mInflater = new RawInflater(mChannel, data * 8);
+					return 0;
+				}
+			}
+			return n;
+		}
+	}
+}
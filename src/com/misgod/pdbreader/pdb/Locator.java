@@ -0,0 +1,188 @@
+package com.misgod.pdbreader.pdb;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A reading position that does not depend on how the book was decoded: the
+ * record it was in, a byte offset in the uncompressed stream, and a few
+ * chars of the text found there. Pages, charsets and line breaks may all
+ * change; the byte offset finds the page again and the fingerprint corrects
+ * the spot within it.
+ */
+public class Locator {
+    private static final int FINGERPRINT_CHARS = 16;
+    /** encode this many chars at a time when walking a page */
+    private static final int STEP = 256;
+
+    /** the page when it was saved, the record for record based books */
+    public final int mRecord;
+    /** in the whole stream for paged books, in the record otherwise */
+    public final long mOffset;
+    public final String mFingerprint;
+
+    public Locator(int record, long offset, String fingerprint) {
+        mRecord = record;
+        mOffset = offset;
+        mFingerprint = fingerprint;
+    }
+
+    static Locator at(int record, long offset, CharSequence text, int charOffset) {
+        int end = Math.min(text.length(), charOffset + FINGERPRINT_CHARS);
+        return new Locator(record, offset, text.subSequence(charOffset, end).toString());
+    }
+
+    /**
+     * The char offset in a page closest to {@code estimate} where the
+     * fingerprint shows up, the estimate itself if it does not.
+     */
+    int match(CharSequence text, int estimate) {
+        if (mFingerprint.length() == 0) {
+            return estimate;
+        }
+        String s = text.toString();
+        int before = s.lastIndexOf(mFingerprint, estimate);
+        int after = s.indexOf(mFingerprint, estimate);
+        if (before < 0) {
+            return after < 0 ? estimate : after;
+        } else if (after < 0) {
+            return before;
+        }
+        return estimate - before <= after - estimate ? before : after;
+    }
+
+    /** Bytes taken by the first {@code chars} chars of a text. */
+    static long encodedLength(CharSequence text, int chars, String charset) {
+        CharsetEncoder encoder = newEncoder(charset);
+        long bytes = 0;
+        for (int i = 0; i < chars;) {
+            int end = stepEnd(text, i, chars);
+            bytes += encode(encoder, text, i, end);
+            i = end;
+        }
+        return bytes;
+    }
+
+    /** How many chars of a text encode into at most {@code bytes} bytes. */
+    static int charsWithin(CharSequence text, long bytes, String charset) {
+        CharsetEncoder encoder = newEncoder(charset);
+        int i = 0;
+        while (i < text.length() && bytes > 0) {
+            int end = stepEnd(text, i, text.length());
+            int n = encode(encoder, text, i, end);
+            if (n > bytes) {
+                // overshot, go char by char through this step
+                while (i < end) {
+                    int next = i + 1;
+                    if (Character.isHighSurrogate(text.charAt(i)) && next < end) {
+                        next++;
+                    }
+                    bytes -= encode(encoder, text, i, next);
+                    if (bytes < 0) {
+                        return i;
+                    }
+                    i = next;
+                }
+                return i;
+            }
+            bytes -= n;
+            i = end;
+        }
+        return i;
+    }
+
+    /** The end of a step from i, not between the chars of a surrogate pair. */
+    private static int stepEnd(CharSequence text, int i, int limit) {
+        int end = Math.min(limit, i + STEP);
+        if (end < limit && Character.isHighSurrogate(text.charAt(end - 1))) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Bytes of page data that decode into its first {@code chars} chars.
+     * Unlike encoding the text back it is exact where the decoder replaced
+     * malformed input.
+     */
+    static int bytesBefore(byte[] data, int length, int chars, String charset) {
+        ByteBuffer in = ByteBuffer.wrap(data, 0, length);
+        // stops, with the input after the last char written, once out is full
+        newDecoder(charset).decode(in, CharBuffer.allocate(Math.max(0, chars)), true);
+        return in.position();
+    }
+
+    /** Chars the first {@code bytes} bytes of page data decode into. */
+    static int charsBefore(byte[] data, int length, long bytes, String charset) {
+        CharsetDecoder decoder = newDecoder(charset);
+        ByteBuffer in = ByteBuffer.wrap(data, 0, (int) Math.max(0, Math.min(bytes, length)));
+        CharBuffer out = CharBuffer.allocate((int) (in.remaining()
+                * decoder.maxCharsPerByte()) + 16);
+        decoder.decode(in, out, false); // a char cut off at the end is not counted
+        return out.position();
+    }
+
+    /** A text in the bytes of a book's stream, without a byte order mark. */
+    static byte[] toBytes(CharSequence text, String charset) {
+        try {
+            ByteBuffer out = newEncoder(charset).encode(CharBuffer.wrap(text));
+            byte[] bytes = new byte[out.remaining()];
+            out.get(bytes);
+            return bytes;
+        } catch (CharacterCodingException e) {
+            return new byte[0]; // not with REPLACE
+        }
+    }
+
+    private static CharsetEncoder newEncoder(String charset) {
+        if (charset.equalsIgnoreCase("UTF-16")) {
+            charset = "UTF-16BE"; // no byte order mark in front of every step
+        }
+        return Charset.forName(charset).newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /** Like {@link com.misgod.pdbreader.util.ConvertUtil#decode}. */
+    private static CharsetDecoder newDecoder(String charset) {
+        return Charset.forName(charset).newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    private static int encode(CharsetEncoder encoder, CharSequence text, int start, int end) {
+        try {
+            ByteBuffer out = encoder.encode(CharBuffer.wrap(text, start, end));
+            return out.remaining();
+        } catch (CharacterCodingException e) {
+            return end - start; // not with REPLACE, but count a byte a char
+        }
+    }
+
+    /** record:offset:fingerprint, as stored with the book. */
+    @Override
+    public String toString() {
+        return mRecord + ":" + mOffset + ":" + mFingerprint;
+    }
+
+    /** @return null if the string is not a saved locator */
+    public static Locator parse(String s) {
+        if (s == null) {
+            return null;
+        }
+        String[] parts = s.split(":", 3);
+        if (parts.length < 3) {
+            return null;
+        }
+        try {
+            return new Locator(Integer.parseInt(parts[0]), Long.parseLong(parts[1]), parts[2]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
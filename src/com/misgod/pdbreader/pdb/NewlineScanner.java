@@ -0,0 +1,133 @@
+package com.misgod.pdbreader.pdb;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Finds line feeds at the byte level, 8 bytes at a time (SWAR), in a memory
+ * mapped file. TxtPageIndex uses it to cut a big file at line starts into
+ * pieces it paginates on several threads, see {@link #run}.
+ * 
+ * Works for every ASCII compatible charset, where 0x0A never shows up inside
+ * a multibyte sequence, and for UTF-16 in either byte order.
+ */
+public class NewlineScanner {
+	public static final int UNIT_BYTE = 0;
+	public static final int UNIT_UTF16LE = 1;
+	public static final int UNIT_UTF16BE = 2;
+
+	private static final int MIN_CHUNK = 1024 * 1024;
+	private static final long LOW7 = 0x7f7f7f7f7f7f7f7fL;
+	private static final long LOW15 = 0x7fff7fff7fff7fffL;
+
+	private final int mStep;
+	/** line feed in every lane of a little-endian read word */
+	private final long mPattern;
+	private final long mLowMask;
+	private final int mThreads;
+
+	public NewlineScanner(int unit, int threads) {
+		mStep = unit == UNIT_BYTE ? 1 : 2;
+		if (unit == UNIT_BYTE) {
+			mPattern = 0x0a0a0a0a0a0a0a0aL;
+			mLowMask = LOW7;
+		} else if (unit == UNIT_UTF16LE) {
+			mPattern = 0x000a000a000a000aL;
+			mLowMask = LOW15;
+		} else {
+			// bytes 00 0A read little-endian
+			mPattern = 0x0a000a000a000a00L;
+			mLowMask = LOW15;
+		}
+		mThreads = Math.max(1, threads);
+	}
+
+	public NewlineScanner(int unit) {
+		this(unit, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @return the offset just past the first line feed in [pos, end), or end
+	 *         if there is none. pos must sit on a unit boundary.
+	 */
+	public long nextLineStart(FileChannel channel, long pos, long end)
+			throws IOException {
+		while (pos < end) {
+			long size = Math.min(end - pos, MIN_CHUNK);
+			size -= size % mStep;
+			if (size == 0) {
+				break;
+			}
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, pos, size);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			int words = (int) size & ~7;
+			for (int i = 0; i < words; i += 8) {
+				long hits = zeroLanes(buffer.getLong(i) ^ mPattern);
+				if (hits != 0) {
+					return pos + i + (Long.numberOfTrailingZeros(hits) >>> 3) + 1;
+				}
+			}
+			for (int i = words; i + mStep <= size; i += mStep) {
+				if (mStep == 1 ? buffer.get(i) == '\n'
+						: (buffer.getShort(i) & 0xffff) == (mPattern & 0xffff)) {
+					return pos + i + mStep;
+				}
+			}
+			pos += size;
+		}
+		return end;
+	}
+
+	public int getThreads() {
+		return mThreads;
+	}
+
+	static List<long[]> run(ExecutorService executor,
+			List<Callable<long[]>> tasks) throws IOException {
+		List<long[]> results = new ArrayList<long[]>(tasks.size());
+		try {
+			if (executor == null) {
+				for (Callable<long[]> task : tasks) {
+					results.add(task.call());
+				}
+			} else {
+				for (Future<long[]> future : executor.invokeAll(tasks)) {
+					results.add(future.get());
+				}
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted");
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return results;
+	}
+
+	/**
+	 * Set the top bit of every lane (byte or 16-bit unit) that is zero, and
+	 * nothing else. Unlike the shorter (v - 0x01..) & ~v form this never flags
+	 * a lane because of a borrow, so the hits can be located, not just
+	 * counted. For 16-bit lanes the top bit is the last byte of the unit,
+	 * which is why (bit >>> 3) + 1 is the byte just past the unit.
+	 */
+	private long zeroLanes(long v) {
+		long t = (v & mLowMask) + mLowMask;
+		return ~(t | v | mLowMask);
+	}
+}
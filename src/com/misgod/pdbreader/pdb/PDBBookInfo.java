@@ -1,6 +1,7 @@
 package com.misgod.pdbreader.pdb;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -9,9 +10,13 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.zip.DataFormatException;
 import java.util.zip.InflaterInputStream;
 
+import org.WeaselReader.PalmIO.PalmDB;
 import org.WeaselReader.PalmIO.PalmDocDB;
 import org.WeaselReader.PalmIO.ZtxtDB;
 
@@ -19,6 +24,9 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.util.Log;
 
+import com.misgod.pdbreader.util.CancelToken;
+import com.misgod.pdbreader.util.CharsetDetector;
+import com.misgod.pdbreader.util.ConvertUtil;
 import com.misgod.pdbreader.util.FormatNotSupportException;
 
 /*
@@ -31,10 +39,13 @@ import com.misgod.pdbreader.util.FormatNotSupportException;
  * numRecords; };
  */
 public class PDBBookInfo extends AbstractBookInfo {
+    private static final String TAG = "PDBBookInfo";
     public int mCount;
     public int[] mRecodeOffset;
-    public boolean isProgressing;
     private int mType = TYPE_NORMAL;
+    /** the chapter list of a Hodoo book, from its record 0 */
+    private List<Chapter> mToc = Collections.emptyList();
+    private static final byte ESC = 0x1B;
     
     private static final int TYPE_NORMAL = 0;
     private static final int TYPE_Hodoo = 1;
@@ -48,6 +59,7 @@ public class PDBBookInfo extends AbstractBookInfo {
         mFile = pdb;
 
         mPage = 0;
+        mToc = Collections.emptyList();
         FileChannel channel = new FileInputStream(pdb).getChannel();
 
         byte[] nameByte = new byte[32];
@@ -97,17 +109,16 @@ public class PDBBookInfo extends AbstractBookInfo {
             offset += 8;
         }
         
-        if(mType == TYPE_Hodoo){
-        	byte[] fifityBytes = new byte[50];
+        if(mType == TYPE_Hodoo && mCount > 1){
+        	byte[] header = new byte[mRecodeOffset[1] - mRecodeOffset[0]];
         	channel.map(MapMode.READ_ONLY, mRecodeOffset[0],
-        			fifityBytes.length).order(ByteOrder.BIG_ENDIAN).get(fifityBytes);
-        	String str = new String(fifityBytes, mEncode); 
-        	mName = str.substring(0, str.indexOf(27, 0)).trim(); //escape
+        			header.length).order(ByteOrder.BIG_ENDIAN).get(header);
+        	readHodooHeader(header);
         }
         
         
         channel.close();
-        
+        pagesChanged();
 
     }
    
@@ -115,112 +126,397 @@ public class PDBBookInfo extends AbstractBookInfo {
     public int getPageCount() {
         return mCount;
     }
-    
-    boolean isStop;
-    public  void stop(){
-        isStop = true;
+
+    @Override
+    public List<Chapter> getTableOfContents() {
+        return mToc;
     }
-    
-    public  boolean isProgressing(){
-        return isProgressing;
+
+    /**
+     * Record 0 of a Hodoo book holds ESC separated fields: the title, the
+     * number of chapters, then the title of each chapter, chapter i being
+     * in record i + 1; a chapter with an empty title is left out of the
+     * table of contents. Split on the bytes so a Big5 trail byte or half a
+     * UTF-16 character is never taken for an ESC.
+     */
+    private void readHodooHeader(byte[] header) throws IOException {
+        boolean wide = mEncode.startsWith("UTF-16");
+        int unit = wide ? 2 : 1;
+        int start = 0;
+        // padded with spaces or ESC in front
+        while (start + unit <= header.length
+                && (header[start] == ' ' || header[start] == ESC)
+                && (!wide || header[start + 1] == 0 || header[start + 1] == ' ')) {
+            start += unit;
+        }
+        // an empty field is kept, chapters are matched to records by position
+        List<String> fields = new ArrayList<String>();
+        for (int i = start; i + unit <= header.length; i += unit) {
+            if (header[i] == ESC && (!wide || header[i + 1] == 0)) {
+                fields.add(new String(header, start, i - start, mEncode));
+                start = i + unit;
+            }
+        }
+        if (start < header.length) {
+            fields.add(new String(header, start, header.length - start, mEncode));
+        }
+        if (fields.isEmpty()) {
+            return;
+        }
+        mName = fields.get(0).trim();
+
+        int first = 1;
+        int count = fields.size() - 1;
+        if (fields.size() > 1) {
+            try {
+                count = Integer.parseInt(fields.get(1).trim());
+                first = 2;
+            } catch (NumberFormatException e) {
+                // no count, the titles follow the name
+            }
+        }
+        List<Chapter> toc = new ArrayList<Chapter>();
+        for (int i = 0; i < count && first + i < fields.size() && i + 1 < mCount; i++) {
+            String title = fields.get(first + i).trim();
+            if (title.length() > 0) {
+                toc.add(new Chapter(title, i + 1));
+            }
+        }
+        mToc = Collections.unmodifiableList(toc);
     }
     
-    
-    public String getText() throws IOException, DataFormatException {
-        isProgressing = true;
-        try{
-        	if(mFormat ==2){ 
-                return getPalmDoc();
-            }else if(mFormat ==3){ 
-            	return getZTXT();
-            }else{
-            	  return getMyText();
+    /**
+     * Sample the first, middle and last text records. PalmDoc records are
+     * decompressed one by one, without building the record length table of
+     * a full PalmDocDB.
+     */
+    @Override
+    public CharsetDetector.Result detectCharset() throws IOException {
+        if (mType != TYPE_NORMAL || mFormat == 1) {
+            return null; // Hodoo and eReader books declare their charset
+        }
+        List<byte[]> samples = new ArrayList<byte[]>();
+        try {
+            if (mFormat == 2) {
+                PalmDB pdb = new PalmDB(mFile);
+                try {
+                    byte[] header = pdb.readRecord(0);
+                    boolean compressed = ((header[0] & 0xff) << 8 | (header[1] & 0xff))
+                            == PalmDocDB.PALMDOC_COMPRESSED;
+                    int records = Math.min((header[8] & 0xff) << 8 | (header[9] & 0xff),
+                            pdb.getNumRecords() - 1);
+                    for (int i : sampleRecords(records)) {
+                        byte[] data = pdb.readRecord(i + 1);
+                        samples.add(compressed ? PalmDocDB.decompressRecord(data) : data);
+                    }
+                } finally {
+                    pdb.close();
+                }
+            } else if (mFormat == 3) {
+                ZtxtDB ztxt = new ZtxtDB(mFile, mEncode);
+                try {
+                    ztxt.initializeDecompression();
+                    for (int i : sampleRecords(ztxt.getNumDataRecords())) {
+                        samples.add(ztxt.readTextRecordBytes(i));
+                    }
+                    ztxt.endDecompression();
+                } finally {
+                    ztxt.close();
+                }
+            } else {
+                FileChannel channel = new FileInputStream(mFile).getChannel();
+                try {
+                    for (int i : sampleRecords(mCount - 1)) {
+                        long begin = mRecodeOffset[i + 1];
+                        long end = i + 2 < mCount ? mRecodeOffset[i + 2] : channel.size();
+                        byte[] data = new byte[(int) Math.min(end - begin,
+                                CharsetDetector.WINDOW_SIZE)];
+                        channel.map(MapMode.READ_ONLY, begin, data.length).get(data);
+                        samples.add(data);
+                    }
+                } finally {
+                    channel.close();
+                }
             }
-        }finally{
-            isProgressing = false;
+        } catch (DataFormatException e) {
+            Log.d(TAG, e.getMessage(), e);
+            return null;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            Log.d(TAG, "bad record table", e);
+            return null;
+        }
+        return CharsetDetector.detect(samples);
+    }
+
+    private static int[] sampleRecords(int count) {
+        if (count <= 0) {
+            return new int[0];
+        } else if (count < 3) {
+            return count == 1 ? new int[] {0} : new int[] {0, 1};
+        }
+        return new int[] {0, count / 2, count - 1};
+    }
+
+    @Override
+    protected byte[] readBytes(int page, CancelToken token) throws IOException, DataFormatException {
+        token.throwIfCancelled();
+        if(mFormat ==2){ 
+            return readPalmDoc(page, token);
+        }else if(mFormat ==3){ 
+            return readZTXT(page, token);
+        }else{
+            return readRecord(page, token);
+        }
+    }
+
+    @Override
+    protected CharSequence decode(byte[] data, CancelToken token) {
+        String str = ConvertUtil.decode(data, 0, data.length, mEncode, token);
+        if(mFormat ==2 || mFormat ==3){
+            return str;
+        }else if(mFormat==1){
+            str = replaceString(str);
         }
+        return filter(new StringBuilder(str), token);
     }
     
-    public String getMyText() throws IOException {
-        /* Record Header */
-       // int recordBegin = 78 + 8 * mCount;
+    /**
+     * PalmDoc and zTXT books are opened once for the whole scan, instead of
+     * once a page with the record table built each time.
+     */
+    @Override
+    public void scanPages(int from, PageVisitor visitor, CancelToken token) throws Exception {
+        if (mFormat == 2) {
+            PalmDocDB palmDoc = new PalmDocDB(mFile, mEncode);
+            try {
+                for (int page = from; page < palmDoc.getNumDataRecords(); page++) {
+                    token.throwIfCancelled();
+                    visitor.visit(page, decode(palmDoc.readTextRecordBytes(page), token));
+                }
+            } finally {
+                palmDoc.close();
+            }
+        } else if (mFormat == 3) {
+            ZtxtDB ztxt = new ZtxtDB(mFile, mEncode);
+            try {
+                ztxt.initializeDecompression();
+                for (int page = from; page < ztxt.getNumDataRecords(); page++) {
+                    token.throwIfCancelled();
+                    visitor.visit(page, decode(ztxt.readTextRecordBytes(page), token));
+                }
+                ztxt.endDecompression();
+            } finally {
+                ztxt.close();
+            }
+        } else {
+            super.scanPages(from, visitor, token);
+        }
+    }
 
-        FileChannel channel = new FileInputStream(mFile).getChannel();
+    /**
+     * Records are read in order from one open file and decompressed in
+     * parallel: PalmDoc and eReader records each on their own. A zTXT
+     * stream only inflates in order, so that is done while reading.
+     */
+    @Override
+    public PageSource openPages() throws IOException {
+        if (mFormat == 3) {
+            final ZtxtDB ztxt;
+            try {
+                ztxt = new ZtxtDB(mFile, mEncode);
+                ztxt.initializeDecompression();
+            } catch (DataFormatException e) {
+                throw new IOException(e.getMessage());
+            }
+            return new PageSource() {
+                @Override
+                public int getPageCount() {
+                    return ztxt.getNumDataRecords();
+                }
 
-        channel.position(mRecodeOffset[mPage]);
-        StringBuilder body = new StringBuilder();
-        ByteBuffer bodyBuffer;
-        if (mPage + 1 < mCount) {
-            int length = mRecodeOffset[mPage + 1] - mRecodeOffset[mPage];
-            bodyBuffer = channel.map(MapMode.READ_ONLY, mRecodeOffset[mPage],
-                    length).order(ByteOrder.BIG_ENDIAN);
-            byte[] tmpCache = new byte[bodyBuffer.capacity()];
-            bodyBuffer.get(tmpCache);
-            if(mFormat==1){
-                byte[] ttt = new byte[8192];
-                InflaterInputStream input = new InflaterInputStream(new ByteArrayInputStream(tmpCache));
-                int c=0;
-                while((c = input.read(ttt))>0){
-                    String str = new String(ttt,0,c, mEncode);
-                    body.append(replaceString(str));
-                    if(isStop){
-                        isStop = false;
-                        break;
+                @Override
+                public byte[] read(int page, CancelToken token) throws Exception {
+                    return ztxt.readTextRecordBytes(page);
+                }
+
+                @Override
+                public byte[] unpack(int page, byte[] stored, CancelToken token) {
+                    return stored;
+                }
+
+                @Override
+                public boolean canSkip() {
+                    return false;
+                }
+
+                @Override
+                public void close() {
+                    ztxt.endDecompression();
+                    try {
+                        ztxt.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, e.getMessage(), e);
                     }
-                    
                 }
-                input.close();
-            }else{
-                String str = new String(tmpCache,mEncode);
-                body.append(str);
+            };
+        }
+        final FileChannel channel = new FileInputStream(mFile).getChannel();
+        int pages = mCount;
+        boolean compressed = false;
+        // PalmDoc text starts at record 1, after the header
+        final int first = mFormat == 2 ? 1 : 0;
+        if (mFormat == 2) {
+            try {
+                ByteBuffer header = channel.map(MapMode.READ_ONLY, mRecodeOffset[0], 10);
+                compressed = header.getShort(0) == PalmDocDB.PALMDOC_COMPRESSED;
+                pages = Math.min(header.getShort(8) & 0xffff, mRecodeOffset.length - 1);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
             }
-        } else {
-            bodyBuffer = ByteBuffer.wrap(new byte[8192]);
-            int idx;
-            while ((idx = channel.read(bodyBuffer)) > 0) {
-                String str = new String(bodyBuffer.array(), mEncode);
-                body.append(str);
-                if(isStop){
-                    isStop = false;
-                    break;
+        }
+        final int count = pages;
+        final boolean palmDocCompressed = compressed;
+        return new PageSource() {
+            private PalmDocMatcher mPalmDocMatcher;
+
+            @Override
+            public int getPageCount() {
+                return count;
+            }
+
+            @Override
+            public byte[] read(int page, CancelToken token) throws IOException {
+                int record = page + first;
+                long begin = mRecodeOffset[record];
+                long end = record + 1 < mRecodeOffset.length ? mRecodeOffset[record + 1]
+                        : channel.size();
+                byte[] data = new byte[(int) (end - begin)];
+                channel.map(MapMode.READ_ONLY, begin, data.length).get(data);
+                return data;
+            }
+
+            @Override
+            public byte[] unpack(int page, byte[] stored, CancelToken token) throws IOException {
+                if (mFormat == 1) {
+                    return inflate(stored, token);
+                } else if (palmDocCompressed) {
+                    return PalmDocDB.decompressRecord(stored);
                 }
+                return stored;
             }
+
+            @Override
+            PageScan scan(int page, byte[] stored, Horspool matcher, CancelToken token)
+                    throws Exception {
+                if (!palmDocCompressed || !PalmDocMatcher.fits(matcher.length())) {
+                    return super.scan(page, stored, matcher, token);
+                }
+                // the record is matched as it is, see PalmDocMatcher
+                return palmDocMatcher(matcher).scan(stored);
+            }
+
+            private synchronized PalmDocMatcher palmDocMatcher(Horspool matcher) {
+                if (mPalmDocMatcher == null) {
+                    mPalmDocMatcher = new PalmDocMatcher(matcher.pattern());
+                }
+                return mPalmDocMatcher;
+            }
+
+            @Override
+            public void close() {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    Log.e(TAG, e.getMessage(), e);
+                }
+            }
+        };
+    }
+
+    /** A raw record, inflated for eReader books. */
+    public byte[] readRecord(int page, CancelToken token) throws IOException {
+        /* Record Header */
+       // int recordBegin = 78 + 8 * mCount;
+
+        FileChannel channel = new FileInputStream(mFile).getChannel();
+        byte[] tmpCache;
+        try {
+            // the last record runs to the end of the file
+            long begin = mRecodeOffset[page];
+            long end = page + 1 < mCount ? mRecodeOffset[page + 1] : channel.size();
+            ByteBuffer bodyBuffer = channel.map(MapMode.READ_ONLY, begin,
+                    end - begin).order(ByteOrder.BIG_ENDIAN);
+            tmpCache = new byte[bodyBuffer.capacity()];
+            bodyBuffer.get(tmpCache);
+        } finally {
+            channel.close();
         }
-        channel.close();
 
-        
-        return filter(body);
+        if(mFormat==1){
+            return inflate(tmpCache, token);
+        }
+        return tmpCache;
 
     }
     
+    /**
+     * eReader records are zlib streams; inflate them 8K at a time.
+     */
+    private byte[] inflate(byte[] data, CancelToken token) throws IOException {
+        InflaterInputStream input = new InflaterInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream output = new ByteArrayOutputStream(data.length * 2);
+        byte[] ttt = new byte[8192];
+        try {
+            int c = 0;
+            while ((c = input.read(ttt)) > 0) {
+                output.write(ttt, 0, c);
+                token.throwIfCancelled();
+            }
+        } finally {
+            input.close();
+        }
+        return output.toByteArray();
+    }
     
     
-    public String getPalmDoc() throws IOException, DataFormatException {
+    public byte[] readPalmDoc(int page, CancelToken token) throws IOException, DataFormatException {
         PalmDocDB palmDoc = new PalmDocDB(mFile,mEncode);
-        mCount = palmDoc.getNumDataRecords();
-        String result = palmDoc.readTextRecord(mPage);
-        palmDoc.close();
-        return result;
+        byte[] data;
+        try {
+            mCount = palmDoc.getNumDataRecords();
+            data = palmDoc.readTextRecordBytes(page);
+        } finally {
+            palmDoc.close();
+        }
+        return data;
     }
     
-    public String getZTXT() throws IOException, DataFormatException {
+    public byte[] readZTXT(int page, CancelToken token) throws IOException, DataFormatException {
     	ZtxtDB palmDoc = new ZtxtDB(mFile,mEncode);
-    	palmDoc.initializeDecompression();
-        mCount = palmDoc.getNumDataRecords();
-        String result = palmDoc.readTextRecord(mPage);
-        palmDoc.close();
-        return result;
+        byte[] data;
+        try {
+            palmDoc.initializeDecompression();
+            mCount = palmDoc.getNumDataRecords();
+            token.throwIfCancelled();
+            data = palmDoc.readTextRecordBytes(page);
+            palmDoc.endDecompression();
+        } finally {
+            palmDoc.close();
+        }
+        return data;
     }
     
     
     /**
      * filter palm doc tag
      */
-    private String filter(StringBuilder body){
+    private String filter(StringBuilder body, CancelToken token){
         int begin=-1;
         int c=-1;
 
         while((c = body.indexOf("\\v",c+1)) >0 ){
+            token.throwIfCancelled();
             if(begin>-1){
                 body.delete(begin, c);
                 begin = -1;
@@ -231,15 +527,18 @@ public class PDBBookInfo extends AbstractBookInfo {
        
         c=-1;
         while((c = body.indexOf("\\a"))>-1){
+            token.throwIfCancelled();
             char myChar = (char)Integer.parseInt(body.substring(c+2, c+5));
             body.replace(c, c+5,  String.valueOf(myChar));
         }
         String result = body.toString();
+        token.throwIfCancelled();
         
         result = result.replaceAll("\\\\Sd=\\\".*\\\"|\\\\(Sd|Fn|Cn|[TwQq])=\".*\"|\\\\((Sp|Sb|Sd|Fn)|[pxcriuovtnsbqlBkI\\-])", "")
         .replace("\\\\", "\\");
 
         if(mType == TYPE_Hodoo){
+        	token.throwIfCancelled();
         	result = replaceString(result);
         }
         
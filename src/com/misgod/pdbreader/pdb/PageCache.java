@@ -0,0 +1,92 @@
+package com.misgod.pdbreader.pdb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decoded pages, least recently used first out, bounded by their total
+ * length in chars. Hits and misses count lookups for the visible page only,
+ * read-ahead goes through {@link #contains} and does not skew them.
+ */
+public class PageCache {
+    private final int mMaxChars;
+    private final LinkedHashMap<Integer, CharSequence> mPages = new LinkedHashMap<Integer, CharSequence>(
+            8, 0.75f, true);
+    private int mChars;
+    private int mGeneration;
+    private int mHits;
+    private int mMisses;
+
+    public PageCache(int maxChars) {
+        mMaxChars = maxChars;
+    }
+
+    public synchronized CharSequence get(int page) {
+        CharSequence text = mPages.get(page);
+        if (text == null) {
+            mMisses++;
+        } else {
+            mHits++;
+        }
+        return text;
+    }
+
+    /** A lookup that does not count as a hit or a miss, for read-ahead. */
+    public synchronized CharSequence peek(int page) {
+        return mPages.get(page);
+    }
+
+    public synchronized boolean contains(int page) {
+        return mPages.containsKey(page);
+    }
+
+    /**
+     * Bumped by every {@link #clear()}, so a page decoded before the clear
+     * (with the old encoding, say) is not put back afterwards.
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    public synchronized void put(int generation, int page, CharSequence text) {
+        if (generation != mGeneration || text.length() > mMaxChars) {
+            return;
+        }
+        CharSequence old = mPages.put(page, text);
+        if (old != null) {
+            mChars -= old.length();
+        }
+        mChars += text.length();
+        Iterator<Map.Entry<Integer, CharSequence>> it = mPages.entrySet().iterator();
+        while (mChars > mMaxChars && it.hasNext()) {
+            Map.Entry<Integer, CharSequence> eldest = it.next();
+            if (eldest.getKey() != page) {
+                mChars -= eldest.getValue().length();
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        mPages.clear();
+        mChars = 0;
+        mGeneration++;
+    }
+
+    public synchronized int getHits() {
+        return mHits;
+    }
+
+    public synchronized int getMisses() {
+        return mMisses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int total = mHits + mMisses;
+        return "PageCache " + mPages.size() + " pages, " + mChars + " chars, "
+                + mHits + "/" + total + " hits"
+                + (total == 0 ? "" : " (" + (100 * mHits / total) + "%)");
+    }
+}
@@ -0,0 +1,245 @@
+package com.misgod.pdbreader.pdb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import android.util.Log;
+
+import com.misgod.pdbreader.util.CancelToken;
+import com.misgod.pdbreader.util.IndexUtil;
+
+/**
+ * A Bloom filter per page over the byte trigrams of its uncompressed text,
+ * kept as a sidecar. A search tests the trigrams of the encoded query
+ * against them and only decompresses the pages that may hold it. The first
+ * and last bytes of every page are kept too, so a match across a cut is
+ * found from those and only its two pages are read.
+ */
+public class PageFilters {
+    private static final String TAG = "PageFilters";
+    private static final String KIND = "filters";
+    /** 2: keyed on the page cuts too; 3: HTML pages without markup */
+    private static final int VERSION = 3;
+    private static final int GRAM = 3;
+    /** filter bits per byte of text, the filters are an eighth of the text */
+    private static final int BITS_PER_BYTE = 1;
+    private static final int[] HASHES = { 0x9e3779b1, 0x85ebca6b };
+    /** bytes kept of both ends of a page */
+    private static final int EDGE = 32;
+
+    /** The pages a search has to read, see {@link #plan}. */
+    static class Plan {
+        /** where each page starts in the uncompressed text, and the end */
+        final long[] mStart;
+        final boolean[] mScan;
+        final int mSkipped;
+
+        Plan(long[] start, boolean[] scan, int skipped) {
+            mStart = start;
+            mScan = scan;
+            mSkipped = skipped;
+        }
+    }
+
+    /**
+     * Build the filters of a book unless it has current ones. Does nothing
+     * for a book whose pages can only be read in order, nothing is saved
+     * by skipping there.
+     */
+    public static void build(AbstractBookInfo book, CancelToken token) throws Exception {
+        DataInputStream in = openForRead(book);
+        if (in != null) {
+            IndexUtil.close(in);
+            return;
+        }
+        AbstractBookInfo.PageSource source = book.openPages();
+        DataOutputStream out = null;
+        try {
+            if (!source.canSkip()) {
+                return;
+            }
+            long begin = System.currentTimeMillis();
+            int count = source.getPageCount();
+            long cuts = book.getPageCutsKey();
+            out = IndexUtil.beginWrite(book.mFile, KIND, VERSION);
+            if (out == null) {
+                return;
+            }
+            writeHeader(out, book, cuts, count);
+            long size = 0;
+            byte[] edges = new byte[EDGE * 2];
+            for (int i = 0; i < count; i++) {
+                token.throwIfCancelled();
+                byte[] data = source.unpack(i, source.read(i, token), token);
+                byte[] bits = new byte[Math.max(8, (data.length * BITS_PER_BYTE + 63) / 64 * 8)];
+                int v = 0;
+                for (int j = 0; j < data.length; j++) {
+                    v = (v << 8 | data[j] & 0xff) & 0xffffff;
+                    if (j >= GRAM - 1) {
+                        for (int hash : HASHES) {
+                            int bit = bit(v, hash, bits.length);
+                            bits[bit >> 3] |= 1 << (bit & 7);
+                        }
+                    }
+                }
+                int edge = Math.min(EDGE, data.length);
+                System.arraycopy(data, 0, edges, 0, edge);
+                System.arraycopy(data, data.length - edge, edges, EDGE, edge);
+                out.writeInt(data.length);
+                out.write(edges);
+                out.writeInt(bits.length);
+                out.write(bits);
+                size += 8 + edges.length + bits.length;
+            }
+            if (book.getPageCutsKey() != cuts) {
+                return; // reindexed meanwhile, the filters are of the old pages
+            }
+            IndexUtil.endWrite(book.mFile, KIND, out);
+            out = null;
+            Log.d(TAG, book.mFile.getName() + ": " + count + " filters, " + size + " bytes in "
+                    + (System.currentTimeMillis() - begin) + "ms");
+        } finally {
+            if (out != null) {
+                out.close(); // the temp file is written over next time
+            }
+            source.close();
+        }
+    }
+
+    /**
+     * Read the filters back and mark the pages that may hold the pattern,
+     * and both pages of a cut the pattern may run across. Null if there
+     * are no current filters or the pattern is too short to test.
+     */
+    static Plan plan(AbstractBookInfo book, byte[] pattern) {
+        int grams = pattern.length - GRAM + 1;
+        if (grams < 1) {
+            return null;
+        }
+        DataInputStream in = openForRead(book);
+        if (in == null) {
+            return null;
+        }
+        try {
+            int count = in.readInt();
+            long[] start = new long[count + 1];
+            boolean[] scan = new boolean[count];
+            int[] values = new int[grams];
+            for (int g = 0; g < grams; g++) {
+                values[g] = (pattern[g] & 0xff) << 16 | (pattern[g + 1] & 0xff) << 8
+                        | pattern[g + 2] & 0xff;
+            }
+            byte[] edges = new byte[EDGE * 2];
+            byte[] prevEdges = new byte[EDGE * 2];
+            byte[] bits = new byte[0];
+            for (int i = 0; i < count; i++) {
+                int length = in.readInt();
+                start[i + 1] = start[i] + length;
+                in.readFully(edges);
+                int bytes = in.readInt();
+                if (bits.length != bytes) {
+                    bits = new byte[bytes];
+                }
+                in.readFully(bits);
+                boolean all = true;
+                for (int g = 0; g < grams && all; g++) {
+                    all = contains(bits, values[g]);
+                }
+                if (all) {
+                    scan[i] = true;
+                }
+                if (i > 0 && across(pattern, prevEdges, (int) (start[i] - start[i - 1]),
+                        edges, length)) {
+                    scan[i - 1] = true;
+                    scan[i] = true;
+                }
+                byte[] swap = prevEdges;
+                prevEdges = edges;
+                edges = swap;
+            }
+            int skipped = 0;
+            for (boolean s : scan) {
+                skipped += s ? 0 : 1;
+            }
+            return new Plan(start, scan, skipped);
+        } catch (IOException e) {
+            Log.d(TAG, e.getMessage(), e);
+            return null;
+        } finally {
+            IndexUtil.close(in);
+        }
+    }
+
+    /**
+     * Whether the pattern may run from one page into the next: for some cut
+     * in the pattern, the kept end of the one page and the kept start of
+     * the next agree with it. Exact for a pattern up to EDGE + 1 bytes.
+     */
+    private static boolean across(byte[] pattern, byte[] before, int beforeLength,
+            byte[] after, int afterLength) {
+        int m = pattern.length;
+        int tail = Math.min(EDGE, beforeLength);
+        int head = Math.min(EDGE, afterLength);
+        for (int cut = Math.max(1, m - afterLength); cut <= Math.min(m - 1, beforeLength); cut++) {
+            boolean same = true;
+            for (int j = 1; j <= Math.min(cut, tail) && same; j++) {
+                same = pattern[cut - j] == before[EDGE + tail - j];
+            }
+            for (int j = 0; j < Math.min(m - cut, head) && same; j++) {
+                same = pattern[cut + j] == after[j];
+            }
+            if (same) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** A bit of the filter for a trigram, the hash scaled to the filter size. */
+    private static int bit(int value, int hash, int bytes) {
+        return (int) (((value * hash) & 0xffffffffL) * (bytes * 8) >>> 32);
+    }
+
+    private static boolean contains(byte[] bits, int value) {
+        for (int hash : HASHES) {
+            int bit = bit(value, hash, bits.length);
+            if ((bits[bit >> 3] & 1 << (bit & 7)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeHeader(DataOutputStream out, AbstractBookInfo book, long cuts,
+            int count) throws IOException {
+        out.writeUTF(String.valueOf(book.getStreamCharset()));
+        out.writeInt(book.mFormat);
+        out.writeInt(book.getPageCount());
+        out.writeLong(cuts);
+        out.writeInt(count);
+    }
+
+    /**
+     * The filters of the book positioned at the page count, null if none or
+     * stale: made with another charset, or on pages cut elsewhere.
+     */
+    private static DataInputStream openForRead(AbstractBookInfo book) {
+        DataInputStream in = IndexUtil.openForRead(book.mFile, KIND, VERSION);
+        if (in == null) {
+            return null;
+        }
+        try {
+            if (in.readUTF().equals(String.valueOf(book.getStreamCharset()))
+                    && in.readInt() == book.mFormat
+                    && in.readInt() == book.getPageCount()
+                    && in.readLong() == book.getPageCutsKey()) {
+                return in;
+            }
+        } catch (IOException e) {
+            Log.d(TAG, e.getMessage(), e);
+        }
+        IndexUtil.close(in);
+        return null;
+    }
+}
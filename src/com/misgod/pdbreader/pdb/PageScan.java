@@ -0,0 +1,58 @@
+package com.misgod.pdbreader.pdb;
+
+/**
+ * What a search found in one page: where the pattern matched, how long the
+ * page is, and its first and last m - 1 bytes for a match across the cut.
+ * The bytes of the page are only there if the scan had them at hand.
+ */
+class PageScan {
+    private static final int[] NO_MATCHES = new int[0];
+
+    final byte[] mStored;
+    /** the page, null until unpacked */
+    byte[] mData;
+    final int mLength;
+    final byte[] mHead;
+    final byte[] mTail;
+    final int[] mMatches;
+    final int mMatchCount;
+
+    PageScan(byte[] stored, byte[] data, int length, byte[] head, byte[] tail, int[] matches,
+            int matchCount) {
+        mStored = stored;
+        mData = data;
+        mLength = length;
+        mHead = head;
+        mTail = tail;
+        mMatches = matches;
+        mMatchCount = matchCount;
+    }
+
+    /** Scan an unpacked page with Horspool. */
+    static PageScan of(byte[] stored, byte[] data, Horspool matcher) {
+        int[] matches = NO_MATCHES;
+        int count = 0;
+        int at = matcher.indexOf(data, 0, data.length);
+        while (at >= 0) {
+            matches = add(matches, count++, at);
+            at = matcher.indexOf(data, at + 1, data.length);
+        }
+        int edge = Math.max(0, Math.min(matcher.length() - 1, data.length));
+        byte[] head = new byte[edge];
+        byte[] tail = new byte[edge];
+        System.arraycopy(data, 0, head, 0, edge);
+        System.arraycopy(data, data.length - edge, tail, 0, edge);
+        return new PageScan(stored, data, data.length, head, tail, matches, count);
+    }
+
+    /** Put a match at {@code count}, growing the array if it is full. */
+    static int[] add(int[] matches, int count, int offset) {
+        if (count == matches.length) {
+            int[] grown = new int[Math.max(4, count * 2)];
+            System.arraycopy(matches, 0, grown, 0, count);
+            matches = grown;
+        }
+        matches[count] = offset;
+        return matches;
+    }
+}
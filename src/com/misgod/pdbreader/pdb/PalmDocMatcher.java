@@ -0,0 +1,108 @@
+package com.misgod.pdbreader.pdb;
+
+/**
+ * Finds a byte pattern in a compressed PalmDoc record without building the
+ * record. The commands are walked once; each byte they give goes into a
+ * 2 KB ring, as far back as a back-reference reaches, and through a KMP
+ * automaton of the pattern. Only the first and last m - 1 bytes are kept,
+ * for a match across records.
+ */
+class PalmDocMatcher {
+    /** back-references reach 2047 bytes back */
+    private static final int WINDOW = 2048;
+    private static final int MASK = WINDOW - 1;
+
+    private final int mLength;
+    /** the automaton, the next state at state * 256 + byte */
+    private final int[] mNext;
+
+    PalmDocMatcher(byte[] pattern) {
+        int m = pattern.length;
+        mLength = m;
+        mNext = new int[(m + 1) * 256];
+        mNext[pattern[0] & 0xff] = 1;
+        int fallback = 0;
+        for (int state = 1; state <= m; state++) {
+            System.arraycopy(mNext, fallback * 256, mNext, state * 256, 256);
+            if (state < m) {
+                int c = pattern[state] & 0xff;
+                mNext[state * 256 + c] = state + 1;
+                fallback = mNext[fallback * 256 + c];
+            }
+        }
+    }
+
+    /** Whether the last m - 1 bytes of a record still fit the ring. */
+    static boolean fits(int length) {
+        return length > 0 && length <= WINDOW;
+    }
+
+    /** The matches in a compressed record, see PalmDocDB.decompressBuffer. */
+    PageScan scan(byte[] stored) {
+        Walk walk = new Walk();
+        int i = 0;
+        while (i < stored.length) {
+            int c = stored[i++] & 0xff;
+            if (c >= 0xc0) {
+                // space + char
+                walk.emit(' ');
+                walk.emit(c & 0x7f);
+            } else if (c >= 0x80) {
+                // back-reference, 3 to 10 bytes from up to 2047 back
+                if (i == stored.length) {
+                    break;
+                }
+                c = c << 8 | stored[i++] & 0xff;
+                int from = walk.length - (c >> 3 & 0x7ff);
+                for (int n = 3 + (c & 7); n > 0; n--) {
+                    walk.emit(walk.ring[from++ & MASK] & 0xff);
+                }
+            } else if (c >= 0x09 || c == 0) {
+                walk.emit(c);
+            } else {
+                // the next c bytes as they are
+                for (int end = Math.min(stored.length, i + c); i < end; i++) {
+                    walk.emit(stored[i] & 0xff);
+                }
+            }
+        }
+        int edge = Math.min(mLength - 1, walk.length);
+        byte[] tail = new byte[edge];
+        for (int j = 0; j < edge; j++) {
+            tail[j] = walk.ring[(walk.length - edge + j) & MASK];
+        }
+        return new PageScan(stored, null, walk.length, walk.head(edge), tail, walk.matches,
+                walk.count);
+    }
+
+    /** The state of one record's walk. */
+    private class Walk {
+        final byte[] ring = new byte[WINDOW];
+        final byte[] head = new byte[mLength - 1];
+        int length;
+        int state;
+        int[] matches = new int[0];
+        int count;
+
+        void emit(int c) {
+            if (length < head.length) {
+                head[length] = (byte) c;
+            }
+            ring[length & MASK] = (byte) c;
+            length++;
+            state = mNext[state * 256 + c];
+            if (state == mLength) {
+                matches = PageScan.add(matches, count++, length - mLength);
+            }
+        }
+
+        byte[] head(int edge) {
+            if (edge == head.length) {
+                return head;
+            }
+            byte[] shorter = new byte[edge];
+            System.arraycopy(head, 0, shorter, 0, edge);
+            return shorter;
+        }
+    }
+}
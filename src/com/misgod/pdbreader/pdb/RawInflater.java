@@ -0,0 +1,430 @@
+package com.misgod.pdbreader.pdb;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A raw deflate (RFC 1951) decoder that, unlike java.util.zip.Inflater, can
+ * start at any bit of its input and tells where its blocks end. That is all a
+ * zran style checkpoint needs: the input bit where a block starts plus the 32K
+ * of output before it (see {@link #setWindow}).
+ *
+ * {@link #read} returns early at the end of every block, so the caller can
+ * look at {@link #atBlockBoundary()} between calls.
+ */
+class RawInflater {
+	static final int WINDOW_SIZE = 32 * 1024;
+	private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+	private static final int INPUT_SIZE = 16 * 1024;
+	/** zero bytes that may be read past the end while peeking for a code */
+	private static final int MAX_PADDING = 4;
+
+	private static final int STATE_HEADER = 0;
+	private static final int STATE_STORED = 1;
+	private static final int STATE_CODES = 2;
+	private static final int STATE_DONE = 3;
+
+	private static final int[] LENGTH_BASE = { 3, 4, 5, 6, 7, 8, 9, 10, 11,
+			13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131,
+			163, 195, 227, 258 };
+	private static final int[] LENGTH_EXTRA = { 0, 0, 0, 0, 0, 0, 0, 0, 1, 1,
+			1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0 };
+	private static final int[] DIST_BASE = { 1, 2, 3, 4, 5, 7, 9, 13, 17, 25,
+			33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049,
+			3073, 4097, 6145, 8193, 12289, 16385, 24577 };
+	private static final int[] DIST_EXTRA = { 0, 0, 0, 0, 1, 1, 2, 2, 3, 3,
+			4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13 };
+	private static final int[] CODE_LENGTH_ORDER = { 16, 17, 18, 0, 8, 7, 9,
+			6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15 };
+
+	private static final Huffman FIXED_LITLEN = new Huffman();
+	private static final Huffman FIXED_DIST = new Huffman();
+	static {
+		int[] lengths = new int[288 + 30];
+		Arrays.fill(lengths, 0, 144, 8);
+		Arrays.fill(lengths, 144, 256, 9);
+		Arrays.fill(lengths, 256, 280, 7);
+		Arrays.fill(lengths, 280, 288, 8);
+		Arrays.fill(lengths, 288, 288 + 30, 5);
+		try {
+			FIXED_LITLEN.build(lengths, 0, 288);
+			FIXED_DIST.build(lengths, 288, 30);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private final FileChannel mChannel;
+	private final byte[] mInput = new byte[INPUT_SIZE];
+	private int mInputPos;
+	private int mInputLimit;
+	/** file offset of the byte after the buffered input */
+	private long mNextRead;
+	private int mPadding;
+	private long mBitBuffer;
+	private int mBitCount;
+
+	private final byte[] mWindow = new byte[WINDOW_SIZE];
+	private int mWindowPos;
+	private int mWindowHave;
+	private long mTotalOut;
+
+	private int mState = STATE_HEADER;
+	private boolean mLast;
+	private int mStoredLeft;
+	private int mCopyLength;
+	private int mCopyDistance;
+	private Huffman mLitLen;
+	private Huffman mDist;
+	private final Huffman mDynamicLitLen = new Huffman();
+	private final Huffman mDynamicDist = new Huffman();
+	private final Huffman mCodeLengths = new Huffman();
+	private final int[] mLengths = new int[288 + 32];
+
+	/**
+	 * @param bitOffset where the first block header starts, in bits from the
+	 *            start of the file
+	 */
+	RawInflater(FileChannel channel, long bitOffset) throws IOException {
+		mChannel = channel;
+		mNextRead = bitOffset >>> 3;
+		int skip = (int) (bitOffset & 7);
+		if (skip > 0) {
+			bits(skip);
+		}
+	}
+
+	/**
+	 * Preset the output that came before the starting bit, the last
+	 * {@code length} bytes of it at most 32K.
+	 */
+	void setWindow(byte[] window, int length) {
+		System.arraycopy(window, 0, mWindow, 0, length);
+		mWindowPos = length & WINDOW_MASK;
+		mWindowHave = length;
+	}
+
+	/**
+	 * Copy the last 32K of output (or less, early in the stream) in order.
+	 *
+	 * @return the number of bytes copied
+	 */
+	int copyWindow(byte[] out) {
+		int start = (mWindowPos - mWindowHave) & WINDOW_MASK;
+		int first = Math.min(mWindowHave, WINDOW_SIZE - start);
+		System.arraycopy(mWindow, start, out, 0, first);
+		System.arraycopy(mWindow, 0, out, first, mWindowHave - first);
+		return mWindowHave;
+	}
+
+	/** Whether the next bit starts a block header (other than after the last block). */
+	boolean atBlockBoundary() {
+		return mState == STATE_HEADER && !mLast;
+	}
+
+	/** The next unread input bit, counted from the start of the file. */
+	long getBitPosition() {
+		return (mNextRead - (mInputLimit - mInputPos) + mPadding) * 8
+				- mBitCount;
+	}
+
+	long getTotalOut() {
+		return mTotalOut;
+	}
+
+	/**
+	 * Inflate up to {@code length} bytes. Returns early, possibly with 0, at
+	 * the end of each block.
+	 *
+	 * @return the number of bytes, or -1 after the last block
+	 */
+	int read(byte[] b, int offset, int length) throws IOException {
+		int n = 0;
+		loop: while (n < length) {
+			if (mCopyLength > 0) {
+				int k = Math.min(mCopyLength, length - n);
+				mCopyLength -= k;
+				int from = mWindowPos - mCopyDistance;
+				while (k-- > 0) {
+					byte v = mWindow[from++ & WINDOW_MASK];
+					mWindow[mWindowPos] = v;
+					mWindowPos = (mWindowPos + 1) & WINDOW_MASK;
+					b[offset + n++] = v;
+				}
+				continue;
+			}
+			switch (mState) {
+			case STATE_CODES:
+				int symbol = decode(mLitLen);
+				if (symbol < 256) {
+					byte v = (byte) symbol;
+					mWindow[mWindowPos] = v;
+					mWindowPos = (mWindowPos + 1) & WINDOW_MASK;
+					b[offset + n++] = v;
+				} else if (symbol == 256) {
+					mState = STATE_HEADER;
+					break loop;
+				} else {
+					symbol -= 257;
+					if (symbol >= LENGTH_BASE.length) {
+						throw new IOException("invalid length code");
+					}
+					mCopyLength = LENGTH_BASE[symbol]
+							+ bits(LENGTH_EXTRA[symbol]);
+					symbol = decode(mDist);
+					if (symbol >= DIST_BASE.length) {
+						throw new IOException("invalid distance code");
+					}
+					mCopyDistance = DIST_BASE[symbol] + bits(DIST_EXTRA[symbol]);
+					if (mCopyDistance > Math.min(mWindowHave + n, WINDOW_SIZE)) {
+						throw new IOException("distance too far back");
+					}
+				}
+				break;
+			case STATE_STORED:
+				if (mStoredLeft == 0) {
+					mState = STATE_HEADER;
+					break loop;
+				}
+				int k = Math.min(mStoredLeft, length - n);
+				mStoredLeft -= k;
+				while (k-- > 0) {
+					byte v = (byte) storedByte();
+					mWindow[mWindowPos] = v;
+					mWindowPos = (mWindowPos + 1) & WINDOW_MASK;
+					b[offset + n++] = v;
+				}
+				break;
+			case STATE_HEADER:
+				if (mLast) {
+					mState = STATE_DONE;
+				} else {
+					header();
+				}
+				break;
+			default:
+				if (n == 0) {
+					return -1;
+				}
+				break loop;
+			}
+		}
+		mTotalOut += n;
+		mWindowHave = Math.min(WINDOW_SIZE, mWindowHave + n);
+		return n;
+	}
+
+	private void header() throws IOException {
+		mLast = bits(1) == 1;
+		int type = bits(2);
+		if (type == 0) {
+			bits(mBitCount & 7);
+			int length = bits(16);
+			if ((length ^ 0xffff) != bits(16)) {
+				throw new IOException("invalid stored block lengths");
+			}
+			mStoredLeft = length;
+			mState = STATE_STORED;
+		} else if (type == 1) {
+			mLitLen = FIXED_LITLEN;
+			mDist = FIXED_DIST;
+			mState = STATE_CODES;
+		} else if (type == 2) {
+			dynamic();
+			mLitLen = mDynamicLitLen;
+			mDist = mDynamicDist;
+			mState = STATE_CODES;
+		} else {
+			throw new IOException("invalid block type");
+		}
+	}
+
+	private void dynamic() throws IOException {
+		int nlen = bits(5) + 257;
+		int ndist = bits(5) + 1;
+		int ncode = bits(4) + 4;
+		if (nlen > 286 || ndist > 30) {
+			throw new IOException("bad counts");
+		}
+		int[] lengths = mLengths;
+		Arrays.fill(lengths, 0, 19, 0);
+		for (int i = 0; i < ncode; i++) {
+			lengths[CODE_LENGTH_ORDER[i]] = bits(3);
+		}
+		mCodeLengths.build(lengths, 0, 19);
+
+		int i = 0;
+		while (i < nlen + ndist) {
+			int symbol = decode(mCodeLengths);
+			if (symbol < 16) {
+				lengths[i++] = symbol;
+				continue;
+			}
+			int length = 0;
+			int repeat;
+			if (symbol == 16) {
+				if (i == 0) {
+					throw new IOException("repeat with no first length");
+				}
+				length = lengths[i - 1];
+				repeat = 3 + bits(2);
+			} else if (symbol == 17) {
+				repeat = 3 + bits(3);
+			} else {
+				repeat = 11 + bits(7);
+			}
+			if (i + repeat > nlen + ndist) {
+				throw new IOException("too many lengths");
+			}
+			while (repeat-- > 0) {
+				lengths[i++] = length;
+			}
+		}
+		if (lengths[256] == 0) {
+			throw new IOException("no end-of-block code");
+		}
+		mDynamicLitLen.build(lengths, 0, nlen);
+		mDynamicDist.build(lengths, nlen, ndist);
+	}
+
+	private int decode(Huffman h) throws IOException {
+		need(15);
+		int entry = h.mFast[(int) mBitBuffer & Huffman.FAST_MASK];
+		if (entry != 0) {
+			int length = entry & 15;
+			mBitBuffer >>>= length;
+			mBitCount -= length;
+			return entry >>> 4;
+		}
+		// canonical decode, one bit at a time, for the long codes
+		long buffer = mBitBuffer;
+		int code = 0;
+		int first = 0;
+		int index = 0;
+		for (int length = 1; length <= 15; length++) {
+			code |= (int) (buffer & 1);
+			buffer >>>= 1;
+			int count = h.mCount[length];
+			if (code - count < first) {
+				mBitBuffer >>>= length;
+				mBitCount -= length;
+				return h.mSymbol[index + (code - first)];
+			}
+			index += count;
+			first += count;
+			first <<= 1;
+			code <<= 1;
+		}
+		throw new IOException("invalid code");
+	}
+
+	private int bits(int n) throws IOException {
+		need(n);
+		int v = (int) (mBitBuffer & ((1L << n) - 1));
+		mBitBuffer >>>= n;
+		mBitCount -= n;
+		return v;
+	}
+
+	private void need(int n) throws IOException {
+		while (mBitCount < n) {
+			int b = nextByte();
+			if (b < 0) {
+				if (++mPadding > MAX_PADDING) {
+					throw new EOFException("unexpected end of deflate data");
+				}
+				b = 0;
+			}
+			mBitBuffer |= (long) b << mBitCount;
+			mBitCount += 8;
+		}
+	}
+
+	private int storedByte() throws IOException {
+		if (mBitCount >= 8) {
+			return bits(8);
+		}
+		int b = nextByte();
+		if (b < 0) {
+			throw new EOFException("unexpected end of stored block");
+		}
+		return b;
+	}
+
+	private int nextByte() throws IOException {
+		if (mInputPos == mInputLimit) {
+			ByteBuffer buffer = ByteBuffer.wrap(mInput);
+			int c = mChannel.read(buffer, mNextRead);
+			if (c <= 0) {
+				return -1;
+			}
+			mNextRead += c;
+			mInputPos = 0;
+			mInputLimit = c;
+		}
+		return mInput[mInputPos++] & 0xff;
+	}
+
+	/**
+	 * A canonical Huffman code. Codes up to FAST_BITS long are looked up in
+	 * one step; longer ones fall back to walking the code lengths.
+	 */
+	private static class Huffman {
+		static final int FAST_BITS = 10;
+		static final int FAST_MASK = (1 << FAST_BITS) - 1;
+
+		/** symbol << 4 | code length, 0 if the code is longer */
+		final int[] mFast = new int[1 << FAST_BITS];
+		final int[] mCount = new int[16];
+		final int[] mSymbol = new int[288];
+		private final int[] mNext = new int[16];
+
+		void build(int[] lengths, int offset, int n) throws IOException {
+			Arrays.fill(mCount, 0);
+			for (int i = 0; i < n; i++) {
+				mCount[lengths[offset + i]]++;
+			}
+			mCount[0] = 0;
+			int left = 1;
+			for (int length = 1; length <= 15; length++) {
+				left = (left << 1) - mCount[length];
+				if (left < 0) {
+					throw new IOException("over-subscribed code");
+				}
+			}
+
+			// symbols sorted by code, and the first code of every length
+			int[] next = mNext;
+			next[1] = 0;
+			for (int length = 1; length < 15; length++) {
+				next[length + 1] = next[length] + mCount[length];
+			}
+			for (int i = 0; i < n; i++) {
+				int length = lengths[offset + i];
+				if (length != 0) {
+					mSymbol[next[length]++] = i;
+				}
+			}
+
+			Arrays.fill(mFast, 0);
+			int code = 0;
+			for (int length = 1; length <= FAST_BITS; length++) {
+				code = (code + mCount[length - 1]) << 1;
+				next[length] = code;
+			}
+			for (int i = 0; i < n; i++) {
+				int length = lengths[offset + i];
+				if (length == 0 || length > FAST_BITS) {
+					continue;
+				}
+				int reversed = Integer.reverse(next[length]++) >>> (32 - length);
+				for (int j = reversed; j <= FAST_MASK; j += 1 << length) {
+					mFast[j] = i << 4 | length;
+				}
+			}
+		}
+	}
+}
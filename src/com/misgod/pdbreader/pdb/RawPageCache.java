@@ -0,0 +1,57 @@
+package com.misgod.pdbreader.pdb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pages as read and decompressed, before any charset decoding, bounded by
+ * their total size in bytes. They stay valid across a charset switch, so
+ * trying another charset only runs the decoder again; only a new page index
+ * or format clears them.
+ */
+class RawPageCache {
+    private final int mMaxBytes;
+    private final LinkedHashMap<Integer, byte[]> mPages = new LinkedHashMap<Integer, byte[]>(
+            8, 0.75f, true);
+    private int mBytes;
+    private int mGeneration;
+
+    RawPageCache(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    synchronized byte[] get(int page) {
+        return mPages.get(page);
+    }
+
+    /** Bumped by every {@link #clear()}, see {@link PageCache#getGeneration()}. */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    synchronized void put(int generation, int page, byte[] data) {
+        if (generation != mGeneration || data.length > mMaxBytes) {
+            return;
+        }
+        byte[] old = mPages.put(page, data);
+        if (old != null) {
+            mBytes -= old.length;
+        }
+        mBytes += data.length;
+        Iterator<Map.Entry<Integer, byte[]>> it = mPages.entrySet().iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            Map.Entry<Integer, byte[]> eldest = it.next();
+            if (eldest.getKey() != page) {
+                mBytes -= eldest.getValue().length;
+                it.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        mPages.clear();
+        mBytes = 0;
+        mGeneration++;
+    }
+}
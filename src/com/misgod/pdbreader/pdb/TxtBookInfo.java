@@ -1,19 +1,26 @@
 package com.misgod.pdbreader.pdb;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.LineNumberReader;
+import java.util.ArrayList;
+import java.util.List;
 
-import android.util.Log;
+import com.misgod.pdbreader.util.CancelToken;
+import com.misgod.pdbreader.util.CharsetDetector;
+import com.misgod.pdbreader.util.ConvertUtil;
 
 public class TxtBookInfo extends AbstractBookInfo {
-	private boolean isProgressing;
-	private static final float MAX_LINE = 300;
-	private int mPageCount;
+	private static final int PAGE_CHARS = 6000;
+	private TxtPageIndex mIndex;
+
+	/** Whether a zip is a text book: one .txt file and nothing else. */
+	public static boolean isTextZip(File zip) {
+		try {
+			return InflateIndex.isTextZip(zip);
+		} catch (IOException e) {
+			return false;
+		}
+	}
 
 	public TxtBookInfo(long id) {
 		super(id);
@@ -23,6 +30,9 @@ public class TxtBookInfo extends AbstractBookInfo {
 	public void setFile(File pdb,boolean headerOnly) throws IOException {
 		mFile = pdb;
 		String name = pdb.getName();
+		if (name.toLowerCase().endsWith(".gz") || name.toLowerCase().endsWith(".zip")) {
+			name = name.substring(0, name.lastIndexOf("."));
+		}
 		int end = name.indexOf(".");
 		if (end > 0) {
 			mName = name.substring(0, name.lastIndexOf("."));
@@ -30,61 +40,152 @@ public class TxtBookInfo extends AbstractBookInfo {
 			mName = name;
 		}
 		if(!headerOnly){
-			LineNumberReader input = new LineNumberReader(new FileReader(mFile),8192 *2);
-
-			while (input.readLine() != null) {}
-			input.close();
-			mPageCount = (int) Math.ceil(input.getLineNumber() / MAX_LINE);
+			mIndex = TxtPageIndex.open(mFile, mEncode, PAGE_CHARS);
+			pagesChanged();
 		}
 	}
 
 	@Override
 	public int getPageCount() {
-		return mPageCount;
+		return mIndex == null ? 0 : mIndex.getPageCount();
 	}
 
-	boolean isStop;
+	@Override
+	protected long getPageStart(int page) {
+		return mIndex == null ? -1 : mIndex.getPageStart(page);
+	}
 
-	public void stop() {
-		isStop = true;
+	@Override
+	protected int findPage(long offset) {
+		return mIndex == null ? -1 : mIndex.findPage(offset);
 	}
 
-	public boolean isProgressing() {
-		return isProgressing;
+	@Override
+	protected String getStreamCharset() {
+		return mIndex == null ? mEncode : mIndex.getCharset(mEncode);
 	}
 
-	public CharSequence getText() throws IOException {
-		isProgressing = true;
+	@Override
+	public CharsetDetector.Result detectCharset() throws IOException {
+		if (InflateIndex.isCompressed(mFile)) {
+			// only the head is cheap to get at before the book is indexed
+			byte[] head = new byte[CharsetDetector.BYTE_BUDGET];
+			int n = InflateIndex.readHead(mFile, head);
+			byte[] sample = new byte[n];
+			System.arraycopy(head, 0, sample, 0, n);
+			List<byte[]> samples = new ArrayList<byte[]>();
+			samples.add(sample);
+			return CharsetDetector.detect(samples);
+		}
+		return CharsetDetector.detect(mFile);
+	}
 
-		StringBuilder body = new StringBuilder();
-		try {
-			BufferedReader input = new BufferedReader(new InputStreamReader(
-					new FileInputStream(mFile), mEncode));
-			
-			String lineStr;
-			int line = -1;
-			while ((lineStr = input.readLine()) != null) {
-				line++;
-				if (mPage * MAX_LINE > line){
-					continue;
-				}else if((mPage + 1) * MAX_LINE < line) {
-					break;
-				}
-				body.append(lineStr.replace("    ", " ").replace("\t", "  "))
-						.append("\n");
-				if (isStop) {
-					isStop = false;
-					break;
+	@Override
+	protected byte[] readBytes(int page, CancelToken token) throws IOException {
+		return mIndex.readPage(mFile, page, token);
+	}
+
+	@Override
+	protected CharSequence decode(byte[] data, CancelToken token) {
+		String body = ConvertUtil.decode(data, 0, data.length,
+				getStreamCharset(), token);
+		token.throwIfCancelled();
+		StringBuilder text = new StringBuilder(body.length());
+		walk(body, body.length(), Integer.MAX_VALUE, text);
+		return text.toString();
+	}
+
+	/**
+	 * Bytes to a char of the shown text, through the page as decoded before
+	 * {@link #walk} folded it: encoding the shown text back would miss the
+	 * carriage returns and spaces it dropped.
+	 */
+	@Override
+	protected long byteOffset(int page, CharSequence text, int chars) {
+		byte[] data = mIndex == null ? null : pageBytes(page);
+		if (data == null) {
+			return super.byteOffset(page, text, chars);
+		}
+		String raw = ConvertUtil.decode(data, 0, data.length,
+				getStreamCharset(), new CancelToken());
+		int rawChars = walk(raw, raw.length(), chars, null)[0];
+		return Locator.bytesBefore(data, data.length, rawChars,
+				getStreamCharset());
+	}
+
+	@Override
+	protected int charOffset(int page, CharSequence text, long bytes) {
+		byte[] data = mIndex == null ? null : pageBytes(page);
+		if (data == null) {
+			return super.charOffset(page, text, bytes);
+		}
+		String raw = ConvertUtil.decode(data, 0, data.length,
+				getStreamCharset(), new CancelToken());
+		int rawChars = Locator.charsBefore(data, data.length, bytes,
+				getStreamCharset());
+		return walk(raw, rawChars, Integer.MAX_VALUE, null)[1];
+	}
+
+	/**
+	 * Fold a decoded page into the text shown: CRLF and CR to LF, four spaces
+	 * to one, a tab to two spaces. Stops once rawStop chars of the page are
+	 * read or shownStop chars are shown, appending to out if it is not null.
+	 * 
+	 * @return where it stopped, in raw and in shown chars
+	 */
+	private static int[] walk(String raw, int rawStop, int shownStop,
+			StringBuilder out) {
+		int r = 0;
+		int s = 0;
+		while (r < rawStop && s < shownStop && r < raw.length()) {
+			char c = raw.charAt(r);
+			if (c == '\r') {
+				r += r + 1 < raw.length() && raw.charAt(r + 1) == '\n' ? 2 : 1;
+				c = '\n';
+			} else if (c == ' ' && raw.startsWith("    ", r)) {
+				r += 4;
+			} else if (c == '\t') {
+				r++;
+				s++;
+				if (out != null) {
+					out.append(' ');
 				}
+				c = ' ';
+			} else {
+				r++;
+			}
+			s++;
+			if (out != null) {
+				out.append(c);
 			}
-
-			input.close();
-		} finally {
-			isProgressing = false;
 		}
+		return new int[] { r, s };
+	}
 
-		return body;
+	/**
+	 * Any ASCII compatible charset reads the same page bytes, so the pages
+	 * can be decoded again as they are. Where the cuts fall depends on the
+	 * charset walker though, so they may shift once reindex installs the
+	 * index of the new charset. A switch to or from UTF-16 needs that first.
+	 */
+	@Override
+	public boolean canRedecode(String encode) {
+		return mIndex != null && !isUtf16(mEncode) && !isUtf16(encode);
+	}
+
+	@Override
+	public Runnable reindex() throws IOException {
+		final TxtPageIndex index = TxtPageIndex.open(mFile, mEncode, PAGE_CHARS);
+		return new Runnable() {
+			public void run() {
+				mIndex = index;
+				pagesChanged();
+			}
+		};
+	}
 
+	static boolean isUtf16(String encode) {
+		return encode != null && encode.toUpperCase().startsWith("UTF-16");
 	}
 
 	@Override
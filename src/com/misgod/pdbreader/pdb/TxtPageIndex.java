@@ -0,0 +1,326 @@
+package com.misgod.pdbreader.pdb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.util.Log;
+
+import com.misgod.pdbreader.util.CancelToken;
+import com.misgod.pdbreader.util.IndexUtil;
+
+/**
+ * Byte offset where every TXT page starts. Pages hold about a fixed number of
+ * decoded chars (see {@link TxtPaginator}). The index is built with one pass
+ * over the raw bytes and saved as a sidecar, so reopening a book never
+ * rescans it and any page is one positioned read away.
+ * 
+ * Big files are cut at line starts (found with {@link NewlineScanner}) and the
+ * pieces are paginated in parallel. A paragraph break is a legal page cut
+ * anyway, so the only cost is one shorter page per piece.
+ * 
+ * Gzip and zip books are paginated in the same single inflating pass that
+ * records their {@link InflateIndex}; offsets are then in uncompressed bytes.
+ */
+class TxtPageIndex {
+	private static final String TAG = "TxtPageIndex";
+	private static final String KIND = "txtpage";
+	private static final int VERSION = 2;
+	private static final int MIN_PARALLEL = 4 * 1024 * 1024;
+	private static final int FEED_SIZE = 64 * 1024;
+
+	private static final int UNIT_BYTE = NewlineScanner.UNIT_BYTE;
+	private static final int UNIT_UTF16LE = NewlineScanner.UNIT_UTF16LE;
+	private static final int UNIT_UTF16BE = NewlineScanner.UNIT_UTF16BE;
+
+	final int mUnit;
+	final int mBomLength;
+	/** page starts followed by the file length */
+	private final long[] mOffsets;
+	/** null for a plain file */
+	private final InflateIndex mInflate;
+
+	private TxtPageIndex(int unit, int bomLength, long[] offsets,
+			InflateIndex inflate) {
+		mUnit = unit;
+		mBomLength = bomLength;
+		mOffsets = offsets;
+		mInflate = inflate;
+	}
+
+	public int getPageCount() {
+		return mOffsets.length - 1;
+	}
+
+	public long getPageStart(int page) {
+		return mOffsets[page];
+	}
+
+	/** The page holding a byte offset, by binary search over the page starts. */
+	public int findPage(long offset) {
+		int i = Arrays.binarySearch(mOffsets, 0, getPageCount(), offset);
+		return i >= 0 ? i : Math.max(0, -i - 2);
+	}
+
+	public long getPageEnd(int page) {
+		return mOffsets[page + 1];
+	}
+
+	/**
+	 * The raw bytes of a page: a positioned read, or an inflate from the
+	 * nearest checkpoint for a compressed book.
+	 */
+	public byte[] readPage(File file, int page, CancelToken token)
+			throws IOException {
+		long start = getPageStart(page);
+		byte[] data = new byte[(int) (getPageEnd(page) - start)];
+		if (mInflate != null) {
+			mInflate.read(file, start, data, token);
+			return data;
+		}
+
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			while (buffer.hasRemaining()
+					&& channel.read(buffer, start + buffer.position()) > 0) {
+			}
+		} finally {
+			channel.close();
+		}
+		return data;
+	}
+
+	/**
+	 * The charset to decode a page with. A page in the middle of a UTF-16 file
+	 * has no BOM, so plain "UTF-16" is pinned to the byte order found at the
+	 * head of the file.
+	 */
+	public String getCharset(String encode) {
+		return charsetFor(mUnit, encode);
+	}
+
+	private static String charsetFor(int unit, String encode) {
+		if (unit == UNIT_UTF16LE) {
+			return "UTF-16LE";
+		} else if (unit == UNIT_UTF16BE) {
+			return "UTF-16BE";
+		}
+		return encode;
+	}
+
+	public static TxtPageIndex open(File file, String encode, int pageChars)
+			throws IOException {
+		boolean compressed = InflateIndex.isCompressed(file);
+		byte[] head = new byte[3];
+		int headLength = compressed ? InflateIndex.readHead(file, head)
+				: readHead(file, head);
+		int unit = UNIT_BYTE;
+		int bom = 0;
+		if ("UTF-16LE".equalsIgnoreCase(encode)) {
+			unit = UNIT_UTF16LE;
+			bom = isBom(head, headLength, 0xff, 0xfe) ? 2 : 0;
+		} else if ("UTF-16BE".equalsIgnoreCase(encode)) {
+			unit = UNIT_UTF16BE;
+			bom = isBom(head, headLength, 0xfe, 0xff) ? 2 : 0;
+		} else if ("UTF-16".equalsIgnoreCase(encode)) {
+			unit = isBom(head, headLength, 0xff, 0xfe) ? UNIT_UTF16LE
+					: UNIT_UTF16BE;
+			bom = isBom(head, headLength, 0xff, 0xfe)
+					|| isBom(head, headLength, 0xfe, 0xff) ? 2 : 0;
+		} else if ("UTF-8".equalsIgnoreCase(encode)
+				&& isBom(head, headLength, 0xef, 0xbb, 0xbf)) {
+			bom = 3;
+		}
+
+		String charset = charsetFor(unit, encode);
+		long[] offsets = load(file, charset, bom, pageChars);
+		InflateIndex inflate = null;
+		if (compressed) {
+			inflate = InflateIndex.load(file);
+			if (offsets == null) {
+				TxtPaginator paginator = new TxtPaginator(charset, bom,
+						pageChars);
+				inflate = InflateIndex.build(file, paginator, bom);
+				offsets = finish(paginator, Math.max(inflate.getLength(), bom));
+				save(file, charset, bom, pageChars, offsets);
+			} else if (inflate == null) {
+				inflate = InflateIndex.build(file, null, 0);
+			}
+		} else if (offsets == null) {
+			offsets = paginate(file, charset, unit, bom, pageChars);
+			save(file, charset, bom, pageChars, offsets);
+		}
+		return new TxtPageIndex(unit, bom, offsets, inflate);
+	}
+
+	private static long[] finish(TxtPaginator paginator, long length) {
+		long[] starts = paginator.finish();
+		long[] offsets = new long[starts.length + 1];
+		System.arraycopy(starts, 0, offsets, 0, starts.length);
+		offsets[starts.length] = length;
+		return offsets;
+	}
+
+	private static long[] paginate(File file, final String charset, int unit,
+			long from, final int pageChars) throws IOException {
+		FileInputStream input = new FileInputStream(file);
+		try {
+			final FileChannel channel = input.getChannel();
+			long length = Math.max(channel.size(), from);
+			NewlineScanner scanner = new NewlineScanner(unit);
+			int step = unit == UNIT_BYTE ? 1 : 2;
+			int pieces = (int) Math.max(1, Math.min(scanner.getThreads(),
+					(length - from) / MIN_PARALLEL));
+
+			final long[] bounds = new long[pieces + 1];
+			bounds[0] = from;
+			for (int k = 1; k < pieces; k++) {
+				long nominal = from + (length - from) * k / pieces;
+				nominal -= (nominal - from) % step;
+				bounds[k] = scanner.nextLineStart(channel, Math.max(nominal,
+						bounds[k - 1]), length);
+			}
+			bounds[pieces] = length;
+
+			List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>();
+			for (int k = 0; k < pieces; k++) {
+				if (bounds[k] == bounds[k + 1] && k > 0) {
+					continue;
+				}
+				final int piece = k;
+				tasks.add(new Callable<long[]>() {
+					public long[] call() throws IOException {
+						return paginate(channel, charset, bounds[piece],
+								bounds[piece + 1], pageChars);
+					}
+				});
+			}
+			ExecutorService executor = tasks.size() > 1 ? Executors
+					.newFixedThreadPool(tasks.size()) : null;
+			List<long[]> results;
+			try {
+				results = NewlineScanner.run(executor, tasks);
+			} finally {
+				if (executor != null) {
+					executor.shutdown();
+				}
+			}
+
+			int count = 1;
+			for (long[] r : results) {
+				count += r.length;
+			}
+			long[] offsets = new long[count];
+			int c = 0;
+			for (long[] r : results) {
+				System.arraycopy(r, 0, offsets, c, r.length);
+				c += r.length;
+			}
+			offsets[c] = length;
+			return offsets;
+		} finally {
+			input.close();
+		}
+	}
+
+	private static long[] paginate(FileChannel channel, String charset,
+			long start, long end, int pageChars) throws IOException {
+		TxtPaginator paginator = new TxtPaginator(charset, start, pageChars);
+		byte[] feed = new byte[FEED_SIZE];
+		long pos = start;
+		while (pos < end) {
+			long size = Math.min(end - pos, MIN_PARALLEL);
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, pos, size);
+			while (buffer.hasRemaining()) {
+				int n = Math.min(feed.length, buffer.remaining());
+				buffer.get(feed, 0, n);
+				paginator.feed(feed, 0, n);
+			}
+			pos += size;
+		}
+		return paginator.finish();
+	}
+
+	private static long[] load(File file, String charset, int bom,
+			int pageChars) {
+		DataInputStream in = IndexUtil.openForRead(file, KIND, VERSION);
+		if (in == null) {
+			return null;
+		}
+		try {
+			if (!in.readUTF().equalsIgnoreCase(charset) || in.readInt() != bom
+					|| in.readInt() != pageChars) {
+				return null;
+			}
+			long[] offsets = new long[in.readInt()];
+			for (int i = 0; i < offsets.length; i++) {
+				offsets[i] = in.readLong();
+			}
+			return offsets;
+		} catch (IOException e) {
+			Log.d(TAG, e.getMessage(), e);
+			return null;
+		} finally {
+			IndexUtil.close(in);
+		}
+	}
+
+	private static void save(File file, String charset, int bom,
+			int pageChars, long[] offsets) {
+		try {
+			DataOutputStream out = IndexUtil.beginWrite(file, KIND, VERSION);
+			if (out == null) {
+				return;
+			}
+			out.writeUTF(charset);
+			out.writeInt(bom);
+			out.writeInt(pageChars);
+			out.writeInt(offsets.length);
+			for (long offset : offsets) {
+				out.writeLong(offset);
+			}
+			IndexUtil.endWrite(file, KIND, out);
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage(), e); // still usable, just not cached
+		}
+	}
+
+	private static int readHead(File file, byte[] head) throws IOException {
+		FileInputStream input = new FileInputStream(file);
+		try {
+			int n = 0;
+			int c;
+			while (n < head.length && (c = input.read(head, n, head.length - n)) > 0) {
+				n += c;
+			}
+			return n;
+		} finally {
+			input.close();
+		}
+	}
+
+	private static boolean isBom(byte[] head, int length, int... bom) {
+		if (length < bom.length) {
+			return false;
+		}
+		for (int i = 0; i < bom.length; i++) {
+			if ((head[i] & 0xff) != bom[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
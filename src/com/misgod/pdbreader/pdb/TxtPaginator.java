@@ -0,0 +1,249 @@
+package com.misgod.pdbreader.pdb;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.ArrayList;
+
+/**
+ * Cuts a stream of raw TXT bytes into pages of about {@code budget} decoded
+ * chars. The bytes are never decoded: a small per-charset walker knows how
+ * long each character is from its lead byte, so a cut always lands on a
+ * character boundary and never splits a multibyte sequence or a surrogate
+ * pair.
+ * 
+ * A page is cut at the last paragraph end (after a line feed) if that keeps at
+ * least half the budget, else at the last sentence end, else right at the
+ * budget. Bytes are pushed in with {@link #feed} in any slices, so the same
+ * pass works on a mapped file or an inflating stream.
+ */
+class TxtPaginator {
+	private static final int FAMILY_SINGLE = 0;
+	private static final int FAMILY_UTF8 = 1;
+	private static final int FAMILY_DBCS = 2;
+	private static final int FAMILY_GB18030 = 3;
+	private static final int FAMILY_SJIS = 4;
+	private static final int FAMILY_EUCJP = 5;
+	private static final int FAMILY_UTF16LE = 6;
+	private static final int FAMILY_UTF16BE = 7;
+
+	/** longest character of any family, kept back between feeds */
+	private static final int MAX_CHAR = 4;
+	private static final String SENTENCE_ENDS = ".!?。！？」』…";
+
+	private final int mFamily;
+	private final int mBudget;
+	private final byte[][] mStops;
+
+	private byte[] mCarry = new byte[0];
+	/** offset of the first byte not yet walked */
+	private long mPos;
+	/** chars walked so far */
+	private long mChars;
+	private long mPageChars;
+	private long mParaCut = -1;
+	private long mParaCutChars;
+	private long mSentenceCut = -1;
+	private long mSentenceCutChars;
+	private final ArrayList<Long> mStarts = new ArrayList<Long>();
+
+	/**
+	 * @param charset the charset pages are decoded with, UTF-16 already pinned
+	 *            to a byte order
+	 * @param from offset of the first byte that will be fed
+	 */
+	TxtPaginator(String charset, long from, int budget) {
+		mFamily = family(charset);
+		mBudget = budget;
+		mPos = from;
+		mStarts.add(from);
+
+		ArrayList<byte[]> stops = new ArrayList<byte[]>();
+		try {
+			CharsetEncoder encoder = Charset.forName(charset).newEncoder();
+			for (int i = 0; i < SENTENCE_ENDS.length(); i++) {
+				char c = SENTENCE_ENDS.charAt(i);
+				if (encoder.canEncode(c)) {
+					ByteBuffer b = encoder.encode(CharBuffer.wrap(
+							new char[] { c }));
+					byte[] bytes = new byte[b.remaining()];
+					b.get(bytes);
+					stops.add(bytes);
+				}
+			}
+		} catch (Exception e) {
+			// unknown charset: cut on paragraphs and budget only
+		}
+		mStops = stops.toArray(new byte[stops.size()][]);
+	}
+
+	void feed(byte[] data, int offset, int length) {
+		byte[] work = new byte[mCarry.length + length];
+		System.arraycopy(mCarry, 0, work, 0, mCarry.length);
+		System.arraycopy(data, offset, work, mCarry.length, length);
+		int done = walk(work, work.length - MAX_CHAR);
+		mCarry = new byte[work.length - done];
+		System.arraycopy(work, done, mCarry, 0, mCarry.length);
+	}
+
+	/**
+	 * @return the offset of every page start, in order.
+	 */
+	long[] finish() {
+		walk(mCarry, mCarry.length);
+		mCarry = new byte[0];
+		long[] result = new long[mStarts.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = mStarts.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Walk every character starting before {@code limit}.
+	 * 
+	 * @return how many bytes of work were consumed
+	 */
+	private int walk(byte[] work, int limit) {
+		int i = 0;
+		while (i < limit) {
+			if (mPageChars >= mBudget) {
+				cut(mPos);
+			}
+			int len = charLength(work, i);
+			int units = mFamily == FAMILY_UTF16LE || mFamily == FAMILY_UTF16BE ? len / 2
+					: len == 4 ? 2 : 1;
+			boolean lineFeed = isLineFeed(work, i, len);
+			boolean stop = !lineFeed && isStop(work, i, len);
+			i += len;
+			mPos += len;
+			mChars += units;
+			mPageChars += units;
+			if (lineFeed) {
+				mParaCut = mPos;
+				mParaCutChars = mChars;
+			} else if (stop) {
+				mSentenceCut = mPos;
+				mSentenceCutChars = mChars;
+			}
+		}
+		return Math.min(i, work.length);
+	}
+
+	private void cut(long here) {
+		long pageStartChars = mChars - mPageChars;
+		long half = mBudget / 2;
+		long at = here;
+		long atChars = mChars;
+		if (mParaCut > mStarts.get(mStarts.size() - 1)
+				&& mParaCutChars - pageStartChars >= half) {
+			at = mParaCut;
+			atChars = mParaCutChars;
+		} else if (mSentenceCut > mStarts.get(mStarts.size() - 1)
+				&& mSentenceCutChars - pageStartChars >= half) {
+			at = mSentenceCut;
+			atChars = mSentenceCutChars;
+		}
+		mStarts.add(at);
+		mPageChars = mChars - atChars;
+	}
+
+	private int charLength(byte[] b, int i) {
+		int c = b[i] & 0xff;
+		int avail = b.length - i;
+		switch (mFamily) {
+		case FAMILY_UTF8:
+			int len = c < 0xc0 ? 1 : c < 0xe0 ? 2 : c < 0xf0 ? 3 : 4;
+			for (int k = 1; k < len; k++) {
+				if (k >= avail || (b[i + k] & 0xc0) != 0x80) {
+					return k; // malformed, resync on the next byte
+				}
+			}
+			return len;
+		case FAMILY_DBCS:
+			return c >= 0x81 && trail(b, i, avail, 0x40) ? 2 : 1;
+		case FAMILY_GB18030:
+			if (c < 0x81 || avail < 2) {
+				return 1;
+			}
+			int c1 = b[i + 1] & 0xff;
+			if (c1 >= 0x30 && c1 <= 0x39) {
+				return avail >= 4 ? 4 : 1;
+			}
+			return c1 >= 0x40 ? 2 : 1;
+		case FAMILY_SJIS:
+			return ((c >= 0x81 && c <= 0x9f) || (c >= 0xe0 && c <= 0xfc))
+					&& trail(b, i, avail, 0x40) ? 2 : 1;
+		case FAMILY_EUCJP:
+			if (c == 0x8f) {
+				return avail >= 3 ? 3 : 1;
+			}
+			return (c == 0x8e || c >= 0xa1) && trail(b, i, avail, 0xa1) ? 2 : 1;
+		case FAMILY_UTF16LE:
+		case FAMILY_UTF16BE:
+			if (avail < 2) {
+				return avail;
+			}
+			int unit = unit16(b, i);
+			return unit >= 0xd800 && unit <= 0xdbff && avail >= 4 ? 4 : 2;
+		default:
+			return 1;
+		}
+	}
+
+	/** a trail byte below {@code min} is ASCII, so the lead byte was stray */
+	private static boolean trail(byte[] b, int i, int avail, int min) {
+		return avail >= 2 && (b[i + 1] & 0xff) >= min;
+	}
+
+	private int unit16(byte[] b, int i) {
+		if (mFamily == FAMILY_UTF16LE) {
+			return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8;
+		}
+		return (b[i] & 0xff) << 8 | (b[i + 1] & 0xff);
+	}
+
+	private boolean isLineFeed(byte[] b, int i, int len) {
+		if (mFamily == FAMILY_UTF16LE || mFamily == FAMILY_UTF16BE) {
+			return len == 2 && unit16(b, i) == '\n';
+		}
+		return b[i] == '\n';
+	}
+
+	private boolean isStop(byte[] b, int i, int len) {
+		for (byte[] stop : mStops) {
+			if (stop.length == len) {
+				int k = 0;
+				while (k < len && b[i + k] == stop[k]) {
+					k++;
+				}
+				if (k == len) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static int family(String charset) {
+		String name = charset.toUpperCase();
+		if (name.equals("UTF-8")) {
+			return FAMILY_UTF8;
+		} else if (name.equals("UTF-16LE")) {
+			return FAMILY_UTF16LE;
+		} else if (name.startsWith("UTF-16")) {
+			return FAMILY_UTF16BE;
+		} else if (name.equals("GB18030")) {
+			return FAMILY_GB18030;
+		} else if (name.startsWith("BIG5") || name.equals("GBK")
+				|| name.equals("GB2312") || name.equals("EUC-KR")) {
+			return FAMILY_DBCS;
+		} else if (name.equals("WINDOWS-31J") || name.equals("SHIFT_JIS")) {
+			return FAMILY_SJIS;
+		} else if (name.equals("EUC-JP")) {
+			return FAMILY_EUCJP;
+		}
+		return FAMILY_SINGLE;
+	}
+}
@@ -23,4 +23,7 @@ public final class BookColumn implements BaseColumns {
     public static final String REPLACE = "replace"; 
     public static final String CREATE_DATE = "createdate"; //use for recently read
     public static final String FORMAT = "format";
+    public static final String DETECTED_ENCODE = "detectedencode"; //sampled once at sync, null if unknown
+    public static final String ENCODE_CONFIDENCE = "encodeconfidence"; //0..1
+    public static final String LOCATOR = "locator"; //record:byte offset:fingerprint, see pdb.Locator
 }
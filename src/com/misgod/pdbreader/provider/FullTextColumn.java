@@ -0,0 +1,31 @@
+package com.misgod.pdbreader.provider;
+
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+/**
+ * The full-text index of the library, see util.FullTextIndexer. Query
+ * CONTENT_URI with the search text as the only selection argument; rows
+ * hold the book, where in it and a snippet.
+ */
+public final class FullTextColumn implements BaseColumns {
+    public static final Uri CONTENT_URI = Uri
+            .parse("content://PalmBookProvider/fulltext");
+    /** how far each book was indexed, one row a book */
+    public static final Uri STATE_URI = Uri
+            .parse("content://PalmBookProvider/fulltext_books");
+
+    public static final String BOOK_ID = "book_id";
+    public static final String PAGE = "page";
+    public static final String LOCATOR = "locator"; //where the chunk starts, see pdb.Locator
+    public static final String TOKENS = "tokens"; //see util.BigramTokenizer
+    public static final String NAME = "name"; //of the book, in search results
+    public static final String SNIPPET = "snippet"; //in search results
+
+    public static final String SIZE = "size";
+    public static final String MTIME = "mtime";
+    public static final String ENCODE = "encode";
+    public static final String FORMAT = "format";
+    public static final String NEXT_PAGE = "nextpage";
+    public static final String DONE = "done";
+}
@@ -3,19 +3,30 @@ package com.misgod.pdbreader.provider;
 
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.text.TextUtils;
+import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.misgod.pdbreader.util.BigramTokenizer;
 
 /**
  * Provides access to a database of notes. Each note has a title, the note
@@ -25,17 +36,46 @@ public class PalmBookProvider extends ContentProvider {
 
     private static final String TAG = "PalmBookProvider";
     private static final String DATABASE_NAME = "pdbbooks.db";
-    private static final int DATABASE_VERSION =11;
+    /** a new version needs its step in DatabaseHelper.upgradeTo */
+    private static final int DATABASE_VERSION =16;
     private static final String TABLE_NAME = "books";
+    /** FTS3 table of chunk tokens, its docid is the chunk _id */
+    private static final String FULLTEXT_TABLE = "fulltext";
+    private static final String CHUNK_TABLE = "fulltext_chunks";
+    private static final String STATE_TABLE = "fulltext_books";
+    private static final String SCAN_TABLE = "scan_state";
+    private static final int DEFAULT_SEARCH_LIMIT = 100;
+    /** chars of stored tokens shown around a hit */
+    private static final int SNIPPET_BEFORE = 30;
+    private static final int SNIPPET_AFTER = 90;
     private static final String AUTGIRUTIES = "PalmBookProvider";
 
     private static final int BOOKS =0;
     private static final int BOOK_ID =2;
+    private static final int FULLTEXT =3;
+    private static final int FULLTEXT_BOOK =4;
+    private static final int FULLTEXT_STATES =5;
+    private static final int SCAN =6;
     private static HashMap<String, String> sNotesProjectionMap;
 
     private static final UriMatcher sUriMatcher;
 
-    private boolean bulkInsertMode;
+    /** the columns a new book is written with, see insertBooks */
+    private static final String[] INSERT_COLUMNS = { BookColumn.NAME, BookColumn.AUTHOR,
+            BookColumn.PATH, BookColumn.LAST_OFFSET, BookColumn.LAST_PAGE, BookColumn.ENDCODE,
+            BookColumn.RATING, BookColumn.REPLACE, BookColumn.FORMAT,
+            BookColumn.DETECTED_ENCODE, BookColumn.ENCODE_CONFIDENCE, BookColumn.LOCATOR,
+            BookColumn.CREATE_DATE };
+    /** a path in the library already is left to upsert */
+    private static final String INSERT_BOOK;
+
+    /** whether the calling thread is in applyBatch, which notifies once at the end */
+    private static final ThreadLocal<Boolean> sInBatch = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return Boolean.FALSE;
+        }
+    };
     /**
      * This class helps open, create, and upgrade the database file.
      */
@@ -61,21 +101,197 @@ public class PalmBookProvider extends ContentProvider {
             createSql.append(BookColumn.RATING).append(" INTEGER, ");
             createSql.append(BookColumn.REPLACE).append(" INTEGER, ");
             createSql.append(BookColumn.FORMAT).append(" INTEGER, ");
+            createSql.append(BookColumn.DETECTED_ENCODE).append(" TEXT, ");
+            createSql.append(BookColumn.ENCODE_CONFIDENCE).append(" REAL, ");
+            createSql.append(BookColumn.LOCATOR).append(" TEXT, ");
             createSql.append(BookColumn.CREATE_DATE).append(" LONG NOT NULL ");
             createSql.append(");");
             
             db.execSQL(createSql.toString());
 
-            
-            
-            
-            
+            createFullText(db);
+            createScanState(db);
+            createIndexes(db);
+        }
+
+        /**
+         * One book a path, and an index for each sort of the list holding
+         * the columns it shows, so the list is read in order from the index
+         * alone. All start with rating, query puts it first.
+         */
+        private void createIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE UNIQUE INDEX " + TABLE_NAME + "_path ON " + TABLE_NAME + "("
+                    + BookColumn.PATH + ")");
+            String shown = BookColumn.NAME + ", " + BookColumn.AUTHOR + ", " + BookColumn.PATH
+                    + ", " + BookColumn.ENDCODE;
+            db.execSQL("CREATE INDEX " + TABLE_NAME + "_by_name ON " + TABLE_NAME + "("
+                    + BookColumn.RATING + " DESC, " + shown + ")");
+            db.execSQL("CREATE INDEX " + TABLE_NAME + "_by_author ON " + TABLE_NAME + "("
+                    + BookColumn.RATING + " DESC, " + BookColumn.AUTHOR + " DESC, " + shown + ")");
+            db.execSQL("CREATE INDEX " + TABLE_NAME + "_by_recent ON " + TABLE_NAME + "("
+                    + BookColumn.RATING + " DESC, " + BookColumn.CREATE_DATE + " DESC, " + shown
+                    + ")");
+            db.execSQL("CREATE INDEX " + TABLE_NAME + "_by_path ON " + TABLE_NAME + "("
+                    + BookColumn.RATING + " DESC, " + BookColumn.PATH + ", " + shown + ")");
         }
 
+        /** Keep the most recently read row of a path, the unique index needs one. */
+        private void dropDuplicatePaths(SQLiteDatabase db) {
+            db.execSQL("DELETE FROM " + TABLE_NAME + " WHERE EXISTS (SELECT 1 FROM "
+                    + TABLE_NAME + " b WHERE b." + BookColumn.PATH + " = " + TABLE_NAME + "."
+                    + BookColumn.PATH + " AND (b." + BookColumn.CREATE_DATE + " > " + TABLE_NAME
+                    + "." + BookColumn.CREATE_DATE + " OR (b." + BookColumn.CREATE_DATE + " = "
+                    + TABLE_NAME + "." + BookColumn.CREATE_DATE + " AND b." + BookColumn._ID
+                    + " > " + TABLE_NAME + "." + BookColumn._ID + ")))");
+            deleteChunks(db, FullTextColumn.BOOK_ID + " NOT IN (SELECT " + BookColumn._ID
+                    + " FROM " + TABLE_NAME + ")", null);
+            db.delete(STATE_TABLE, FullTextColumn.BOOK_ID + " NOT IN (SELECT "
+                    + BookColumn._ID + " FROM " + TABLE_NAME + ")", null);
+        }
+
+        /** The full-text index, created empty; books are added by FullTextIndexer. */
+        private void createFullText(SQLiteDatabase db) {
+            db.execSQL("CREATE VIRTUAL TABLE " + FULLTEXT_TABLE + " USING fts3("
+                    + FullTextColumn.TOKENS + ")");
+            db.execSQL("CREATE TABLE " + CHUNK_TABLE + "("
+                    + FullTextColumn._ID + " INTEGER PRIMARY KEY, "
+                    + FullTextColumn.BOOK_ID + " INTEGER NOT NULL, "
+                    + FullTextColumn.PAGE + " INTEGER, "
+                    + FullTextColumn.LOCATOR + " TEXT)");
+            db.execSQL("CREATE INDEX " + CHUNK_TABLE + "_book ON " + CHUNK_TABLE + "("
+                    + FullTextColumn.BOOK_ID + ", " + FullTextColumn.PAGE + ")");
+            db.execSQL("CREATE TABLE " + STATE_TABLE + "("
+                    + FullTextColumn.BOOK_ID + " INTEGER PRIMARY KEY, "
+                    + FullTextColumn.SIZE + " INTEGER, "
+                    + FullTextColumn.MTIME + " INTEGER, "
+                    + FullTextColumn.ENCODE + " TEXT, "
+                    + FullTextColumn.FORMAT + " INTEGER, "
+                    + FullTextColumn.NEXT_PAGE + " INTEGER, "
+                    + FullTextColumn.DONE + " INTEGER)");
+        }
+
+        /** Empty, the next sync lists the whole card once. */
+        private void createScanState(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + SCAN_TABLE + "("
+                    + ScanColumn._ID + " INTEGER PRIMARY KEY, "
+                    + ScanColumn.PATH + " TEXT UNIQUE NOT NULL, "
+                    + ScanColumn.DIR + " INTEGER, "
+                    + ScanColumn.SIZE + " INTEGER, "
+                    + ScanColumn.MTIME + " INTEGER)");
+        }
+
+        /**
+         * Step the database up a version at a time, each step altering the
+         * tables in place, so the library and where each book was read to
+         * are kept. SQLiteOpenHelper runs it all in one transaction.
+         */
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
-            onCreate(db);
+            long begin = System.currentTimeMillis();
+            int version = oldVersion;
+            if (version < 11) {
+                rebuildBooks(db);
+                version = 11;
+            }
+            while (version < newVersion) {
+                version++;
+                upgradeTo(db, version);
+            }
+            Log.i(TAG, "upgraded from " + oldVersion + " to " + newVersion + " in "
+                    + (System.currentTimeMillis() - begin) + "ms");
+        }
+
+        /** The one step from version - 1 to version. */
+        private void upgradeTo(SQLiteDatabase db, int version) {
+            switch (version) {
+            case 12:
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN "
+                        + BookColumn.DETECTED_ENCODE + " TEXT");
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN "
+                        + BookColumn.ENCODE_CONFIDENCE + " REAL");
+                break;
+            case 13:
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN "
+                        + BookColumn.LOCATOR + " TEXT");
+                break;
+            case 14:
+                createFullText(db);
+                break;
+            case 15:
+                createScanState(db);
+                break;
+            case 16:
+                dropDuplicatePaths(db);
+                createIndexes(db);
+                break;
+            default:
+                throw new IllegalStateException("No upgrade to version " + version);
+            }
+        }
+
+        /**
+         * Bring the books table of a version before 11 to the version 11
+         * shape. Which columns those had is not kept anywhere, so the
+         * columns the old table has are copied over and the others get
+         * what insert would give them.
+         */
+        private void rebuildBooks(SQLiteDatabase db) {
+            Set<String> old = new HashSet<String>();
+            Cursor c = db.rawQuery("PRAGMA table_info(" + TABLE_NAME + ")", null);
+            try {
+                while (c.moveToNext()) {
+                    old.add(c.getString(c.getColumnIndexOrThrow("name")).toLowerCase());
+                }
+            } finally {
+                c.close();
+            }
+            if (!old.isEmpty()) {
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " RENAME TO " + TABLE_NAME + "_old");
+            }
+            db.execSQL("CREATE TABLE " + TABLE_NAME + "("
+                    + BookColumn._ID + " INTEGER PRIMARY KEY, "
+                    + BookColumn.NAME + " TEXT NOT NULL, "
+                    + BookColumn.AUTHOR + " TEXT, "
+                    + BookColumn.PATH + " TEXT, "
+                    + BookColumn.LAST_OFFSET + " INTEGER, "
+                    + BookColumn.LAST_PAGE + " INTEGER, "
+                    + BookColumn.ENDCODE + " TEXT, "
+                    + BookColumn.RATING + " INTEGER, "
+                    + BookColumn.REPLACE + " INTEGER, "
+                    + BookColumn.FORMAT + " INTEGER, "
+                    + BookColumn.CREATE_DATE + " LONG NOT NULL)");
+            if (old.isEmpty()) {
+                return;
+            }
+            // the version 11 columns, and what a row without one gets
+            String[][] columns = {
+                    { BookColumn._ID, "NULL" },
+                    { BookColumn.NAME, "''" },
+                    { BookColumn.AUTHOR, "NULL" },
+                    { BookColumn.PATH, "NULL" },
+                    { BookColumn.LAST_OFFSET, "0" },
+                    { BookColumn.LAST_PAGE, "0" },
+                    { BookColumn.ENDCODE, "'UTF-8'" },
+                    { BookColumn.RATING, "0" },
+                    { BookColumn.REPLACE, "0" },
+                    { BookColumn.FORMAT, "0" },
+                    { BookColumn.CREATE_DATE, String.valueOf(System.currentTimeMillis()) } };
+            StringBuilder names = new StringBuilder();
+            StringBuilder values = new StringBuilder();
+            for (String[] column : columns) {
+                String name = column[0];
+                names.append(names.length() == 0 ? "" : ", ").append(name);
+                values.append(values.length() == 0 ? "" : ", ");
+                if (old.contains(name)) {
+                    values.append("COALESCE(").append(name).append(", ").append(column[1])
+                            .append(")");
+                } else {
+                    values.append(column[1]);
+                }
+            }
+            db.execSQL("INSERT INTO " + TABLE_NAME + "(" + names + ") SELECT " + values
+                    + " FROM " + TABLE_NAME + "_old");
+            db.execSQL("DROP TABLE " + TABLE_NAME + "_old");
         }
     }
 
@@ -104,6 +320,17 @@ public class PalmBookProvider extends ContentProvider {
             qb.appendWhere(BookColumn._ID + "=" + uri.getPathSegments().get(1));
             break;
 
+        case FULLTEXT:
+            return searchFullText(uri, selectionArgs[0]);
+
+        case FULLTEXT_STATES:
+            return mOpenHelper.getReadableDatabase().query(STATE_TABLE, projection,
+                    selection, selectionArgs, null, null, null);
+
+        case SCAN:
+            return mOpenHelper.getReadableDatabase().query(SCAN_TABLE, projection,
+                    selection, selectionArgs, null, null, null);
+
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -132,58 +359,27 @@ public class PalmBookProvider extends ContentProvider {
 
     @Override
     public Uri insert(Uri uri, ContentValues initialValues) {
+        if (sUriMatcher.match(uri) == FULLTEXT_STATES) {
+            // one row a book, the new progress replaces the old
+            mOpenHelper.getWritableDatabase().replace(STATE_TABLE, null, initialValues);
+            return uri;
+        }
         // Validate the requested uri
         if (sUriMatcher.match(uri) != BOOKS) {
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        ContentValues values;
-        if (initialValues != null) {
-            values = new ContentValues(initialValues);
-        } else {
-            values = new ContentValues();
-        }
-
-        Long now = Long.valueOf(System.currentTimeMillis());
-
-        // Make sure that the fields are all set
-        if (values.containsKey(BookColumn.RATING) == false) {
-            values.put(BookColumn.RATING, 0);
-        }
-        
-        if (values.containsKey(BookColumn.ENDCODE) == false) {
-            values.put(BookColumn.ENDCODE, "UTF-8");
-        }
-        
-        if (values.containsKey(BookColumn.REPLACE) == false) {
-            values.put(BookColumn.REPLACE, 0);
-        }
-        
-        if (values.containsKey(BookColumn.FORMAT) == false) {
-            values.put(BookColumn.FORMAT, "0");
-        }
-        
-        
-        if (values.containsKey(BookColumn.LAST_OFFSET) == false) {
-            values.put(BookColumn.LAST_OFFSET, 0);
-        }
-        if (values.containsKey(BookColumn.LAST_PAGE) == false) {
-            values.put(BookColumn.LAST_PAGE, 0);
-        }
-
-        if (values.containsKey(BookColumn.CREATE_DATE) == false) {
-            values.put(BookColumn.CREATE_DATE, now);
-        }
-
-
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        long rowId = db.insert(TABLE_NAME, "", values);
+        long rowId;
+        SQLiteStatement insert = db.compileStatement(INSERT_BOOK);
+        try {
+            rowId = upsert(db, insert, initialValues);
+        } finally {
+            insert.close();
+        }
         if (rowId > 0) {
             Uri noteUri = ContentUris.withAppendedId(BookColumn.CONTENT_URI, rowId);
-            if(!bulkInsertMode ){
-            	getContext().getContentResolver().notifyChange(noteUri, null);
-            }
-            
+            notifyChange(noteUri);
             return noteUri;
         }
 
@@ -191,23 +387,41 @@ public class PalmBookProvider extends ContentProvider {
     }
     
     public int bulkInsert(Uri uri, ContentValues[] values) {
-    	bulkInsertMode = true;
-        int numValues = values.length;
-        try{
-            for (int i = 0; i < numValues; i++) {
-                insert(uri, values[i]);
-            }
-        	
-        }finally{
-        	getContext().getContentResolver().notifyChange(BookColumn.CONTENT_URI, null);
-        	bulkInsertMode = false;
+        if (sUriMatcher.match(uri) == FULLTEXT_BOOK) {
+            return insertChunks(Long.parseLong(uri.getPathSegments().get(1)), values);
+        }
+        if (sUriMatcher.match(uri) == SCAN) {
+            return replaceScanState(values);
         }
-       
-        return numValues;
+        if (sUriMatcher.match(uri) != BOOKS) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+        int count = insertBooks(values);
+        getContext().getContentResolver().notifyChange(BookColumn.CONTENT_URI, null);
+        return count;
+    }
+
+    /**
+     * The operations in one transaction, all applied or none, with one
+     * change notification for the books at the end.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ContentProviderResult[] results;
+        sInBatch.set(Boolean.TRUE);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            sInBatch.set(Boolean.FALSE);
+        }
+        getContext().getContentResolver().notifyChange(BookColumn.CONTENT_URI, null);
+        return results;
     }
-    
-    
-    
 
     @Override
     public int delete(Uri uri, String where, String[] whereArgs) {
@@ -216,19 +430,36 @@ public class PalmBookProvider extends ContentProvider {
         switch (sUriMatcher.match(uri)) {
         case BOOKS:
             count = db.delete(TABLE_NAME, where, whereArgs);
+            // the index of books no longer listed
+            deleteChunks(db, FullTextColumn.BOOK_ID + " NOT IN (SELECT " + BookColumn._ID
+                    + " FROM " + TABLE_NAME + ")", null);
+            db.delete(STATE_TABLE, FullTextColumn.BOOK_ID + " NOT IN (SELECT "
+                    + BookColumn._ID + " FROM " + TABLE_NAME + ")", null);
             break;
 
         case BOOK_ID:
             String noteId = uri.getPathSegments().get(1);
             count = db.delete(TABLE_NAME, BookColumn._ID + "=" + noteId
                     + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""), whereArgs);
+            if (count > 0) {
+                deleteChunks(db, FullTextColumn.BOOK_ID + "=" + noteId, null);
+                db.delete(STATE_TABLE, FullTextColumn.BOOK_ID + "=" + noteId, null);
+            }
             break;
 
+        case FULLTEXT_BOOK:
+            // the chunks of a book, those matching where if given
+            return deleteChunks(db, FullTextColumn.BOOK_ID + "=" + uri.getPathSegments().get(1)
+                    + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""), whereArgs);
+
+        case SCAN:
+            return db.delete(SCAN_TABLE, where, whereArgs);
+
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return count;
     }
 
@@ -251,14 +482,246 @@ public class PalmBookProvider extends ContentProvider {
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return count;
     }
 
+    /** Tell observers of a change, unless it is one of a batch that tells once at the end. */
+    private void notifyChange(Uri uri) {
+        if (!sInBatch.get()) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /** The values of a new book, with the columns not given set to their defaults. */
+    private static ContentValues withDefaults(ContentValues initialValues) {
+        ContentValues values;
+        if (initialValues != null) {
+            values = new ContentValues(initialValues);
+        } else {
+            values = new ContentValues();
+        }
+
+        Long now = Long.valueOf(System.currentTimeMillis());
+
+        // Make sure that the fields are all set
+        if (values.containsKey(BookColumn.RATING) == false) {
+            values.put(BookColumn.RATING, 0);
+        }
+        
+        if (values.containsKey(BookColumn.ENDCODE) == false) {
+            values.put(BookColumn.ENDCODE, "UTF-8");
+        }
+        
+        if (values.containsKey(BookColumn.REPLACE) == false) {
+            values.put(BookColumn.REPLACE, 0);
+        }
+        
+        if (values.containsKey(BookColumn.FORMAT) == false) {
+            values.put(BookColumn.FORMAT, "0");
+        }
+        
+        
+        if (values.containsKey(BookColumn.LAST_OFFSET) == false) {
+            values.put(BookColumn.LAST_OFFSET, 0);
+        }
+        if (values.containsKey(BookColumn.LAST_PAGE) == false) {
+            values.put(BookColumn.LAST_PAGE, 0);
+        }
+
+        if (values.containsKey(BookColumn.CREATE_DATE) == false) {
+            values.put(BookColumn.CREATE_DATE, now);
+        }
+        return values;
+    }
+
+    /**
+     * New books in one transaction through one compiled insert, instead of
+     * a transaction, and a journal sync, a book. See upsert.
+     */
+    private int insertBooks(ContentValues[] values) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        SQLiteStatement insert = db.compileStatement(INSERT_BOOK);
+        try {
+            for (ContentValues value : values) {
+                upsert(db, insert, value);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            insert.close();
+            db.endTransaction();
+        }
+        return values.length;
+    }
+
+    /**
+     * Add a book, or if its path is in the library already set the columns
+     * given on that row and keep the others, where it was read to and such.
+     * The row id, -1 if the row could not be written.
+     */
+    private static long upsert(SQLiteDatabase db, SQLiteStatement insert, ContentValues values) {
+        ContentValues row = withDefaults(values);
+        insert.clearBindings();
+        for (int i = 0; i < INSERT_COLUMNS.length; i++) {
+            bind(insert, i + 1, row.get(INSERT_COLUMNS[i]));
+        }
+        long rowId = insert.executeInsert();
+        String path = row.getAsString(BookColumn.PATH);
+        if (rowId != -1 || path == null) {
+            return rowId;
+        }
+        // the path is taken, SQLite here has no ON CONFLICT DO UPDATE
+        String[] args = new String[] { path };
+        db.update(TABLE_NAME, values, BookColumn.PATH + "=?", args);
+        Cursor c = db.query(TABLE_NAME, new String[] { BookColumn._ID }, BookColumn.PATH + "=?",
+                args, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void bind(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Float || value instanceof Double) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+    /**
+     * Chunks of one book, with their tokens, in one transaction: a batch
+     * is in the index whole or not at all.
+     */
+    private int insertChunks(long bookId, ContentValues[] values) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues chunk = new ContentValues();
+            ContentValues tokens = new ContentValues();
+            for (ContentValues value : values) {
+                chunk.clear();
+                chunk.put(FullTextColumn.BOOK_ID, bookId);
+                chunk.put(FullTextColumn.PAGE, value.getAsInteger(FullTextColumn.PAGE));
+                chunk.put(FullTextColumn.LOCATOR, value.getAsString(FullTextColumn.LOCATOR));
+                long id = db.insert(CHUNK_TABLE, null, chunk);
+                tokens.clear();
+                tokens.put("docid", id);
+                tokens.put(FullTextColumn.TOKENS, value.getAsString(FullTextColumn.TOKENS));
+                db.insert(FULLTEXT_TABLE, null, tokens);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return values.length;
+    }
+
+    /** What a sync saw, in one transaction; a row replaces the one of its path. */
+    private int replaceScanState(ContentValues[] values) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                db.replace(SCAN_TABLE, null, value);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return values.length;
+    }
+
+    /** Drop chunks, and their tokens, selected on the chunk table. */
+    private static int deleteChunks(SQLiteDatabase db, String where, String[] whereArgs) {
+        db.beginTransaction();
+        try {
+            db.delete(FULLTEXT_TABLE, "docid IN (SELECT " + FullTextColumn._ID + " FROM "
+                    + CHUNK_TABLE + " WHERE " + where + ")", whereArgs);
+            int count = db.delete(CHUNK_TABLE, where, whereArgs);
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Chunks matching the search text, in book order, with a snippet made
+     * from the stored tokens around the first term. "limit" in the uri
+     * caps the rows.
+     */
+    private Cursor searchFullText(Uri uri, String text) {
+        String[] columns = { FullTextColumn._ID, FullTextColumn.BOOK_ID,
+                FullTextColumn.NAME, FullTextColumn.PAGE, FullTextColumn.LOCATOR,
+                FullTextColumn.SNIPPET };
+        MatrixCursor result = new MatrixCursor(columns);
+        String match = BigramTokenizer.matchQuery(text);
+        if (match.length() == 0) {
+            return result;
+        }
+        String limit = uri.getQueryParameter("limit");
+        if (limit == null || !TextUtils.isDigitsOnly(limit)) {
+            limit = String.valueOf(DEFAULT_SEARCH_LIMIT);
+        }
+        String first = BigramTokenizer.firstToken(text);
+        Cursor c = mOpenHelper.getReadableDatabase().rawQuery("SELECT c."
+                + FullTextColumn._ID + ", c." + FullTextColumn.BOOK_ID + ", b."
+                + BookColumn.NAME + ", c." + FullTextColumn.PAGE + ", c."
+                + FullTextColumn.LOCATOR + ", f." + FullTextColumn.TOKENS
+                + " FROM " + FULLTEXT_TABLE + " f, " + CHUNK_TABLE + " c, " + TABLE_NAME + " b"
+                + " WHERE f." + FullTextColumn.TOKENS + " MATCH ? AND c." + FullTextColumn._ID
+                + " = f.docid AND b." + BookColumn._ID + " = c." + FullTextColumn.BOOK_ID
+                + " LIMIT " + limit, new String[] { match });
+        try {
+            while (c.moveToNext()) {
+                result.addRow(new Object[] { c.getLong(0), c.getLong(1), c.getString(2),
+                        c.getInt(3), c.getString(4), snippet(c.getString(5), first) });
+            }
+        } finally {
+            c.close();
+        }
+        return result;
+    }
+
+    private static String snippet(String tokens, String first) {
+        int at = Math.max(0, tokens.indexOf(first));
+        int from = Math.max(0, at - SNIPPET_BEFORE);
+        int to = Math.min(tokens.length(), at + SNIPPET_AFTER);
+        // whole tokens only
+        while (from > 0 && tokens.charAt(from - 1) != ' ') {
+            from--;
+        }
+        while (to < tokens.length() && tokens.charAt(to) != ' ') {
+            to++;
+        }
+        return BigramTokenizer.untokenize(tokens.substring(from, to));
+    }
+
     static {
+        StringBuilder sql = new StringBuilder("INSERT OR IGNORE INTO " + TABLE_NAME + "(");
+        for (int i = 0; i < INSERT_COLUMNS.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(INSERT_COLUMNS[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < INSERT_COLUMNS.length; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        INSERT_BOOK = sql.append(")").toString();
+
         sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         sUriMatcher.addURI(AUTGIRUTIES, "books", BOOKS);
         sUriMatcher.addURI(AUTGIRUTIES, "books/#", BOOK_ID);
+        sUriMatcher.addURI(AUTGIRUTIES, "fulltext", FULLTEXT);
+        sUriMatcher.addURI(AUTGIRUTIES, "fulltext/#", FULLTEXT_BOOK);
+        sUriMatcher.addURI(AUTGIRUTIES, "fulltext_books", FULLTEXT_STATES);
+        sUriMatcher.addURI(AUTGIRUTIES, "scan", SCAN);
 
         sNotesProjectionMap = new HashMap<String, String>();
         sNotesProjectionMap.put(BookColumn._ID, BookColumn._ID);
@@ -273,6 +736,9 @@ public class PalmBookProvider extends ContentProvider {
         sNotesProjectionMap.put(BookColumn.LAST_PAGE, BookColumn.LAST_PAGE);
         sNotesProjectionMap.put(BookColumn.CREATE_DATE, BookColumn.CREATE_DATE);
         sNotesProjectionMap.put(BookColumn.FORMAT, BookColumn.FORMAT);
+        sNotesProjectionMap.put(BookColumn.DETECTED_ENCODE, BookColumn.DETECTED_ENCODE);
+        sNotesProjectionMap.put(BookColumn.ENCODE_CONFIDENCE, BookColumn.ENCODE_CONFIDENCE);
+        sNotesProjectionMap.put(BookColumn.LOCATOR, BookColumn.LOCATOR);
         
         
     }
@@ -0,0 +1,19 @@
+package com.misgod.pdbreader.provider;
+
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+/**
+ * What the last sync saw of the SD card, see util.SyncAgent: one row a
+ * directory or book file, by path. A directory whose time is unchanged
+ * still has the same entries and is not listed again.
+ */
+public final class ScanColumn implements BaseColumns {
+    public static final Uri CONTENT_URI = Uri
+            .parse("content://PalmBookProvider/scan");
+
+    public static final String PATH = "path";
+    public static final String DIR = "dir"; //1 for a directory
+    public static final String SIZE = "size";
+    public static final String MTIME = "mtime"; //-1 to list a directory again
+}
@@ -0,0 +1,123 @@
+package com.misgod.pdbreader.util;
+
+/**
+ * Turns text into the tokens stored in the full-text index. SQLite's simple
+ * tokenizer only splits on ASCII, which leaves a whole CJK sentence as one
+ * token; so runs of CJK characters are cut here into overlapping bigrams
+ * ("天龍八部" is "天龍 龍八 八部 部"), other words are lower-cased, and
+ * punctuation is dropped. The last char of a run is kept on its own as
+ * well, so a one char query finds it as a prefix.
+ */
+public class BigramTokenizer {
+
+    public static String tokenize(CharSequence text) {
+        StringBuilder out = new StringBuilder(text.length() * 3);
+        int n = text.length();
+        int i = 0;
+        while (i < n) {
+            char c = text.charAt(i);
+            int start = i;
+            if (isCjk(c)) {
+                while (i < n && isCjk(text.charAt(i))) {
+                    i++;
+                }
+                for (int j = start; j + 1 < i; j++) {
+                    separate(out).append(text.charAt(j)).append(text.charAt(j + 1));
+                }
+                separate(out).append(text.charAt(i - 1));
+            } else if (Character.isLetterOrDigit(c)) {
+                while (i < n && Character.isLetterOrDigit(text.charAt(i))
+                        && !isCjk(text.charAt(i))) {
+                    i++;
+                }
+                separate(out).append(text.subSequence(start, i).toString().toLowerCase());
+            } else {
+                i++;
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * The MATCH expression of a query: a CJK run becomes a phrase of its
+     * bigrams, a lone CJK char a prefix, words stay words; all of them
+     * must be found. Empty if the query has nothing to look for.
+     */
+    public static String matchQuery(String query) {
+        StringBuilder out = new StringBuilder();
+        for (String term : terms(query)) {
+            if (isCjk(term.charAt(0)) && term.length() == 1) {
+                separate(out).append(term).append('*');
+            } else if (isCjk(term.charAt(0))) {
+                separate(out).append('"').append(tokenize(term));
+                // the phrase ends with the last bigram, not the lone last char
+                out.setLength(out.lastIndexOf(" "));
+                out.append('"');
+            } else {
+                separate(out).append(term);
+            }
+        }
+        return out.toString();
+    }
+
+    /** The first token a query looks for, to find it again in stored tokens. */
+    public static String firstToken(String query) {
+        String[] terms = terms(query);
+        if (terms.length == 0) {
+            return "";
+        }
+        String first = terms[0];
+        return isCjk(first.charAt(0)) && first.length() > 1 ? first.substring(0, 2) : first;
+    }
+
+    /**
+     * Readable text back from stored tokens: the bigrams of a run are
+     * joined again, other tokens are separated by a space.
+     */
+    public static String untokenize(String tokens) {
+        StringBuilder out = new StringBuilder(tokens.length());
+        String prev = null;
+        for (String token : tokens.split(" ")) {
+            if (token.length() == 0) {
+                continue;
+            }
+            boolean cjk = isCjk(token.charAt(0));
+            if (cjk && prev != null && prev.length() == 2 && isCjk(prev.charAt(0))
+                    && token.charAt(0) == prev.charAt(1)) {
+                if (token.length() == 2) {
+                    out.append(token.charAt(1)); // the run goes on
+                }
+            } else {
+                separate(out).append(token);
+            }
+            prev = token;
+        }
+        return out.toString();
+    }
+
+    /** A query cut into CJK runs and words, lower-cased. */
+    private static String[] terms(String query) {
+        String tokens = tokenize(query);
+        if (tokens.length() == 0) {
+            return new String[0];
+        }
+        // join the bigrams of each run back into the run
+        return untokenize(tokens).split(" ");
+    }
+
+    private static StringBuilder separate(StringBuilder out) {
+        if (out.length() > 0) {
+            out.append(' ');
+        }
+        return out;
+    }
+
+    /** Han, kana, hangul and bopomofo, the scripts written without spaces. */
+    public static boolean isCjk(char c) {
+        return (c >= 0x3040 && c <= 0x312f) // hiragana, katakana, bopomofo
+                || (c >= 0x3400 && c <= 0x4dbf) // extension A
+                || (c >= 0x4e00 && c <= 0x9fff)
+                || (c >= 0xac00 && c <= 0xd7af) // hangul syllables
+                || (c >= 0xf900 && c <= 0xfaff); // compatibility ideographs
+    }
+}
@@ -0,0 +1,217 @@
+package com.misgod.pdbreader.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Runs book I/O on a few worker threads by priority class: the visible page
+ * first, then read-ahead, then background indexing. Each class has a bounded
+ * queue; a job with the same key as a queued one replaces it (cancelling its
+ * token), and when a queue is full its oldest job is dropped.
+ *
+ * One worker is always kept out of prefetch and background work, so a
+ * visible page load never waits behind them, and one more out of background
+ * work, so a long index scan never holds up read-ahead.
+ *
+ * An exclusive job (see {@link #submitExclusive}) waits for the running jobs
+ * to end, and nothing else starts until it is done.
+ */
+public class BookExecutor {
+    private static final String TAG = "BookExecutor";
+
+    public static final int PRIORITY_VISIBLE = 0;
+    public static final int PRIORITY_PREFETCH = 1;
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    private static final int[] QUEUE_LIMITS = { 4, 8, 16 };
+
+    private final List<LinkedList<Job>> mQueues = new ArrayList<LinkedList<Job>>();
+    private final Thread[] mWorkers;
+    /** workers busy with prefetch or background jobs */
+    private int mBusyLow;
+    /** workers busy with background jobs */
+    private int mBusyBackground;
+    private int mRunning;
+    /** an exclusive job is running */
+    private boolean mAlone;
+    private boolean mShutdown;
+
+    private static class Job {
+        final int priority;
+        final String key;
+        final CancelToken token;
+        final Runnable task;
+        final boolean exclusive;
+
+        Job(int priority, String key, CancelToken token, Runnable task, boolean exclusive) {
+            this.priority = priority;
+            this.key = key;
+            this.token = token;
+            this.task = task;
+            this.exclusive = exclusive;
+        }
+    }
+
+    /**
+     * @param workers at least 3: one only ever runs visible jobs, one never
+     *            runs background jobs
+     */
+    public BookExecutor(String name, int workers) {
+        for (int i = 0; i < QUEUE_LIMITS.length; i++) {
+            mQueues.add(new LinkedList<Job>());
+        }
+        mWorkers = new Thread[Math.max(3, workers)];
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Thread(name + "-" + i) {
+                @Override
+                public void run() {
+                    work();
+                }
+            };
+            mWorkers[i].setDaemon(true);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Queue a job. The token is checked before the job starts; the task
+     * itself should poll it too.
+     *
+     * @param key jobs sharing a key supersede each other, null for none
+     */
+    public synchronized void submit(int priority, String key,
+            CancelToken token, Runnable task) {
+        submit(priority, key, token, task, false);
+    }
+
+    /**
+     * Queue a visible job that runs alone: once the jobs running now are
+     * done, and before any other starts. For changes to state the other
+     * jobs read; cancel theirs first so the wait is short.
+     */
+    public synchronized void submitExclusive(String key, CancelToken token,
+            Runnable task) {
+        submit(PRIORITY_VISIBLE, key, token, task, true);
+    }
+
+    private void submit(int priority, String key, CancelToken token,
+            Runnable task, boolean exclusive) {
+        if (mShutdown) {
+            token.cancel();
+            return;
+        }
+        LinkedList<Job> queue = mQueues.get(priority);
+        if (key != null) {
+            Iterator<Job> it = queue.iterator();
+            while (it.hasNext()) {
+                Job old = it.next();
+                if (key.equals(old.key)) {
+                    old.token.cancel();
+                    it.remove();
+                }
+            }
+        }
+        if (queue.size() >= QUEUE_LIMITS[priority]) {
+            Job dropped = queue.removeFirst();
+            dropped.token.cancel();
+            Log.d(TAG, "queue " + priority + " full, dropped " + dropped.key);
+        }
+        queue.addLast(new Job(priority, key, token, task, exclusive));
+        notifyAll();
+    }
+
+    /** Drop every queued job and stop the workers once their job is done. */
+    public synchronized void shutdown() {
+        mShutdown = true;
+        for (LinkedList<Job> queue : mQueues) {
+            for (Job job : queue) {
+                job.token.cancel();
+            }
+            queue.clear();
+        }
+        notifyAll();
+    }
+
+    private synchronized Job take() throws InterruptedException {
+        while (!mShutdown) {
+            Job job = mAlone ? null : poll(PRIORITY_VISIBLE);
+            if (job != null && job.exclusive) {
+                if (mRunning > 0) {
+                    // hold everything back until the running jobs are done
+                    mQueues.get(PRIORITY_VISIBLE).addFirst(job);
+                    wait();
+                    continue;
+                }
+                mAlone = true;
+            } else if (job == null && !mAlone && mBusyLow < mWorkers.length - 1) {
+                job = poll(PRIORITY_PREFETCH);
+                if (job == null && mBusyBackground < mWorkers.length - 2) {
+                    job = poll(PRIORITY_BACKGROUND);
+                    if (job != null) {
+                        mBusyBackground++;
+                    }
+                }
+                if (job != null) {
+                    mBusyLow++;
+                }
+            }
+            if (job != null) {
+                mRunning++;
+                return job;
+            }
+            wait();
+        }
+        return null;
+    }
+
+    private Job poll(int priority) {
+        LinkedList<Job> queue = mQueues.get(priority);
+        while (!queue.isEmpty()) {
+            Job job = queue.removeFirst();
+            if (!job.token.isCancelled()) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void done(Job job) {
+        mRunning--;
+        if (job.exclusive) {
+            mAlone = false;
+        } else if (job.priority != PRIORITY_VISIBLE) {
+            mBusyLow--;
+            if (job.priority == PRIORITY_BACKGROUND) {
+                mBusyBackground--;
+            }
+        }
+        notifyAll();
+    }
+
+    private void work() {
+        try {
+            Job job;
+            while ((job = take()) != null) {
+                Process.setThreadPriority(job.priority == PRIORITY_VISIBLE
+                        ? Process.THREAD_PRIORITY_DEFAULT
+                        : Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    job.task.run();
+                } catch (CancelledException e) {
+                    // superseded while running
+                } catch (RuntimeException e) {
+                    Log.e(TAG, e.getMessage(), e);
+                } finally {
+                    done(job);
+                }
+            }
+        } catch (InterruptedException e) {
+            // shutting down
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.misgod.pdbreader.util;
+
+/**
+ * Cooperative cancellation flag handed to every page load. Long running work
+ * (inflate, LZ77, charset decode, filtering) polls it between chunks and bails
+ * out with a {@link CancelledException}.
+ */
+public class CancelToken {
+    private volatile boolean mCancelled;
+
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public void throwIfCancelled() {
+        if (mCancelled) {
+            throw new CancelledException();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.misgod.pdbreader.util;
+
+/**
+ * Thrown by a load whose {@link CancelToken} was cancelled, usually because a
+ * newer page request superseded it.
+ */
+public class CancelledException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public CancelledException() {
+		super("cancelled");
+	}
+}
@@ -0,0 +1,119 @@
+package com.misgod.pdbreader.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mozilla.universalchardet.UniversalDetector;
+
+import android.util.Log;
+
+/**
+ * Guess the charset of a book from a few sampled windows instead of reading
+ * it from the start until the detector gives up. At most BYTE_BUDGET bytes
+ * are looked at, whatever the size of the book.
+ */
+public class CharsetDetector {
+    private static final String TAG = "CharsetDetector";
+
+    public static final int WINDOWS = 4;
+    public static final int WINDOW_SIZE = 16 * 1024;
+    public static final int BYTE_BUDGET = WINDOWS * WINDOW_SIZE;
+
+    public static class Result {
+        /** detected charset name, null if nothing was detected */
+        public final String charset;
+        /** share of the sampled windows that agree with charset, 0..1 */
+        public final float confidence;
+
+        public Result(String charset, float confidence) {
+            this.charset = charset;
+            this.confidence = confidence;
+        }
+    }
+
+    /**
+     * Sample WINDOWS windows spread evenly over the file, the first at the
+     * start and the last at the end. Windows past the first are moved to the
+     * next line start so a multibyte character is never cut in half.
+     */
+    public static Result detect(File file) throws IOException {
+        List<byte[]> samples = new ArrayList<byte[]>();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length <= BYTE_BUDGET) {
+                byte[] all = new byte[(int) length];
+                raf.readFully(all);
+                samples.add(all);
+            } else {
+                for (int i = 0; i < WINDOWS; i++) {
+                    long offset = (length - WINDOW_SIZE) * i / (WINDOWS - 1);
+                    byte[] window = new byte[WINDOW_SIZE];
+                    raf.seek(offset);
+                    raf.readFully(window);
+                    samples.add(i == 0 ? window : alignToLine(window));
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        return detect(samples);
+    }
+
+    /**
+     * Detect over already decoded samples (decompressed PDB records, say).
+     * Samples are cut off once BYTE_BUDGET bytes have been consumed.
+     */
+    public static Result detect(List<byte[]> samples) {
+        UniversalDetector overall = new UniversalDetector(null);
+        List<String> verdicts = new ArrayList<String>();
+        int budget = BYTE_BUDGET;
+        for (byte[] sample : samples) {
+            int n = Math.min(sample.length, budget);
+            if (n <= 0) {
+                break;
+            }
+            budget -= n;
+            if (!overall.isDone()) {
+                overall.handleData(sample, 0, n);
+            }
+            UniversalDetector one = new UniversalDetector(null);
+            one.handleData(sample, 0, n);
+            one.dataEnd();
+            verdicts.add(one.getDetectedCharset());
+        }
+        overall.dataEnd();
+
+        String charset = overall.getDetectedCharset();
+        if (charset == null || verdicts.isEmpty()) {
+            Log.d(TAG, "No encoding detected");
+            return new Result(null, 0f);
+        }
+        int agree = 0;
+        for (String verdict : verdicts) {
+            if (charset.equalsIgnoreCase(verdict)) {
+                agree++;
+            }
+        }
+        float confidence = agree / (float) verdicts.size();
+        Log.d(TAG, "detected encoding = " + charset + " (" + agree + "/"
+                + verdicts.size() + ")");
+        return new Result(charset, confidence);
+    }
+
+    private static byte[] alignToLine(byte[] window) {
+        for (int i = 0; i < window.length / 2; i++) {
+            if (window[i] == '\n') {
+                // a UTF-16LE line feed is 0A 00, skip its high byte too
+                int from = i + 1 < window.length && window[i + 1] == 0 ? i + 2 : i + 1;
+                byte[] aligned = new byte[window.length - from];
+                System.arraycopy(window, from, aligned, 0, aligned.length);
+                return aligned;
+            }
+        }
+        return window;
+    }
+}
@@ -1,14 +1,17 @@
 package com.misgod.pdbreader.util;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.Calendar;
 import java.util.Date;
 
-import org.mozilla.universalchardet.UniversalDetector;
-
-import android.util.Log;
-
 public class ConvertUtil {
+    private static final int DECODE_CHUNK = 8192;
 
     public static long readDWORD(byte[] bytes) {
         long b0 = (bytes[0] & 0xff);
@@ -38,29 +41,44 @@ public class ConvertUtil {
     
     
     public static String guessCharset(String fileName) throws IOException{
-    	 byte[] buf = new byte[4096];
-    	    java.io.FileInputStream fis = new java.io.FileInputStream(fileName);
-
-
-    	    UniversalDetector detector = new UniversalDetector(null);
-
-
-    	    int nread;
-    	    while ((nread = fis.read(buf)) > 0 && !detector.isDone()) {
-    	      detector.handleData(buf, 0, nread);
-    	    }
-    	    detector.dataEnd();
-
-    	    String encoding = detector.getDetectedCharset();
-    	    if (encoding != null) {
-    	      Log.d("ConvertUtil",fileName+" detected encoding = " + encoding);
-    	    } else {
-    	    	   Log.d("ConvertUtil","No encoding detected = " + encoding);
-    	    }
-
-    	    detector.reset();
-    	    return encoding;
+        return CharsetDetector.detect(new File(fileName)).charset;
     }
     
     
+    /**
+     * Decode bytes with the given charset, DECODE_CHUNK input bytes at a time,
+     * polling the token between chunks. Malformed input is replaced instead of
+     * failing the whole page.
+     */
+    public static String decode(byte[] data, int offset, int length,
+            String charsetName, CancelToken token) {
+        CharsetDecoder decoder = Charset.forName(charsetName).newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer in = ByteBuffer.wrap(data, offset, length);
+        CharBuffer out = CharBuffer.allocate((int) (length * decoder
+                .maxCharsPerByte()) + 16);
+        int end = offset + length;
+        while (in.position() < end) {
+            token.throwIfCancelled();
+            in.limit(Math.min(end, in.position() + DECODE_CHUNK));
+            if (decoder.decode(in, out, in.limit() == end).isOverflow()) {
+                out = grow(out);
+            }
+        }
+        decoder.decode(in, out, true);
+        while (decoder.flush(out).isOverflow()) {
+            out = grow(out);
+        }
+        out.flip();
+        return out.toString();
+    }
+
+    private static CharBuffer grow(CharBuffer out) {
+        CharBuffer bigger = CharBuffer.allocate(out.capacity() * 2 + 16);
+        out.flip();
+        bigger.put(out);
+        return bigger;
+    }
+
 }
@@ -2,49 +2,66 @@ package com.misgod.pdbreader.util;
 
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
 
 import com.misgod.pdbreader.provider.BookColumn;
+import com.misgod.pdbreader.provider.ScanColumn;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 public class DBUtil {
 
 
+    /** ids in one delete, well under the 999 arguments SQLite takes */
+    private static final int DELETE_BATCH = 500;
+
+    /**
+     * Drop the books whose file is gone, a few hundred in one delete and
+     * one change notification, not a delete a book.
+     */
     public static void clearFileNoFound(Context context) {
         Cursor cursor = context.getContentResolver().query(
                 BookColumn.CONTENT_URI,
                 new String[] {BookColumn._ID, BookColumn.PATH}, null, null,
                 null);
-        cursor.deactivate();
-        while (cursor.moveToNext()) {
-            String path = cursor.getString(cursor
-                    .getColumnIndexOrThrow(BookColumn.PATH));
-            File file = new File(path);
-            if (!file.exists()) {
-                String id = cursor.getString(cursor
-                        .getColumnIndexOrThrow(BookColumn._ID));
-                Uri delUri = Uri.parse(BookColumn.CONTENT_URI + "/" + id);
-                context.getContentResolver().delete(delUri, null, null);
+        List<Long> gone = new ArrayList<Long>();
+        try {
+            while (cursor.moveToNext()) {
+                String path = cursor.getString(cursor
+                        .getColumnIndexOrThrow(BookColumn.PATH));
+                File file = new File(path);
+                if (!file.exists()) {
+                    gone.add(cursor.getLong(cursor
+                            .getColumnIndexOrThrow(BookColumn._ID)));
+                }
             }
+        } finally {
+            cursor.close();
         }
 
-        cursor.close();
-
+        for (int from = 0; from < gone.size(); from += DELETE_BATCH) {
+            StringBuilder ids = new StringBuilder();
+            for (int i = from; i < Math.min(gone.size(), from + DELETE_BATCH); i++) {
+                ids.append(i == from ? "" : ",").append(gone.get(i));
+            }
+            context.getContentResolver().delete(BookColumn.CONTENT_URI,
+                    BookColumn._ID + " IN (" + ids + ")", null);
+        }
     }
 
     public static void clearAllBooks(Context context) {
         context.getContentResolver().delete(BookColumn.CONTENT_URI, null, null);
+        // the next sync adds them all again
+        context.getContentResolver().delete(ScanColumn.CONTENT_URI, null, null);
     }
     
     
 
     public static boolean isExits(Context context, File path) {
-        String pathOption = BookColumn.PATH + " = '" + path.getAbsolutePath()
-                + "'";
         Cursor cursor = context.getContentResolver().query(
                 BookColumn.CONTENT_URI, new String[] {BookColumn._ID},
-                pathOption, null, null);
+                BookColumn.PATH + "=?", new String[] {path.getAbsolutePath()}, null);
         boolean result = cursor.getCount() > 0;
         cursor.close();
         return result;
@@ -0,0 +1,174 @@
+package com.misgod.pdbreader.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import com.misgod.pdbreader.pdb.AbstractBookInfo;
+import com.misgod.pdbreader.provider.BookColumn;
+import com.misgod.pdbreader.provider.FullTextColumn;
+
+/**
+ * Puts the text of every book in the library into the full-text index, in
+ * chunks of about a thousand chars, each with the page and Locator it
+ * starts at. Chunks are written a batch at a time, so only a batch is held
+ * in memory, and the page after each batch is saved: a stopped run goes on
+ * from there. A book whose file size, time or charset changed is indexed
+ * again from the start.
+ */
+public class FullTextIndexer {
+    private static final String TAG = "FullTextIndexer";
+    private static final int CHUNK_CHARS = 1024;
+    /** chunks overlap, so a phrase over a cut is still in one of them */
+    private static final int OVERLAP_CHARS = 16;
+    /** chars of text held before they are written out */
+    private static final int BATCH_CHARS = 128 * 1024;
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+
+    /** How far a book got, a row of FullTextColumn.STATE_URI. */
+    private static class State {
+        long size;
+        long mtime;
+        String encode;
+        int format;
+        int nextPage;
+        boolean done;
+    }
+
+    public FullTextIndexer(Context context) {
+        mContext = context;
+        mResolver = context.getContentResolver();
+    }
+
+    /** Index what is not indexed yet. Throws CancelledException when cancelled. */
+    public void run(CancelToken token) {
+        IndexUtil.init(mContext);
+        Map<Long, State> states = loadStates();
+        Cursor cursor = mResolver.query(BookColumn.CONTENT_URI, new String[] {
+                BookColumn._ID, BookColumn.PATH, BookColumn.ENDCODE, BookColumn.FORMAT },
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                token.throwIfCancelled();
+                long id = cursor.getLong(0);
+                File file = new File(cursor.getString(1));
+                try {
+                    index(id, file, cursor.getString(2), cursor.getInt(3), states.get(id), token);
+                } catch (CancelledException e) {
+                    throw e;
+                } catch (Exception e) {
+                    Log.e(TAG, file + ": " + e.getMessage(), e); // try it again next run
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Map<Long, State> loadStates() {
+        Map<Long, State> states = new HashMap<Long, State>();
+        Cursor cursor = mResolver.query(FullTextColumn.STATE_URI, new String[] {
+                FullTextColumn.BOOK_ID, FullTextColumn.SIZE, FullTextColumn.MTIME,
+                FullTextColumn.ENCODE, FullTextColumn.FORMAT, FullTextColumn.NEXT_PAGE,
+                FullTextColumn.DONE }, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                State state = new State();
+                state.size = cursor.getLong(1);
+                state.mtime = cursor.getLong(2);
+                state.encode = cursor.getString(3);
+                state.format = cursor.getInt(4);
+                state.nextPage = cursor.getInt(5);
+                state.done = cursor.getInt(6) != 0;
+                states.put(cursor.getLong(0), state);
+            }
+        } finally {
+            cursor.close();
+        }
+        return states;
+    }
+
+    private void index(final long id, File file, String encode, int format, State state,
+            CancelToken token) throws Exception {
+        if (!file.exists()) {
+            return; // the next sync takes it out of the library
+        }
+        final Uri bookUri = ContentUris.withAppendedId(FullTextColumn.CONTENT_URI, id);
+        final State now = new State();
+        now.size = file.length();
+        now.mtime = file.lastModified();
+        now.encode = encode;
+        now.format = format;
+        if (state != null && state.size == now.size && state.mtime == now.mtime
+                && state.format == now.format && String.valueOf(encode).equals(state.encode)) {
+            if (state.done) {
+                return;
+            }
+            now.nextPage = state.nextPage;
+        }
+        // pages past the saved one may hold chunks of a run stopped mid batch
+        mResolver.delete(bookUri, FullTextColumn.PAGE + ">=?",
+                new String[] { String.valueOf(now.nextPage) });
+
+        final AbstractBookInfo book = AbstractBookInfo.newBookInfo(file, id);
+        book.setEncode(encode);
+        book.setFile(file, false);
+        book.setFormat(format);
+
+        final List<ContentValues> batch = new ArrayList<ContentValues>();
+        final int[] chars = { 0 };
+        long start = System.currentTimeMillis();
+        book.scanPages(now.nextPage, new AbstractBookInfo.PageVisitor() {
+            public void visit(int page, CharSequence text) {
+                for (int at = 0; at < text.length(); at += CHUNK_CHARS) {
+                    int end = Math.min(text.length(), at + CHUNK_CHARS + OVERLAP_CHARS);
+                    ContentValues chunk = new ContentValues();
+                    chunk.put(FullTextColumn.PAGE, page);
+                    chunk.put(FullTextColumn.LOCATOR, book.locate(page, at, text).toString());
+                    chunk.put(FullTextColumn.TOKENS,
+                            BigramTokenizer.tokenize(text.subSequence(at, end)));
+                    batch.add(chunk);
+                    chars[0] += end - at;
+                }
+                if (chars[0] >= BATCH_CHARS) {
+                    now.nextPage = page + 1;
+                    flush(bookUri, id, batch, now);
+                    chars[0] = 0;
+                }
+            }
+        }, token);
+        now.nextPage = book.getPageCount();
+        now.done = true;
+        flush(bookUri, id, batch, now);
+        Log.d(TAG, file.getName() + " indexed in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /** Write the chunks of a batch, then how far the book got. */
+    private void flush(Uri bookUri, long id, List<ContentValues> batch, State state) {
+        if (!batch.isEmpty()) {
+            mResolver.bulkInsert(bookUri, batch.toArray(new ContentValues[batch.size()]));
+            batch.clear();
+        }
+        ContentValues values = new ContentValues();
+        values.put(FullTextColumn.BOOK_ID, id);
+        values.put(FullTextColumn.SIZE, state.size);
+        values.put(FullTextColumn.MTIME, state.mtime);
+        values.put(FullTextColumn.ENCODE, state.encode);
+        values.put(FullTextColumn.FORMAT, state.format);
+        values.put(FullTextColumn.NEXT_PAGE, state.nextPage);
+        values.put(FullTextColumn.DONE, state.done ? 1 : 0);
+        mResolver.insert(FullTextColumn.STATE_URI, values);
+    }
+}
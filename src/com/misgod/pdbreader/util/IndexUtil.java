@@ -0,0 +1,114 @@
+package com.misgod.pdbreader.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Sidecar index files kept in the app's private "index" dir. Every file starts
+ * with a header (magic, version, book path, size, mtime) so an index written
+ * for an older copy of the book is simply ignored and rebuilt.
+ */
+public class IndexUtil {
+    private static final String TAG = "IndexUtil";
+    private static final int MAGIC = 0x50424958; // "PBIX"
+    private static File sIndexDir;
+
+    public static synchronized void init(Context context) {
+        if (sIndexDir == null) {
+            sIndexDir = context.getDir("index", Context.MODE_PRIVATE);
+        }
+    }
+
+    private static synchronized File getIndexFile(File book, String kind) {
+        if (sIndexDir == null) {
+            return null;
+        }
+        String key = Integer.toHexString(book.getAbsolutePath().hashCode());
+        return new File(sIndexDir, key + "." + kind);
+    }
+
+    /**
+     * @return a stream positioned after the header, or null if there is no
+     *         index of this kind or it was written for another version of the
+     *         book or of the index format.
+     */
+    public static DataInputStream openForRead(File book, String kind,
+            int version) {
+        File f = getIndexFile(book, kind);
+        if (f == null || !f.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(f), 8192));
+            if (in.readInt() == MAGIC && in.readInt() == version
+                    && in.readUTF().equals(book.getAbsolutePath())
+                    && in.readLong() == book.length()
+                    && in.readLong() == book.lastModified()) {
+                return in;
+            }
+        } catch (IOException e) {
+            Log.d(TAG, f + ": " + e.getMessage());
+        }
+        close(in);
+        return null;
+    }
+
+    /**
+     * Start writing an index. The data goes to a temp file which only replaces
+     * the real one in {@link #endWrite}, so a crash never leaves half an index.
+     * 
+     * @return the stream, or null if no index dir is available.
+     */
+    public static DataOutputStream beginWrite(File book, String kind,
+            int version) throws IOException {
+        File f = getIndexFile(book, kind);
+        if (f == null) {
+            return null;
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(f.getPath() + ".tmp")), 8192));
+        out.writeInt(MAGIC);
+        out.writeInt(version);
+        out.writeUTF(book.getAbsolutePath());
+        out.writeLong(book.length());
+        out.writeLong(book.lastModified());
+        return out;
+    }
+
+    public static void endWrite(File book, String kind, DataOutputStream out)
+            throws IOException {
+        out.close();
+        File f = getIndexFile(book, kind);
+        if (!new File(f.getPath() + ".tmp").renameTo(f)) {
+            throw new IOException("can not write " + f);
+        }
+    }
+
+    public static void delete(File book, String kind) {
+        File f = getIndexFile(book, kind);
+        if (f != null) {
+            f.delete();
+        }
+    }
+
+    public static void close(DataInputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.d(TAG, e.getMessage(), e);
+            }
+        }
+    }
+}
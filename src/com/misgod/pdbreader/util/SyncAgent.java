@@ -1,73 +1,388 @@
 package com.misgod.pdbreader.util;
 
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
 import android.util.Log;
 
 import com.misgod.pdbreader.R;
 import com.misgod.pdbreader.pdb.AbstractBookInfo;
+import com.misgod.pdbreader.pdb.TxtBookInfo;
 import com.misgod.pdbreader.provider.BookColumn;
+import com.misgod.pdbreader.provider.ScanColumn;
 
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Adds the books on the SD card to the library. What a sync saw is kept in
+ * ScanColumn, so the next one only lists directories whose time changed:
+ * a file added, removed or renamed changes the time of its directory. The
+ * files of an unchanged directory are not looked at again, its
+ * subdirectories are, unless one of them was taken off the list. A file
+ * that could not be read as a book is tried again when its directory is
+ * listed. Directories are listed and books probed on small
+ * thread pools, the card is slow to seek but serves a few reads at once.
+ */
 public class SyncAgent {
 	private static final String TAG = "SyncAgent";
-	private ArrayList<File> pdbFileList = new ArrayList<File>();
+	/** below this share of agreeing sample windows the default charset is kept */
+	private static final float MIN_CONFIDENCE = 0.5f;
+	/**
+	 * FAT keeps times to 2 seconds: a directory changed this recently may
+	 * change again without a new time, so it is listed again next sync
+	 */
+	private static final long SETTLE_MILLIS = 4000;
+	/** directories listed at once */
+	private static final int WALK_THREADS = 3;
+	/** books probed at once, reading headers and sampling text waits on the card */
+	private static final int PROBE_THREADS = 2;
+	/** books added to the library in one write */
+	private static final int BATCH = 20;
+	/** longest a probed book waits to be written, and to be shown */
+	private static final long FLUSH_MILLIS = 300;
+	/** removed paths in one delete, three arguments each */
+	private static final int DELETE_BATCH = 300;
+
+	public interface Listener {
+		/** Called on the syncing thread for each book probed. */
+		void onProgress(int probed, int found, String name);
+	}
+
+	/** what the last sync saw under the synced path, by path; read only while walking */
+	private final Map<String, Entry> mKnown = new HashMap<String, Entry>();
+	/** the known paths in each directory */
+	private final Map<String, List<String>> mChildren = new HashMap<String, List<String>>();
+	/** rows of ScanColumn to write back */
+	private final List<ContentValues> mSeen = Collections
+			.synchronizedList(new ArrayList<ContentValues>());
+	/** known files and directories that are gone */
+	private final List<String> mRemoved = Collections
+			.synchronizedList(new ArrayList<String>());
+	private long mNow;
+	private Set<String> mBooks;
+	private String[] mCharsets;
+	private String mEncode;
+
+	private ExecutorService mWalkers;
+	private ExecutorService mProbes;
+	/** directories and books not done yet */
+	private final AtomicInteger mPending = new AtomicInteger();
+	/** books new to the library */
+	private final AtomicInteger mFound = new AtomicInteger();
+	/** library rows of probed books, to be written */
+	private final BlockingQueue<ContentValues> mResults = new LinkedBlockingQueue<ContentValues>();
+
+	private static class Entry {
+		boolean dir;
+		long size;
+		long mtime;
+	}
 
 	public void syncSD(Context context, File path, boolean otherType) {
-		scanFile(path, otherType);
+		syncSD(context, path, otherType, null);
+	}
+
+	/**
+	 * Walk the card and probe the new books in parallel, adding them to the
+	 * library a batch at a time as they come in.
+	 */
+	public void syncSD(Context context, File path, boolean otherType,
+			Listener listener) {
+		long begin = System.currentTimeMillis();
+		ContentResolver resolver = context.getContentResolver();
+		loadState(resolver, path);
+		boolean first = mKnown.isEmpty();
+		mBooks = loadBookPaths(resolver);
+		mCharsets = context.getResources().getStringArray(R.array.charset);
 		SharedPreferences pref = context.getSharedPreferences(
 				Constatnts.PREF_TAG, Context.MODE_PRIVATE);
-		int charset = pref.getInt(Constatnts.DEFAULT_ENCODE, 0);
+		mEncode = mCharsets[pref.getInt(Constatnts.DEFAULT_ENCODE, 0)];
+		mNow = System.currentTimeMillis();
+		mWalkers = Executors.newFixedThreadPool(WALK_THREADS);
+		mProbes = Executors.newFixedThreadPool(PROBE_THREADS);
+		int added = 0;
+		try {
+			walk(path, otherType);
+			List<ContentValues> batch = new ArrayList<ContentValues>();
+			long flushed = System.currentTimeMillis();
+			while (true) {
+				ContentValues values = mResults.poll(FLUSH_MILLIS,
+						TimeUnit.MILLISECONDS);
+				if (values != null) {
+					batch.add(values);
+					if (listener != null) {
+						listener.onProgress(added + batch.size(), mFound.get(),
+								values.getAsString(BookColumn.NAME));
+					}
+				}
+				boolean done = values == null && mPending.get() == 0
+						&& mResults.isEmpty();
+				if (!batch.isEmpty() && (done || batch.size() >= BATCH
+						|| System.currentTimeMillis() - flushed >= FLUSH_MILLIS)) {
+					resolver.bulkInsert(BookColumn.CONTENT_URI,
+							batch.toArray(new ContentValues[batch.size()]));
+					added += batch.size();
+					batch.clear();
+					flushed = System.currentTimeMillis();
+				}
+				if (done) {
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return; // nothing saved, the next sync looks again
+		} finally {
+			mWalkers.shutdownNow();
+			mProbes.shutdownNow();
+		}
+		deleteUnder(resolver, BookColumn.CONTENT_URI, BookColumn.PATH);
+		if (first) {
+			// books of a library synced before the state was kept
+			DBUtil.clearFileNoFound(context);
+		}
+		saveState(resolver);
+		Log.d(TAG, "synced " + path + " in " + (System.currentTimeMillis() - begin)
+				+ "ms, " + mSeen.size() + " new or changed, " + added + " added, "
+				+ mRemoved.size() + " removed");
+	}
 
-		String encode = context.getResources().getStringArray(R.array.charset)[charset];
-		for (File f : pdbFileList) {
-			try {
-				if (DBUtil.isExits(context, f)) {
-					continue;
+	/** List a directory on a walker thread, see scanFile. */
+	private void walk(final File dir, final boolean otherType) {
+		mPending.incrementAndGet();
+		mWalkers.execute(new Runnable() {
+			public void run() {
+				try {
+					scanFile(dir, otherType);
+				} catch (RuntimeException e) {
+					Log.e(TAG, e.getMessage(), e);
+				} finally {
+					mPending.decrementAndGet();
 				}
-				AbstractBookInfo book = AbstractBookInfo.newBookInfo(f, -1);
-				book.setEncode(encode);
+			}
+		});
+	}
 
+	/**
+	 * Read the header of a book new to the library on a probe thread. Its
+	 * scan row is only kept if it could be read, so one that could not is
+	 * tried again when its directory is listed again.
+	 */
+	private void probe(final File f, final ContentValues seen) {
+		mFound.incrementAndGet();
+		mPending.incrementAndGet();
+		mProbes.execute(new Runnable() {
+			public void run() {
 				try {
-					try {
-						if (f.getName().toLowerCase().endsWith(".txt")) {
-							String guessCharset = ConvertUtil.guessCharset(f
-									.getAbsolutePath());
-							if (guessCharset != null) {
-								book.setEncode(guessCharset);
-							}
-						}
-					} catch (IOException e) {
-						Log.d(TAG, e.getMessage(), e);
-						// skip
+					ContentValues values = probeBook(f);
+					if (values != null) {
+						mSeen.add(seen);
+						mResults.add(values);
 					}
+				} catch (RuntimeException e) {
+					Log.e(TAG, e.getMessage(), e);
+					// ignore...
+				} finally {
+					mPending.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	/** The library row of a book, null if it can not be read. */
+	private ContentValues probeBook(File f) {
+		AbstractBookInfo book = AbstractBookInfo.newBookInfo(f, -1);
+		book.setEncode(mEncode);
 
+		try {
+			book.setFile(f, true);
+			CharsetDetector.Result guess = null;
+			try {
+				guess = book.detectCharset();
+			} catch (IOException e) {
+				Log.d(TAG, e.getMessage(), e);
+				// skip
+			}
+			if (guess != null && guess.charset != null
+					&& guess.confidence >= MIN_CONFIDENCE) {
+				String detected = toListedCharset(mCharsets, guess.charset);
+				if (!detected.equals(book.mEncode)) {
+					// re-read the header so the title is decoded right;
+					// setFile may reset the declared charset, so set it again
+					book.setEncode(detected);
 					book.setFile(f, true);
-					ContentValues values = new ContentValues();
-					values.put(BookColumn.NAME, book.mName);
-					values.put(BookColumn.PATH, f.getAbsolutePath());
-					values.put(BookColumn.ENDCODE, book.mEncode);
-					values.put(BookColumn.FORMAT, book.mFormat);
-					context.getContentResolver().insert(BookColumn.CONTENT_URI,
-							values);
-				} catch (IOException e) {
-					Log.d(TAG, e.getMessage(), e);
-					// skip
+					book.setEncode(detected);
+				}
+			}
+			ContentValues values = new ContentValues();
+			values.put(BookColumn.NAME, book.mName);
+			values.put(BookColumn.PATH, f.getAbsolutePath());
+			values.put(BookColumn.ENDCODE, book.mEncode);
+			values.put(BookColumn.FORMAT, book.mFormat);
+			if (guess != null) {
+				values.put(BookColumn.DETECTED_ENCODE, guess.charset);
+				values.put(BookColumn.ENCODE_CONFIDENCE, guess.confidence);
+			}
+			return values;
+		} catch (IOException e) {
+			Log.d(TAG, e.getMessage(), e);
+			return null;
+		}
+	}
+
+	/** What the last sync saw under a path. */
+	private void loadState(ContentResolver resolver, File root) {
+		Cursor cursor = resolver.query(ScanColumn.CONTENT_URI, new String[] {
+				ScanColumn.PATH, ScanColumn.DIR, ScanColumn.SIZE,
+				ScanColumn.MTIME }, under(ScanColumn.PATH),
+				underArgs(root.getAbsolutePath()), null);
+		try {
+			while (cursor.moveToNext()) {
+				Entry entry = new Entry();
+				String path = cursor.getString(0);
+				entry.dir = cursor.getInt(1) != 0;
+				entry.size = cursor.getLong(2);
+				entry.mtime = cursor.getLong(3);
+				mKnown.put(path, entry);
+				String parent = new File(path).getParent();
+				List<String> children = mChildren.get(parent);
+				if (children == null) {
+					children = new ArrayList<String>();
+					mChildren.put(parent, children);
+				}
+				children.add(path);
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private static Set<String> loadBookPaths(ContentResolver resolver) {
+		Set<String> paths = new HashSet<String>();
+		Cursor cursor = resolver.query(BookColumn.CONTENT_URI,
+				new String[] { BookColumn.PATH }, null, null, null);
+		try {
+			while (cursor.moveToNext()) {
+				paths.add(cursor.getString(0));
+			}
+		} finally {
+			cursor.close();
+		}
+		return paths;
+	}
+
+	/**
+	 * Written last, after the books are added: a sync that is stopped
+	 * leaves the state as it was, and the next one looks at all again.
+	 */
+	private void saveState(ContentResolver resolver) {
+		deleteUnder(resolver, ScanColumn.CONTENT_URI, ScanColumn.PATH);
+		resolver.bulkInsert(ScanColumn.CONTENT_URI,
+				mSeen.toArray(new ContentValues[mSeen.size()]));
+	}
+
+	/** Delete the rows of the removed paths, and under them, a batch at a time. */
+	private void deleteUnder(ContentResolver resolver, Uri uri, String column) {
+		for (int from = 0; from < mRemoved.size(); from += DELETE_BATCH) {
+			StringBuilder where = new StringBuilder();
+			List<String> args = new ArrayList<String>();
+			for (int i = from; i < Math.min(mRemoved.size(), from + DELETE_BATCH); i++) {
+				where.append(i == from ? "(" : " OR (").append(under(column)).append(")");
+				for (String arg : underArgs(mRemoved.get(i))) {
+					args.add(arg);
 				}
-			} catch (RuntimeException e) {
-				Log.e(TAG, e.getMessage(), e);
-				// ignore...
+			}
+			resolver.delete(uri, where.toString(),
+					args.toArray(new String[args.size()]));
+		}
+	}
+
+	/** A path column selecting a path and all that is under it, see underArgs. */
+	private static String under(String column) {
+		return column + "=? OR substr(" + column + ", 1, ?)=?";
+	}
+
+	private static String[] underArgs(String path) {
+		return new String[] { path, String.valueOf(path.length() + 1), path + "/" };
+	}
+
+	private static ContentValues row(String path, boolean dir, long size, long mtime) {
+		ContentValues values = new ContentValues();
+		values.put(ScanColumn.PATH, path);
+		values.put(ScanColumn.DIR, dir ? 1 : 0);
+		values.put(ScanColumn.SIZE, size);
+		values.put(ScanColumn.MTIME, mtime);
+		return values;
+	}
+
+	/**
+	 * The detector reports upper-case names (BIG5, SHIFT_JIS), map them to
+	 * the spelling of the charset menu so the encode dialog can check it.
+	 */
+	private static String toListedCharset(String[] charsets, String name) {
+		for (String c : charsets) {
+			if (c.equalsIgnoreCase(name)) {
+				return c;
 			}
 		}
-		DBUtil.clearFileNoFound(context);
+		return name;
 	}
 
+	/**
+	 * Whether the known files of a directory are all in the library; one
+	 * the user took off the list is added again, as a full sync would.
+	 */
+	private boolean allInLibrary(List<String> known) {
+		if (known != null) {
+			for (String child : known) {
+				if (!mKnown.get(child).dir && !mBooks.contains(child)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compare a directory with what the last sync saw, on a walker thread.
+	 * Its directories are walked and books new to the library probed in
+	 * turn; what is gone goes to mRemoved.
+	 */
 	private void scanFile(File dir, final boolean otherType) {
+		String path = dir.getAbsolutePath();
+		long mtime = dir.lastModified();
+		Entry old = mKnown.get(path);
+		List<String> known = mChildren.get(path);
+		if (old != null && old.dir && old.mtime == mtime && mtime != 0
+				&& allInLibrary(known)) {
+			// the same entries, but a directory in it may have changed
+			if (known != null) {
+				for (String child : known) {
+					if (mKnown.get(child).dir) {
+						walk(new File(child), otherType);
+					}
+				}
+			}
+			return;
+		}
 
 		File[] pdbList = dir.listFiles(new FileFilter() {
 			@Override
@@ -79,6 +394,11 @@ public class SyncAgent {
 										.endsWith(".pdb")
 								|| file.getName().toLowerCase()
 										.endsWith(".txt")
+								|| file.getName().toLowerCase()
+										.endsWith(".txt.gz")
+								|| file.getName().toLowerCase()
+										.endsWith(".zip")
+								&& TxtBookInfo.isTextZip(file)
 								|| file.getName().toLowerCase()
 										.endsWith(".updb");
 						// || file.getName().toLowerCase().endsWith(".htm")
@@ -89,6 +409,11 @@ public class SyncAgent {
 										.endsWith(".pdb")
 								|| file.getName().toLowerCase()
 										.endsWith(".txt")		
+								|| file.getName().toLowerCase()
+										.endsWith(".txt.gz")
+								|| file.getName().toLowerCase()
+										.endsWith(".zip")
+								&& TxtBookInfo.isTextZip(file)
 								|| file.getName().toLowerCase()
 										.endsWith(".updb");
 					}
@@ -100,16 +425,37 @@ public class SyncAgent {
 			}
 		});
 
-		if (pdbList != null) {
-			for (File p : pdbList) {
-				if (p.isDirectory()) {
-					scanFile(p, otherType);
-				} else {
-					pdbFileList.add(p);
+		if (pdbList == null) {
+			return; // not readable now, keep what was seen
+		}
+		Set<String> listed = new HashSet<String>();
+		for (File p : pdbList) {
+			String childPath = p.getAbsolutePath();
+			listed.add(childPath);
+			if (p.isDirectory()) {
+				walk(p, otherType);
+				continue;
+			}
+			long size = p.length();
+			long time = p.lastModified();
+			Entry entry = mKnown.get(childPath);
+			if (!mBooks.contains(childPath)) {
+				// new, removed from the list, or failed to read last time
+				probe(p, row(childPath, false, size, time));
+			} else if (entry == null || entry.dir || entry.size != size
+					|| entry.mtime != time) {
+				// changed in place, it keeps its place in the library
+				mSeen.add(row(childPath, false, size, time));
+			}
+		}
+		if (known != null) {
+			for (String child : known) {
+				if (!listed.contains(child)) {
+					mRemoved.add(child);
 				}
 			}
-
 		}
+		mSeen.add(row(path, true, 0, mNow - mtime < SETTLE_MILLIS ? -1 : mtime));
 
 	}
 }
@@ -301,6 +301,25 @@ public class PalmDocDB extends PalmDB {
    */
   public String readTextRecord(int index) throws ArrayIndexOutOfBoundsException,
                                           IOException
+    {
+      return new String(readTextRecordBytes(index),encode);
+    }
+
+
+
+  /**
+   * Read the specified text record and decompress if necessary, leaving the
+   * result as raw bytes so the caller can decode it itself.
+   *
+   * @param index the index of the text data record to be read, counting from
+   *    zero.
+   * @return a byte array containing the (decompressed) text.
+   * @throws IOException if an I/O error occurs while reading input record.
+   * @throws ArrayIndexOutOfBoundsException if the requested record does not
+   *          actually exist.
+   */
+  public byte[] readTextRecordBytes(int index)
+      throws ArrayIndexOutOfBoundsException, IOException
     {
       // Determine size of requested text record
       int dataSize = recordLengths[index];
@@ -312,7 +331,7 @@ public class PalmDocDB extends PalmDB {
       if (palmDocVersion == PALMDOC_COMPRESSED)
         recData = decompressBuffer(recData, dataSize);
 
-      return new String(recData,encode);
+      return recData;
     }
 
 
@@ -415,7 +434,7 @@ public class PalmDocDB extends PalmDB {
    * @param outputSize the length of the data array when decompressed.
    * @return a byte array containing the uncompressed data.
    */
-  private byte[] decompressBuffer(byte[] data, int outputSize)
+  private static byte[] decompressBuffer(byte[] data, int outputSize)
     {
       byte[] output = new byte[outputSize];
       int i = 0;
@@ -487,6 +506,36 @@ public class PalmDocDB extends PalmDB {
       if (palmDocVersion == PALMDOC_UNCOMPRESSED)
         return data.length;
 
+      return decompressedLength(data);
+    }
+
+
+
+  /**
+   * Decompress a single compressed text record on its own.  Opening a whole
+   * PalmDocDB reads every record to build the record length table, which is
+   * far too much when only a few records are needed (to sample the text for
+   * charset detection, for example).
+   *
+   * @param data a compressed PalmDoc text record.
+   * @return a byte array containing the uncompressed data.
+   */
+  public static byte[] decompressRecord(byte[] data)
+    {
+      return decompressBuffer(data, decompressedLength(data));
+    }
+
+
+
+  /**
+   * Calculate the decompressed length of a compressed buffer by walking its
+   * commands without writing the output anywhere.
+   *
+   * @param data a block of compressed PalmDoc data.
+   * @return the uncompressed length of the given data buffer.
+   */
+  private static int decompressedLength(byte[] data)
+    {
       int i = 0;
       int len = 0;
       while (i < data.length)
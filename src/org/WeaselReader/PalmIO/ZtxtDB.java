@@ -601,6 +601,28 @@ public class ZtxtDB extends PalmDB {
    */
   public String readTextRecord(int index) throws ArrayIndexOutOfBoundsException,
                                           IOException, DataFormatException
+    {
+      return new String(readTextRecordBytes(index), mEncode);
+    }
+
+
+
+  /**
+   * Read the specified text data record and decompress it, leaving the result
+   * as raw bytes so the caller can decode it itself.
+   *
+   * @param index the index of the text data record to be read, counting from
+   *    zero.
+   * @return a byte array containing the decompressed text.
+   * @throws IOException if an I/O error occurs while reading the requested
+   *            record.
+   * @throws ArrayIndexOutOfBoundsException if the requested record index does
+   *           not exist.
+   * @throws DataFormatException if the Inflater is not initialized or if the
+   *           zLib formatted data in the input text record is invalid.
+   */
+  public byte[] readTextRecordBytes(int index)
+      throws ArrayIndexOutOfBoundsException, IOException, DataFormatException
     {
       if (decompressor == null)
         throw new DataFormatException("readTextRecord(" + index
@@ -624,8 +646,12 @@ public class ZtxtDB extends PalmDB {
       byte[] output = new byte[recordSize];
       int resultLength = decompressor.inflate(output);
 
-      // Create the output string
-      return new String(output, 0, resultLength, mEncode);
+      // The last record is usually shorter than recordSize
+      if (resultLength == output.length)
+        return output;
+      byte[] result = new byte[resultLength];
+      System.arraycopy(output, 0, result, 0, resultLength);
+      return result;
     }
 
 
@@ -0,0 +1,75 @@
+package com.misgod.pdbreader.pdb;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.LineNumberReader;
+import java.io.OutputStream;
+
+/**
+ * Times the TXT page index build against the LineNumberReader pass
+ * TxtBookInfo used to make over the whole file. Not part of the app: tools/
+ * is not on the build path, compile it against bin/classes and the android
+ * jar and run it on a desktop JVM or with dalvikvm.
+ *
+ * No index dir is set up here, so every round builds the index from scratch.
+ */
+public class TxtIndexBenchmark {
+	private static final long SIZE = 100L * 1024 * 1024;
+	private static final int PAGE_CHARS = 6000;
+	private static final int ROUNDS = 3;
+
+	/**
+	 * @param args input file, optional charset (default UTF-8). A 100 MB mixed
+	 *            CJK/ASCII file is written first if the input does not exist.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("usage: TxtIndexBenchmark file.txt [charset]");
+			System.exit(1);
+		}
+		File file = new File(args[0]);
+		String charset = args.length > 1 ? args[1] : "UTF-8";
+		if (!file.exists()) {
+			write(file, charset);
+		}
+
+		int pages = -1;
+		for (int round = 0; round < ROUNDS; round++) {
+			long t0 = System.nanoTime();
+			LineNumberReader reader = new LineNumberReader(new InputStreamReader(
+					new FileInputStream(file), charset), 8192 * 2);
+			while (reader.readLine() != null) {
+			}
+			reader.close();
+			long t1 = System.nanoTime();
+			TxtPageIndex index = TxtPageIndex.open(file, charset, PAGE_CHARS);
+			long t2 = System.nanoTime();
+
+			System.out.printf("LineNumberReader %d lines: %d ms\n",
+					reader.getLineNumber(), (t1 - t0) / 1000000);
+			System.out.printf("TxtPageIndex %d threads, %d pages: %d ms%s\n",
+					Runtime.getRuntime().availableProcessors(),
+					index.getPageCount(), (t2 - t1) / 1000000, pages < 0
+							|| pages == index.getPageCount() ? "" : "  MISMATCH");
+			pages = index.getPageCount();
+		}
+	}
+
+	private static void write(File file, String charset) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file),
+				65536);
+		try {
+			byte[] line = "第一章 The quick brown fox jumps over the lazy dog.\n"
+					.getBytes(charset);
+			for (long n = 0; n < SIZE; n += line.length) {
+				out.write(line);
+			}
+		} finally {
+			out.close();
+		}
+	}
+}